@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.injoin.elkstemplate.DeliveryReport;
+import se.injoin.elkstemplate.DeliveryReportListener;
+import se.injoin.elkstemplate.DeliveryReportReceiver;
+import se.injoin.elkstemplate.ElksCallbackServer;
+
+/**
+ * Throughput of receiving delivery reports, handing bodies straight to {@link DeliveryReportReceiver} and posting
+ * them over keep-alive connections to {@link ElksCallbackServer} from 8 threads. A dispatcher thread passes the reports
+ * to a listener that only counts them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeliveryReportBenchmark {
+
+    private static final byte[] BODY = ("id=s17a6dafb12d6b1cabc053d57dac2b9d8&status=delivered"
+            + "&delivered=2014-03-18T13%3A57%3A23.741000").getBytes();
+
+    private DeliveryReportReceiver receiver;
+    private ElksCallbackServer server;
+    private URL url;
+    private volatile long count;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        receiver = new DeliveryReportReceiver();
+        receiver.setQueueCapacity(100000);
+        receiver.addListener(new DeliveryReportListener() {
+            @Override
+            public void deliveryReportReceived(DeliveryReport report) {
+                count++;
+            }
+        });
+        server = new ElksCallbackServer(0);
+        server.setThreads(8);
+        server.setDeliveryReportReceiver("/delivery", receiver);
+        server.start();
+        url = new URL("http://localhost:" + server.getPort() + "/delivery");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean receive() {
+        return receiver.receive(BODY, 0, BODY.length);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int post() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        OutputStream out = connection.getOutputStream();
+        out.write(BODY);
+        out.close();
+        int status = connection.getResponseCode();
+        // Reading to the end returns the connection to the keep-alive cache
+        InputStream in = connection.getInputStream();
+        while (in.read() >= 0) {
+            // Empty body
+        }
+        in.close();
+        return status;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.injoin.elkstemplate.DeliveryStatus;
+import se.injoin.elkstemplate.DeliveryStatusIndex;
+
+/**
+ * Recording delivery reports for and looking up random ids among a million sent messages, with
+ * {@link DeliveryStatusIndex} and with a {@link ConcurrentHashMap} of ids to {@link DeliveryStatus}. The heap used by
+ * each after setup is printed, for the index that is the table of one generation and for the map it leaves out the
+ * characters of the ids, shared with the array of ids.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class DeliveryStatusIndexBenchmark {
+
+    @Param({"1000000"})
+    public int messages;
+
+    private String[] ids;
+    private DeliveryStatusIndex index;
+    private ConcurrentHashMap<String, DeliveryStatus> map;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(17);
+        ids = new String[messages];
+        for (int i = 0; i < messages; i++) {
+            ids[i] = String.format("s%016x%016x", random.nextLong(), random.nextLong());
+        }
+        long before = usedHeap();
+        // All messages are recorded at once so a single generation has to hold them
+        index = new DeliveryStatusIndex(messages, TimeUnit.DAYS.toMillis(7), 2);
+        for (String id : ids) {
+            index.recordSent(id, 1395150000000L);
+        }
+        long indexed = usedHeap();
+        map = new ConcurrentHashMap<String, DeliveryStatus>();
+        for (String id : ids) {
+            map.put(new String(id), new DeliveryStatus(id, DeliveryStatus.Status.SENT, 1395150000000L, Long.MIN_VALUE));
+        }
+        long mapped = usedHeap();
+        System.out.println("\nDeliveryStatusIndex: " + (indexed - before) / messages + " bytes per message, ConcurrentHashMap: "
+                + (mapped - indexed) / messages + " bytes per message");
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private String nextId() {
+        int i = next;
+        next = i + 1 == ids.length ? 0 : i + 1;
+        return ids[(int) ((i * 2654435761L) % ids.length)];
+    }
+
+    @Benchmark
+    public boolean indexRecord() {
+        return index.recordStatus(nextId(), DeliveryStatus.Status.DELIVERED, 1395150043000L);
+    }
+
+    @Benchmark
+    public DeliveryStatus.Status indexGet() {
+        return index.getStatus(nextId());
+    }
+
+    @Benchmark
+    public DeliveryStatus mapRecord() {
+        String id = nextId();
+        DeliveryStatus current = map.get(id);
+        return map.put(id, new DeliveryStatus(id, DeliveryStatus.Status.DELIVERED, current.getSentMillis(), 1395150043000L));
+    }
+
+    @Benchmark
+    public DeliveryStatus.Status mapGet() {
+        return map.get(nextId()).getStatus();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.benchmark;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.injoin.elkstemplate.support.BooleanStringDeserializer;
+import se.injoin.elkstemplate.support.MinorUnitsDeserializer;
+import se.injoin.elkstemplate.support.MoneyDeserializer;
+
+/**
+ * The custom field deserializers called directly on a parser positioned at the value. Creating the parser is included
+ * in each operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeserializerBenchmark {
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final DeserializationContext context = new ObjectMapper().getDeserializationContext();
+    private final MoneyDeserializer moneyDeserializer = new MoneyDeserializer();
+    private final MinorUnitsDeserializer minorUnitsDeserializer = new MinorUnitsDeserializer();
+    private final BooleanStringDeserializer booleanStringDeserializer = new BooleanStringDeserializer();
+    private final byte[] money = "\"3500\"".getBytes();
+    private final byte[] booleanString = "\"yes\"".getBytes();
+
+    @Benchmark
+    public BigDecimal money() throws IOException {
+        return moneyDeserializer.deserialize(parser(money), context);
+    }
+
+    @Benchmark
+    public Long minorUnits() throws IOException {
+        return minorUnitsDeserializer.deserialize(parser(money), context);
+    }
+
+    @Benchmark
+    public Boolean booleanString() throws IOException {
+        return booleanStringDeserializer.deserialize(parser(booleanString), context);
+    }
+
+    private JsonParser parser(byte[] json) throws IOException {
+        JsonParser parser = jsonFactory.createParser(json);
+        parser.nextToken();
+        return parser;
+    }
+}
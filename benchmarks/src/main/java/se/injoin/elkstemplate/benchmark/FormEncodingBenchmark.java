@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.FormHttpMessageConverter;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.StringUtils;
+
+import se.injoin.elkstemplate.SmsRequest;
+import se.injoin.elkstemplate.support.SmsFormWriter;
+
+/**
+ * Encoding the form body of a <code>sendSms</code> batch, joining the recipients and writing the form with
+ * {@link FormHttpMessageConverter} compared with writing it with {@link SmsFormWriter} the way
+ * <code>ElksTemplate</code> does it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FormEncodingBenchmark {
+
+    private static final String MESSAGE = "Benchmark message with some \u00E5\u00E4\u00F6 to escape";
+
+    @Param({"2000"})
+    public int recipients;
+
+    private final FormHttpMessageConverter formConverter = new FormHttpMessageConverter();
+    private final BufferedOutputMessage outputMessage = new BufferedOutputMessage();
+    private List<String> batchRecipients;
+    private SmsFormWriter formWriter;
+
+    @Setup
+    public void setUp() {
+        batchRecipients = new ArrayList<String>();
+        for (int i = 0; i < recipients; i++) {
+            batchRecipients.add("+4670" + (1000000 + i));
+        }
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom("Benchmark");
+        smsRequest.setMessage(MESSAGE);
+        formWriter = new SmsFormWriter(smsRequest);
+    }
+
+    @Benchmark
+    public int formHttpMessageConverter() throws IOException {
+        LinkedMultiValueMap<String, String> parameters = new LinkedMultiValueMap<String, String>();
+        parameters.set("from", "Benchmark");
+        parameters.set("message", MESSAGE);
+        parameters.set("to", StringUtils.collectionToCommaDelimitedString(batchRecipients));
+        outputMessage.reset();
+        formConverter.write(parameters, MediaType.APPLICATION_FORM_URLENCODED, outputMessage);
+        return outputMessage.body.size();
+    }
+
+    @Benchmark
+    public int smsFormWriter() throws IOException {
+        outputMessage.reset();
+        formWriter.writeTo(outputMessage.getBody(), batchRecipients);
+        return outputMessage.body.size();
+    }
+
+    private static class BufferedOutputMessage implements HttpOutputMessage {
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(64 * 1024);
+        private HttpHeaders headers = new HttpHeaders();
+
+        public void reset() {
+            body.reset();
+            headers = new HttpHeaders();
+        }
+
+        @Override
+        public OutputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+    }
+}
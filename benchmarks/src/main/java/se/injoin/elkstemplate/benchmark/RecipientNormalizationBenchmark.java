@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.injoin.elkstemplate.RecipientNormalizer;
+import se.injoin.elkstemplate.support.PhoneNumberUtils;
+
+/**
+ * De-duplicating a recipient list where a fifth of the entries are the same number written differently. Compares
+ * {@link RecipientNormalizer}, which keeps the numbers seen in a set of primitive longs, with normalizing to strings
+ * and keeping them in a {@link HashSet}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Thread)
+public class RecipientNormalizationBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int recipients;
+
+    private final RecipientNormalizer normalizer = new RecipientNormalizer();
+    private List<String> list;
+
+    @Setup
+    public void setUp() {
+        normalizer.setDefaultCountryCode("46");
+        Random random = new Random(17);
+        list = new ArrayList<String>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            if (i > 0 && random.nextInt(5) == 0) {
+                String number = list.get(random.nextInt(i));
+                list.add(number.startsWith("+46") ? "0" + number.substring(3) : number);
+            } else {
+                list.add("+4670" + (1000000 + random.nextInt(9000000)));
+            }
+        }
+    }
+
+    @Benchmark
+    public int longHashSet() {
+        return normalizer.normalize(list).getRecipients().size();
+    }
+
+    @Benchmark
+    public int stringHashSet() {
+        Set<String> seen = new HashSet<String>();
+        List<String> normalized = new ArrayList<String>(list.size());
+        for (String recipient : list) {
+            long number = PhoneNumberUtils.parse(recipient, "46");
+            if (number != PhoneNumberUtils.INVALID) {
+                String formatted = PhoneNumberUtils.format(number);
+                if (seen.add(formatted)) {
+                    normalized.add(formatted);
+                }
+            }
+        }
+        return normalized.size();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.injoin.elkstemplate.SmsHistory;
+import se.injoin.elkstemplate.SmsResponse;
+import se.injoin.elkstemplate.SmsResponseHandler;
+import se.injoin.elkstemplate.support.SmsResponseParser;
+
+/**
+ * Deserialization of a page of SMS history and of the response to sending a batch, with Jackson data binding as used
+ * by <code>RestTemplate</code> and with the streaming {@link SmsResponseParser}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseDeserializationBenchmark {
+
+    @Param({"100", "2000"})
+    public int entries;
+
+    private ObjectReader historyReader;
+    private ObjectReader batchReader;
+    private byte[] history;
+    private byte[] batch;
+
+    @Setup
+    public void setUp() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        historyReader = objectMapper.reader(SmsHistory.class);
+        batchReader = objectMapper.reader(SmsResponse[].class);
+
+        StringBuilder responses = new StringBuilder();
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) {
+                responses.append(',');
+            }
+            responses.append("{\"id\": \"s").append(String.format("%032x", i)).append("\", ")
+                    .append("\"direction\": \"outgoing\", ")
+                    .append("\"from\": \"Benchmark\", ")
+                    .append("\"to\": \"+4670").append(1000000 + i).append("\", ")
+                    .append("\"created\": \"2014-03-01T12:").append(String.format("%02d:%02d", i / 60 % 60, i % 60)).append(".123000\", ")
+                    .append("\"message\": \"Benchmark message number ").append(i).append("\", ")
+                    .append("\"cost\": 3500}");
+        }
+        history = ("{\"data\": [" + responses + "], \"next\": \"2014-03-01T11:59:59.000000\"}").getBytes();
+        batch = ("[" + responses + "]").getBytes();
+    }
+
+    @Benchmark
+    public SmsHistory historyDataBinding() throws IOException {
+        return historyReader.readValue(history);
+    }
+
+    @Benchmark
+    public Date historyStreaming(Blackhole blackhole) throws IOException {
+        return SmsResponseParser.parseHistory(new ByteArrayInputStream(history), new Consumer(blackhole));
+    }
+
+    @Benchmark
+    public SmsResponse[] batchDataBinding() throws IOException {
+        return batchReader.readValue(batch);
+    }
+
+    @Benchmark
+    public int batchStreaming(Blackhole blackhole) throws IOException {
+        return SmsResponseParser.parseSendResponse(new ByteArrayInputStream(batch), new Consumer(blackhole));
+    }
+
+    private static class Consumer implements SmsResponseHandler {
+
+        private final Blackhole blackhole;
+
+        public Consumer(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void handleResponse(SmsResponse response) {
+            blackhole.consume(response);
+        }
+    }
+}
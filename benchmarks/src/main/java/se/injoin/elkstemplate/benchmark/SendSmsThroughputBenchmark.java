@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.injoin.elkstemplate.ElksStubServer;
+import se.injoin.elkstemplate.ElksTemplate;
+import se.injoin.elkstemplate.InMemoryElksMetrics;
+import se.injoin.elkstemplate.SmsResponse;
+
+/**
+ * Throughput of single-recipient sends against the stub server with 1, 8 and 64 concurrent senders sharing one
+ * pooled template. The stub server adds a fixed latency to approximate a round trip to the service. Runs with and
+ * without metrics to show the overhead of recording them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SendSmsThroughputBenchmark {
+
+    @Param({"2"})
+    public long latency;
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private ElksStubServer server;
+    private ElksTemplate template;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new ElksStubServer();
+        server.setLatency(latency);
+        server.start();
+        template = new ElksTemplate();
+        template.setApiUrl(server.getApiUrl());
+        template.setUsername("benchmark");
+        template.setPassword("benchmark");
+        template.setMaxConnections(64);
+        template.setMaxConnectionsPerRoute(64);
+        if (metrics) {
+            template.setMetricsListener(new InMemoryElksMetrics());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        template.destroy();
+        server.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public SmsResponse senders1() {
+        return send();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public SmsResponse senders8() {
+        return send();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public SmsResponse senders64() {
+        return send();
+    }
+
+    private SmsResponse send() {
+        return template.sendSms("Benchmark", "+46700000000", "Benchmark message");
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.benchmark;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.injoin.elkstemplate.support.TimestampUtils;
+
+/**
+ * Parsing and formatting of timestamps with {@link TimestampUtils} compared to the previous implementation that
+ * created a {@link SimpleDateFormat} per call. Run with <code>-prof gc</code> to compare allocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimestampUtilsBenchmark {
+
+    private final String source = "2012-05-08T20:38:11.623000";
+    private final char[] sourceChars = source.toCharArray();
+    private final Date date = new Date(1336509491623L);
+    private final char[] destination = new char[TimestampUtils.LENGTH];
+
+    @Benchmark
+    public Date parseSimpleDateFormat() throws ParseException {
+        return LegacyTimestampUtils.parse(source);
+    }
+
+    @Benchmark
+    public Date parseString() throws ParseException {
+        return TimestampUtils.parse(source);
+    }
+
+    @Benchmark
+    public long parseChars() throws ParseException {
+        return TimestampUtils.parseMillis(sourceChars, 0, sourceChars.length);
+    }
+
+    @Benchmark
+    public String formatSimpleDateFormat() {
+        return LegacyTimestampUtils.format(date);
+    }
+
+    @Benchmark
+    public String formatString() throws ParseException {
+        return TimestampUtils.format(date);
+    }
+
+    @Benchmark
+    public char[] formatChars() {
+        TimestampUtils.format(date.getTime(), destination, 0);
+        return destination;
+    }
+
+    /**
+     * The implementation of {@link TimestampUtils} before it was replaced.
+     */
+    static class LegacyTimestampUtils {
+
+        static Date parse(String source) throws ParseException {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.parse(source.substring(0, 23));
+        }
+
+        static String format(Date timestamp) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.format(timestamp) + "000";
+        }
+    }
+}
@@ -20,11 +20,13 @@ package se.injoin.elkstemplate;
 import java.math.BigDecimal;
 import java.util.Date;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
-import se.injoin.elkstemplate.support.MoneyDeserializer;
+import se.injoin.elkstemplate.support.MinorUnitsDeserializer;
+import se.injoin.elkstemplate.support.MoneyUtils;
 import se.injoin.elkstemplate.support.TimestampDeserializer;
 
 /**
@@ -44,7 +46,7 @@ public class AccountDetails {
     @JsonProperty("trialactivated")
     @JsonDeserialize(using = TimestampDeserializer.class)
     private Date trialActivated;
-    @JsonDeserialize(using = MoneyDeserializer.class)
+    private long balanceMinorUnits = MoneyUtils.UNDEFINED;
     private BigDecimal balance;
     private String email;
 
@@ -83,14 +85,43 @@ public class AccountDetails {
         this.trialActivated = trialActivated;
     }
 
+    /**
+     * Returns the balance, created from {@link #getBalanceMinorUnits()} when first called. This is the value written when
+     * serialized to JSON.
+     */
+    @JsonProperty("balance")
     public BigDecimal getBalance() {
+        if (balance == null) {
+            balance = MoneyUtils.toBigDecimal(balanceMinorUnits);
+        }
         return balance;
     }
 
+    @JsonIgnore
     public void setBalance(BigDecimal balance) {
+        this.balanceMinorUnits = MoneyUtils.toMinorUnits(balance);
         this.balance = balance;
     }
 
+    /**
+     * Returns the balance in minor units, 1/10000 of the currency unit, or {@link MoneyUtils#UNDEFINED} if there is none.
+     */
+    @JsonIgnore
+    public long getBalanceMinorUnits() {
+        return balanceMinorUnits;
+    }
+
+    @JsonProperty("balance")
+    @JsonDeserialize(using = MinorUnitsDeserializer.class)
+    public void setBalanceMinorUnits(long balanceMinorUnits) {
+        this.balanceMinorUnits = balanceMinorUnits;
+        this.balance = null;
+    }
+
+    public boolean hasBalance() {
+        return balanceMinorUnits != MoneyUtils.UNDEFINED;
+    }
+
     public String getEmail() {
         return email;
     }
@@ -106,7 +137,7 @@ public class AccountDetails {
                 ", id='" + id + '\'' +
                 ", currency='" + currency + '\'' +
                 ", trialActivated='" + trialActivated + '\'' +
-                ", balance=" + balance +
+                ", balance=" + getBalance() +
                 ", email='" + email + '\'' +
                 '}';
     }
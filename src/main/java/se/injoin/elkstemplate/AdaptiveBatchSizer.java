@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+import org.springframework.util.Assert;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+
+import se.injoin.elkstemplate.support.SmsFormWriter;
+
+/**
+ * Adapts the number of recipients per batch when sending SMS to how the service is responding. The batch size grows
+ * additively while batches complete within the target latency and is cut by the decrease factor when a batch takes
+ * longer, times out or fails with <code>413 Request Entity Too Large</code> or a server error. Other failures leave
+ * the size unchanged.
+ * <p/>
+ * Independently of the batch size a batch never holds more recipients than fit within the body size budget, so long
+ * recipient lists with long numbers do not produce huge request bodies.
+ * <p/>
+ * A sizer keeps learning across sends and can be shared by the batches sent concurrently.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#setAdaptiveBatchSizer(AdaptiveBatchSizer)
+ * @since 1.0
+ */
+public class AdaptiveBatchSizer {
+
+    public static final int DEFAULT_MIN_BATCH_SIZE = 50;
+    public static final int DEFAULT_INITIAL_BATCH_SIZE = 500;
+    public static final int DEFAULT_INCREMENT = 100;
+    public static final double DEFAULT_DECREASE_FACTOR = 0.5;
+    public static final long DEFAULT_TARGET_LATENCY = 2000;
+    public static final int DEFAULT_MAX_BODY_SIZE = 64 * 1024;
+
+    private int minBatchSize = DEFAULT_MIN_BATCH_SIZE;
+    private int maxBatchSize = ElksTemplate.DEFAULT_BATCH_LIMIT;
+    private int increment = DEFAULT_INCREMENT;
+    private double decreaseFactor = DEFAULT_DECREASE_FACTOR;
+    private long targetLatency = DEFAULT_TARGET_LATENCY;
+    private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private int batchSize = DEFAULT_INITIAL_BATCH_SIZE;
+
+    public synchronized int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    public synchronized void setMinBatchSize(int minBatchSize) {
+        Assert.isTrue(minBatchSize > 0, "minBatchSize must be positive");
+        this.minBatchSize = minBatchSize;
+        this.batchSize = Math.max(batchSize, minBatchSize);
+    }
+
+    public synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Sets the largest batch size, defaults to {@link ElksTemplate#DEFAULT_BATCH_LIMIT}.
+     */
+    public synchronized void setMaxBatchSize(int maxBatchSize) {
+        Assert.isTrue(maxBatchSize > 0, "maxBatchSize must be positive");
+        this.maxBatchSize = maxBatchSize;
+        this.batchSize = Math.min(batchSize, maxBatchSize);
+    }
+
+    /**
+     * Returns the current batch size.
+     */
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the current batch size, the size used for the first batch unless set.
+     */
+    public synchronized void setBatchSize(int batchSize) {
+        this.batchSize = clamp(batchSize);
+    }
+
+    public synchronized int getIncrement() {
+        return increment;
+    }
+
+    /**
+     * Sets the number of recipients the batch size grows with after a batch within the target latency.
+     */
+    public synchronized void setIncrement(int increment) {
+        this.increment = increment;
+    }
+
+    public synchronized double getDecreaseFactor() {
+        return decreaseFactor;
+    }
+
+    /**
+     * Sets the factor the batch size is multiplied with after a slow or failed batch, between 0 and 1.
+     */
+    public synchronized void setDecreaseFactor(double decreaseFactor) {
+        Assert.isTrue(decreaseFactor > 0 && decreaseFactor < 1, "decreaseFactor must be between 0 and 1");
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    public synchronized long getTargetLatency() {
+        return targetLatency;
+    }
+
+    /**
+     * Sets the time in milliseconds a batch may take, including retries, for the batch size to grow.
+     */
+    public synchronized void setTargetLatency(long targetLatency) {
+        this.targetLatency = targetLatency;
+    }
+
+    public synchronized int getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Sets the maximum size in bytes of the encoded form body of a batch, 0 for no limit. A batch always gets at least
+     * one recipient.
+     */
+    public synchronized void setMaxBodySize(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Returns the end index, exclusive, of the batch starting at the given index.
+     *
+     * @param recipients all recipients of the request
+     * @param startIndex the index of the first recipient of the batch
+     * @param form the writer for the request, used to know the size of the body
+     */
+    public int getBatchEnd(List<String> recipients, int startIndex, SmsFormWriter form) {
+        int size;
+        int bodySize;
+        synchronized (this) {
+            size = batchSize;
+            bodySize = maxBodySize;
+        }
+        int end = Math.min(startIndex + size, recipients.size());
+        if (bodySize <= 0) {
+            return end;
+        }
+        long bytes = form.getPrefixLength();
+        for (int i = startIndex; i < end; i++) {
+            bytes += SmsFormWriter.getEncodedLength(recipients.get(i));
+            if (bytes > bodySize && i > startIndex) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Adapts the batch size to the outcome of a batch.
+     *
+     * @param batch the completed batch
+     * @param elapsedNanos the time the batch took
+     * @return the new batch size
+     */
+    public synchronized int batchCompleted(SmsBatch batch, long elapsedNanos) {
+        if (batch.getStatus() == SmsBatch.Status.SENT) {
+            if (elapsedNanos > targetLatency * 1000000L) {
+                batchSize = clamp((int) (batchSize * decreaseFactor));
+            } else if (batch.size() >= batchSize) {
+                // Only batches that were limited by the size tell that a larger size would do
+                batchSize = clamp(batchSize + increment);
+            }
+        } else if (isOverloaded(batch.getException())) {
+            batchSize = clamp((int) (Math.min(batchSize, batch.size()) * decreaseFactor));
+        }
+        return batchSize;
+    }
+
+    /**
+     * Returns true if the failure suggests that smaller batches would succeed.
+     */
+    protected boolean isOverloaded(Throwable exception) {
+        for (Throwable t = exception; t != null; t = t.getCause()) {
+            if (t instanceof HttpStatusCodeException) {
+                int status = ((HttpStatusCodeException) t).getStatusCode().value();
+                return status == 413 || status >= 500;
+            }
+            if (t instanceof ResourceAccessException) {
+                return t.getCause() instanceof SocketTimeoutException;
+            }
+        }
+        return false;
+    }
+
+    private int clamp(int size) {
+        return Math.max(minBatchSize, Math.min(size, maxBatchSize));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveBatchSizer{" +
+                "batchSize=" + batchSize +
+                ", minBatchSize=" + minBatchSize +
+                ", maxBatchSize=" + maxBatchSize +
+                ", targetLatency=" + targetLatency +
+                ", maxBodySize=" + maxBodySize +
+                '}';
+    }
+}
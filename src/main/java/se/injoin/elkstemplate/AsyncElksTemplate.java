@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.springframework.util.Assert;
+
+import se.injoin.elkstemplate.support.DaemonThreadFactory;
+
+/**
+ * Asynchronous counterpart to {@link ElksTemplate}. Every operation is performed by the wrapped template on an
+ * executor and returns a {@link Future} immediately. Operations can also be given an {@link ElksCallback} that is
+ * called on completion. Failures are the same exceptions the template throws, available as the cause of the
+ * {@link ExecutionException} thrown from {@link Future#get()} or passed to the callback.
+ * <p/>
+ * The number of operations in flight is bounded by the size of the executor and the connection pool of the template.
+ * If no executor is set a pool of daemon threads sized after {@link ElksTemplate#getMaxConnections()} is created, it
+ * is shut down by {@link #destroy()}.
+ * <p/>
+ * Handlers passed to the streaming operations are called from the executor thread. {@link ElksTemplate#iterateSmsHistory()}
+ * has no asynchronous form since it fetches pages lazily as the caller iterates, use
+ * {@link #querySmsHistory(Date, SmsResponseHandler)} page by page instead.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class AsyncElksTemplate {
+
+    private final ElksTemplate elksTemplate;
+    private Executor executor;
+    private ExecutorService defaultExecutor;
+
+    public AsyncElksTemplate(ElksTemplate elksTemplate) {
+        Assert.notNull(elksTemplate);
+        this.elksTemplate = elksTemplate;
+    }
+
+    public ElksTemplate getElksTemplate() {
+        return elksTemplate;
+    }
+
+    public synchronized Executor getExecutor() {
+        if (executor != null) {
+            return executor;
+        }
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool(elksTemplate.getMaxConnections(), new DaemonThreadFactory("elks-async"));
+        }
+        return defaultExecutor;
+    }
+
+    public synchronized void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Shuts down the default executor if it was created. Does not destroy the wrapped template.
+     */
+    public synchronized void destroy() {
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdown();
+            defaultExecutor = null;
+        }
+    }
+
+    /**
+     * @see ElksTemplate#queryAccountDetails()
+     */
+    public Future<AccountDetails> queryAccountDetails() {
+        return queryAccountDetails(null);
+    }
+
+    /**
+     * @see ElksTemplate#queryAccountDetails()
+     */
+    public Future<AccountDetails> queryAccountDetails(ElksCallback<AccountDetails> callback) {
+        return submit(new Callable<AccountDetails>() {
+            @Override
+            public AccountDetails call() {
+                return elksTemplate.queryAccountDetails();
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#queryPhoneNumbers()
+     */
+    public Future<List<PhoneNumberDetails>> queryPhoneNumbers() {
+        return queryPhoneNumbers(null);
+    }
+
+    /**
+     * @see ElksTemplate#queryPhoneNumbers()
+     */
+    public Future<List<PhoneNumberDetails>> queryPhoneNumbers(ElksCallback<List<PhoneNumberDetails>> callback) {
+        return submit(new Callable<List<PhoneNumberDetails>>() {
+            @Override
+            public List<PhoneNumberDetails> call() {
+                return elksTemplate.queryPhoneNumbers();
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#queryPhoneNumber(String)
+     */
+    public Future<PhoneNumberDetails> queryPhoneNumber(String id) {
+        return queryPhoneNumber(id, null);
+    }
+
+    /**
+     * @see ElksTemplate#queryPhoneNumber(String)
+     */
+    public Future<PhoneNumberDetails> queryPhoneNumber(final String id, ElksCallback<PhoneNumberDetails> callback) {
+        return submit(new Callable<PhoneNumberDetails>() {
+            @Override
+            public PhoneNumberDetails call() {
+                return elksTemplate.queryPhoneNumber(id);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#allocatePhoneNumber(String, String)
+     */
+    public Future<PhoneNumberDetails> allocatePhoneNumber(String country, String smsUrl) {
+        return allocatePhoneNumber(country, smsUrl, null);
+    }
+
+    /**
+     * @see ElksTemplate#allocatePhoneNumber(String, String)
+     */
+    public Future<PhoneNumberDetails> allocatePhoneNumber(final String country, final String smsUrl, ElksCallback<PhoneNumberDetails> callback) {
+        return submit(new Callable<PhoneNumberDetails>() {
+            @Override
+            public PhoneNumberDetails call() {
+                return elksTemplate.allocatePhoneNumber(country, smsUrl);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#updatePhoneNumber(String, String)
+     */
+    public Future<PhoneNumberDetails> updatePhoneNumber(String id, String smsUrl) {
+        return updatePhoneNumber(id, smsUrl, null);
+    }
+
+    /**
+     * @see ElksTemplate#updatePhoneNumber(String, String)
+     */
+    public Future<PhoneNumberDetails> updatePhoneNumber(final String id, final String smsUrl, ElksCallback<PhoneNumberDetails> callback) {
+        return submit(new Callable<PhoneNumberDetails>() {
+            @Override
+            public PhoneNumberDetails call() {
+                return elksTemplate.updatePhoneNumber(id, smsUrl);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#deallocatePhoneNumber(String)
+     */
+    public Future<PhoneNumberDetails> deallocatePhoneNumber(String id) {
+        return deallocatePhoneNumber(id, null);
+    }
+
+    /**
+     * @see ElksTemplate#deallocatePhoneNumber(String)
+     */
+    public Future<PhoneNumberDetails> deallocatePhoneNumber(final String id, ElksCallback<PhoneNumberDetails> callback) {
+        return submit(new Callable<PhoneNumberDetails>() {
+            @Override
+            public PhoneNumberDetails call() {
+                return elksTemplate.deallocatePhoneNumber(id);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#sendSms(String, String, String)
+     */
+    public Future<SmsResponse> sendSms(String from, String recipient, String message) {
+        return sendSms(from, recipient, message, null);
+    }
+
+    /**
+     * @see ElksTemplate#sendSms(String, String, String)
+     */
+    public Future<SmsResponse> sendSms(final String from, final String recipient, final String message, ElksCallback<SmsResponse> callback) {
+        return submit(new Callable<SmsResponse>() {
+            @Override
+            public SmsResponse call() {
+                return elksTemplate.sendSms(from, recipient, message);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#sendSms(String, List, String)
+     */
+    public Future<List<SmsResponse>> sendSms(String from, List<String> recipients, String message) {
+        return sendSms(from, recipients, message, null);
+    }
+
+    /**
+     * @see ElksTemplate#sendSms(String, List, String)
+     */
+    public Future<List<SmsResponse>> sendSms(final String from, final List<String> recipients, final String message, ElksCallback<List<SmsResponse>> callback) {
+        return submit(new Callable<List<SmsResponse>>() {
+            @Override
+            public List<SmsResponse> call() {
+                return elksTemplate.sendSms(from, recipients, message);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#sendFlashSms(String, String, String)
+     */
+    public Future<SmsResponse> sendFlashSms(String from, String recipient, String message) {
+        return sendFlashSms(from, recipient, message, null);
+    }
+
+    /**
+     * @see ElksTemplate#sendFlashSms(String, String, String)
+     */
+    public Future<SmsResponse> sendFlashSms(final String from, final String recipient, final String message, ElksCallback<SmsResponse> callback) {
+        return submit(new Callable<SmsResponse>() {
+            @Override
+            public SmsResponse call() {
+                return elksTemplate.sendFlashSms(from, recipient, message);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#sendFlashSms(String, List, String)
+     */
+    public Future<List<SmsResponse>> sendFlashSms(String from, List<String> recipients, String message) {
+        return sendFlashSms(from, recipients, message, null);
+    }
+
+    /**
+     * @see ElksTemplate#sendFlashSms(String, List, String)
+     */
+    public Future<List<SmsResponse>> sendFlashSms(final String from, final List<String> recipients, final String message, ElksCallback<List<SmsResponse>> callback) {
+        return submit(new Callable<List<SmsResponse>>() {
+            @Override
+            public List<SmsResponse> call() {
+                return elksTemplate.sendFlashSms(from, recipients, message);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#sendSms(SmsRequest)
+     */
+    public Future<List<SmsResponse>> sendSms(SmsRequest smsRequest) {
+        return sendSms(smsRequest, (ElksCallback<List<SmsResponse>>) null);
+    }
+
+    /**
+     * @see ElksTemplate#sendSms(SmsRequest)
+     */
+    public Future<List<SmsResponse>> sendSms(final SmsRequest smsRequest, ElksCallback<List<SmsResponse>> callback) {
+        return submit(new Callable<List<SmsResponse>>() {
+            @Override
+            public List<SmsResponse> call() {
+                return elksTemplate.sendSms(smsRequest);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#sendSmsResumable(SmsRequest)
+     */
+    public Future<SmsSendResult> sendSmsResumable(SmsRequest smsRequest) {
+        return sendSmsResumable(smsRequest, null);
+    }
+
+    /**
+     * @see ElksTemplate#sendSmsResumable(SmsRequest)
+     */
+    public Future<SmsSendResult> sendSmsResumable(final SmsRequest smsRequest, ElksCallback<SmsSendResult> callback) {
+        return submit(new Callable<SmsSendResult>() {
+            @Override
+            public SmsSendResult call() {
+                return elksTemplate.sendSmsResumable(smsRequest);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#sendSms(SmsRequest, SmsResponseHandler)
+     */
+    public Future<SmsSendResult> sendSms(SmsRequest smsRequest, SmsResponseHandler handler) {
+        return sendSms(smsRequest, handler, null);
+    }
+
+    /**
+     * @see ElksTemplate#sendSms(SmsRequest, SmsResponseHandler)
+     */
+    public Future<SmsSendResult> sendSms(final SmsRequest smsRequest, final SmsResponseHandler handler, ElksCallback<SmsSendResult> callback) {
+        return submit(new Callable<SmsSendResult>() {
+            @Override
+            public SmsSendResult call() {
+                return elksTemplate.sendSms(smsRequest, handler);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#resumeSms(SmsRequest, SmsSendResult)
+     */
+    public Future<SmsSendResult> resumeSms(SmsRequest smsRequest, SmsSendResult previous) {
+        return resumeSms(smsRequest, previous, false, null);
+    }
+
+    /**
+     * @see ElksTemplate#resumeSms(SmsRequest, SmsSendResult)
+     */
+    public Future<SmsSendResult> resumeSms(SmsRequest smsRequest, SmsSendResult previous, ElksCallback<SmsSendResult> callback) {
+        return resumeSms(smsRequest, previous, false, callback);
+    }
+
+    /**
+     * @see ElksTemplate#resumeSms(SmsRequest, SmsSendResult, boolean)
+     */
+    public Future<SmsSendResult> resumeSms(SmsRequest smsRequest, SmsSendResult previous, boolean resendUnknown) {
+        return resumeSms(smsRequest, previous, resendUnknown, null);
+    }
+
+    /**
+     * @see ElksTemplate#resumeSms(SmsRequest, SmsSendResult, boolean)
+     */
+    public Future<SmsSendResult> resumeSms(final SmsRequest smsRequest, final SmsSendResult previous, final boolean resendUnknown, ElksCallback<SmsSendResult> callback) {
+        return submit(new Callable<SmsSendResult>() {
+            @Override
+            public SmsSendResult call() {
+                return elksTemplate.resumeSms(smsRequest, previous, resendUnknown);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#resumeSms(SmsRequest, String)
+     */
+    public Future<SmsSendResult> resumeSms(SmsRequest smsRequest, String resumeToken) {
+        return resumeSms(smsRequest, resumeToken, null);
+    }
+
+    /**
+     * @see ElksTemplate#resumeSms(SmsRequest, String)
+     */
+    public Future<SmsSendResult> resumeSms(final SmsRequest smsRequest, final String resumeToken, ElksCallback<SmsSendResult> callback) {
+        return submit(new Callable<SmsSendResult>() {
+            @Override
+            public SmsSendResult call() {
+                return elksTemplate.resumeSms(smsRequest, resumeToken);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#querySmsHistory()
+     */
+    public Future<SmsHistory> querySmsHistory() {
+        return querySmsHistory((Date) null, (ElksCallback<SmsHistory>) null);
+    }
+
+    /**
+     * @see ElksTemplate#querySmsHistory()
+     */
+    public Future<SmsHistory> querySmsHistory(ElksCallback<SmsHistory> callback) {
+        return querySmsHistory(null, callback);
+    }
+
+    /**
+     * @see ElksTemplate#querySmsHistory(Date)
+     */
+    public Future<SmsHistory> querySmsHistory(Date start) {
+        return querySmsHistory(start, (ElksCallback<SmsHistory>) null);
+    }
+
+    /**
+     * @see ElksTemplate#querySmsHistory(Date)
+     */
+    public Future<SmsHistory> querySmsHistory(final Date start, ElksCallback<SmsHistory> callback) {
+        return submit(new Callable<SmsHistory>() {
+            @Override
+            public SmsHistory call() {
+                return elksTemplate.querySmsHistory(start);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ElksTemplate#querySmsHistory(Date, SmsResponseHandler)
+     */
+    public Future<Date> querySmsHistory(Date start, SmsResponseHandler handler) {
+        return querySmsHistory(start, handler, null);
+    }
+
+    /**
+     * @see ElksTemplate#querySmsHistory(Date, SmsResponseHandler)
+     */
+    public Future<Date> querySmsHistory(final Date start, final SmsResponseHandler handler, ElksCallback<Date> callback) {
+        return submit(new Callable<Date>() {
+            @Override
+            public Date call() {
+                return elksTemplate.querySmsHistory(start, handler);
+            }
+        }, callback);
+    }
+
+    /**
+     * Submits an operation to the executor, the callback is optional.
+     */
+    protected <T> Future<T> submit(Callable<T> operation, ElksCallback<T> callback) {
+        ElksFutureTask<T> task = new ElksFutureTask<T>(operation, callback);
+        getExecutor().execute(task);
+        return task;
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.util.Assert;
+
+import se.injoin.elkstemplate.support.DaemonThreadFactory;
+import se.injoin.elkstemplate.support.RefreshAheadValue;
+
+/**
+ * Template caching the account details and the phone number inventory. Cached values are refreshed in the background
+ * once older than their time to live, readers get the cached value meanwhile and only wait when nothing has been
+ * loaded yet. Concurrent readers share a single request.
+ * <p/>
+ * Phone numbers are looked up by id and by number in an index built from one {@link #queryPhoneNumbers()} call. Ids
+ * missing from the index are queried once and remembered as not found for {@link #setNotFoundTtl(long)}, up to
+ * {@link #setMaxNotFound(int)} ids at a time. Allocating,
+ * updating and deallocating numbers through this template updates the index directly. Changes made elsewhere are
+ * picked up when the index is refreshed, either when read after its time to live or periodically with
+ * {@link #setReconcileInterval(long)}.
+ * <p/>
+ * If refreshing keeps failing the cached values are returned until they are older than {@link #setMaxStaleTime(long)},
+ * after that readers get the exception.
+ * <p/>
+ * The cached objects are shared between callers and must not be modified.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class CachingElksTemplate extends ElksTemplate {
+
+    public static final long DEFAULT_ACCOUNT_DETAILS_TTL = 60000;
+    public static final long DEFAULT_PHONE_NUMBERS_TTL = 300000;
+    public static final long DEFAULT_NOT_FOUND_TTL = 60000;
+    public static final int DEFAULT_MAX_NOT_FOUND = 10000;
+    public static final long DEFAULT_MAX_STALE_TIME = 3600000;
+
+    private long accountDetailsTtl = DEFAULT_ACCOUNT_DETAILS_TTL;
+    private long phoneNumbersTtl = DEFAULT_PHONE_NUMBERS_TTL;
+    private long notFoundTtl = DEFAULT_NOT_FOUND_TTL;
+    private int maxNotFound = DEFAULT_MAX_NOT_FOUND;
+    private long maxStaleTime = DEFAULT_MAX_STALE_TIME;
+    private long reconcileInterval;
+    private volatile RefreshAheadValue<AccountDetails> accountDetails;
+    private volatile RefreshAheadValue<PhoneNumberIndex> phoneNumbers;
+    private final ConcurrentMap<String, Long> notFound = new ConcurrentHashMap<String, Long>();
+    private volatile long nextNotFoundPurge = System.nanoTime();
+    private ScheduledExecutorService reconciler;
+
+    public long getAccountDetailsTtl() {
+        return accountDetailsTtl;
+    }
+
+    /**
+     * Sets the time in milliseconds after which the account details are refreshed, defaults to one minute.
+     */
+    public void setAccountDetailsTtl(long accountDetailsTtl) {
+        Assert.isTrue(accountDetailsTtl > 0, "accountDetailsTtl must be positive");
+        this.accountDetailsTtl = accountDetailsTtl;
+    }
+
+    public long getPhoneNumbersTtl() {
+        return phoneNumbersTtl;
+    }
+
+    /**
+     * Sets the time in milliseconds after which the phone numbers are refreshed, defaults to five minutes.
+     */
+    public void setPhoneNumbersTtl(long phoneNumbersTtl) {
+        Assert.isTrue(phoneNumbersTtl > 0, "phoneNumbersTtl must be positive");
+        this.phoneNumbersTtl = phoneNumbersTtl;
+    }
+
+    public long getNotFoundTtl() {
+        return notFoundTtl;
+    }
+
+    /**
+     * Sets the time in milliseconds a phone number id that was not found is remembered, defaults to one minute.
+     */
+    public void setNotFoundTtl(long notFoundTtl) {
+        this.notFoundTtl = notFoundTtl;
+    }
+
+    public int getMaxNotFound() {
+        return maxNotFound;
+    }
+
+    /**
+     * Sets the maximum number of phone number ids remembered as not found, defaults to 10000. Ids not found while the
+     * limit is reached are not remembered and are queried again on the next lookup.
+     */
+    public void setMaxNotFound(int maxNotFound) {
+        Assert.isTrue(maxNotFound >= 0, "maxNotFound must not be negative");
+        this.maxNotFound = maxNotFound;
+    }
+
+    public long getMaxStaleTime() {
+        return maxStaleTime;
+    }
+
+    /**
+     * Sets the time in milliseconds after loading that a cached value is no longer returned when refreshing it fails,
+     * defaults to one hour. 0 returns the last loaded value for as long as refreshing fails. Takes effect when the
+     * values are first loaded.
+     */
+    public void setMaxStaleTime(long maxStaleTime) {
+        Assert.isTrue(maxStaleTime >= 0, "maxStaleTime must not be negative");
+        this.maxStaleTime = maxStaleTime;
+    }
+
+    public long getReconcileInterval() {
+        return reconcileInterval;
+    }
+
+    /**
+     * Sets the interval in milliseconds to refresh the cached values in the background even when they are not read,
+     * 0 disables periodic refreshing which is the default. Takes effect when the values are first loaded.
+     */
+    public void setReconcileInterval(long reconcileInterval) {
+        this.reconcileInterval = reconcileInterval;
+    }
+
+    @Override
+    public AccountDetails queryAccountDetails() throws ElksException {
+        return getAccountDetailsCache().get();
+    }
+
+    /**
+     * Returns the phone numbers from the cache, the list can not be modified.
+     */
+    @Override
+    public List<PhoneNumberDetails> queryPhoneNumbers() throws ElksException {
+        return getPhoneNumbersCache().get().numbers;
+    }
+
+    @Override
+    public PhoneNumberDetails queryPhoneNumber(String id) throws ElksException {
+        Assert.hasText(id);
+        PhoneNumberDetails number = getPhoneNumbersCache().get().byId.get(id);
+        if (number != null) {
+            return number;
+        }
+        Long expiry = notFound.get(id);
+        if (expiry != null) {
+            if (System.nanoTime() - expiry < 0) {
+                return null;
+            }
+            notFound.remove(id, expiry);
+        }
+        number = super.queryPhoneNumber(id);
+        if (number == null) {
+            rememberNotFound(id);
+        } else {
+            cache(number);
+        }
+        return number;
+    }
+
+    /**
+     * Returns the details of an allocated phone number by the number itself, in E.164 format, or null if there is no
+     * such number in the cached inventory.
+     */
+    public PhoneNumberDetails findPhoneNumber(String number) throws ElksException {
+        Assert.hasText(number);
+        return getPhoneNumbersCache().get().byNumber.get(number);
+    }
+
+    @Override
+    public PhoneNumberDetails allocatePhoneNumber(String country, String smsUrl) throws ElksException {
+        return cache(super.allocatePhoneNumber(country, smsUrl));
+    }
+
+    @Override
+    public PhoneNumberDetails updatePhoneNumber(String id, String smsUrl) throws ElksException {
+        return cache(super.updatePhoneNumber(id, smsUrl));
+    }
+
+    @Override
+    public PhoneNumberDetails deallocatePhoneNumber(String id) throws ElksException {
+        return cache(super.deallocatePhoneNumber(id));
+    }
+
+    /**
+     * Drops all cached values, the next readers wait for them to be loaded again.
+     */
+    public synchronized void invalidate() {
+        if (accountDetails != null) {
+            accountDetails.invalidate();
+        }
+        if (phoneNumbers != null) {
+            phoneNumbers.invalidate();
+        }
+        notFound.clear();
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (reconciler != null) {
+            reconciler.shutdownNow();
+            reconciler = null;
+        }
+        super.destroy();
+    }
+
+    /**
+     * Returns the number of phone number ids currently remembered as not found, including expired ones not yet purged.
+     */
+    int getNotFoundCount() {
+        return notFound.size();
+    }
+
+    /**
+     * Remembers a phone number id as not found. Expired ids are purged at most once per time to live, so lookups of
+     * many distinct ids do not grow the map beyond the ids looked up within the last time to live and never beyond
+     * the limit.
+     */
+    private void rememberNotFound(String id) {
+        long now = System.nanoTime();
+        if (now - nextNotFoundPurge >= 0) {
+            purgeNotFound(now);
+        }
+        if (notFound.size() < maxNotFound) {
+            notFound.put(id, now + TimeUnit.MILLISECONDS.toNanos(notFoundTtl));
+        }
+    }
+
+    private synchronized void purgeNotFound(long now) {
+        if (now - nextNotFoundPurge < 0) {
+            return;
+        }
+        for (Iterator<Map.Entry<String, Long>> it = notFound.entrySet().iterator(); it.hasNext(); ) {
+            if (now - it.next().getValue() >= 0) {
+                it.remove();
+            }
+        }
+        nextNotFoundPurge = now + TimeUnit.MILLISECONDS.toNanos(notFoundTtl);
+    }
+
+    /**
+     * Adds or replaces a phone number in the cached index.
+     */
+    private PhoneNumberDetails cache(PhoneNumberDetails number) {
+        if (number != null && number.getId() != null) {
+            notFound.remove(number.getId());
+            RefreshAheadValue<PhoneNumberIndex> cache = getPhoneNumbersCache();
+            synchronized (cache) {
+                PhoneNumberIndex index = cache.peek();
+                if (index != null) {
+                    cache.set(index.with(number));
+                }
+            }
+        }
+        return number;
+    }
+
+    private RefreshAheadValue<AccountDetails> getAccountDetailsCache() {
+        RefreshAheadValue<AccountDetails> cache = accountDetails;
+        return cache != null ? cache : createAccountDetailsCache();
+    }
+
+    private synchronized RefreshAheadValue<AccountDetails> createAccountDetailsCache() {
+        if (accountDetails == null) {
+            accountDetails = new RefreshAheadValue<AccountDetails>(new Callable<AccountDetails>() {
+                @Override
+                public AccountDetails call() {
+                    return CachingElksTemplate.super.queryAccountDetails();
+                }
+            }, getBatchExecutor(), accountDetailsTtl, maxStaleTime);
+            startReconciler();
+        }
+        return accountDetails;
+    }
+
+    private RefreshAheadValue<PhoneNumberIndex> getPhoneNumbersCache() {
+        RefreshAheadValue<PhoneNumberIndex> cache = phoneNumbers;
+        return cache != null ? cache : createPhoneNumbersCache();
+    }
+
+    private synchronized RefreshAheadValue<PhoneNumberIndex> createPhoneNumbersCache() {
+        if (phoneNumbers == null) {
+            phoneNumbers = new RefreshAheadValue<PhoneNumberIndex>(new Callable<PhoneNumberIndex>() {
+                @Override
+                public PhoneNumberIndex call() {
+                    return new PhoneNumberIndex(CachingElksTemplate.super.queryPhoneNumbers());
+                }
+            }, getBatchExecutor(), phoneNumbersTtl, maxStaleTime);
+            startReconciler();
+        }
+        return phoneNumbers;
+    }
+
+    private void startReconciler() {
+        if (reconcileInterval <= 0 || reconciler != null) {
+            return;
+        }
+        reconciler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("elks-cache"));
+        reconciler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        }, reconcileInterval, reconcileInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void reconcile() {
+        if (accountDetails != null && accountDetails.peek() != null) {
+            accountDetails.refresh();
+        }
+        if (phoneNumbers != null && phoneNumbers.peek() != null) {
+            phoneNumbers.refresh();
+        }
+    }
+
+    /**
+     * Immutable snapshot of the phone number inventory indexed by id and number.
+     */
+    private static class PhoneNumberIndex {
+
+        private final List<PhoneNumberDetails> numbers;
+        private final Map<String, PhoneNumberDetails> byId = new HashMap<String, PhoneNumberDetails>();
+        private final Map<String, PhoneNumberDetails> byNumber = new HashMap<String, PhoneNumberDetails>();
+
+        public PhoneNumberIndex(List<PhoneNumberDetails> numbers) {
+            this.numbers = Collections.unmodifiableList(new ArrayList<PhoneNumberDetails>(numbers));
+            for (PhoneNumberDetails number : numbers) {
+                byId.put(number.getId(), number);
+                if (number.getNumber() != null) {
+                    byNumber.put(number.getNumber(), number);
+                }
+            }
+        }
+
+        public PhoneNumberIndex with(PhoneNumberDetails number) {
+            List<PhoneNumberDetails> updated = new ArrayList<PhoneNumberDetails>(numbers.size() + 1);
+            boolean replaced = false;
+            for (PhoneNumberDetails existing : numbers) {
+                if (existing.getId().equals(number.getId())) {
+                    updated.add(number);
+                    replaced = true;
+                } else {
+                    updated.add(existing);
+                }
+            }
+            if (!replaced) {
+                updated.add(number);
+            }
+            return new PhoneNumberIndex(updated);
+        }
+    }
+}
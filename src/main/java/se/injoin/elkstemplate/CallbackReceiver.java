@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+/**
+ * Receives the form encoded bodies of the callbacks posted by the service.
+ *
+ * @author Tobias Mattsson
+ * @see ElksCallbackServer
+ * @since 1.0
+ */
+public interface CallbackReceiver {
+
+    /**
+     * Parses a callback body and queues it for processing.
+     *
+     * @return false if the callback was refused because the receiver is overloaded, the service should post it again
+     * later
+     * @throws IllegalArgumentException if the body is not a valid callback
+     */
+    boolean receive(byte[] body, int offset, int length);
+
+    void start();
+
+    void stop();
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import se.injoin.elkstemplate.support.DaemonThreadFactory;
+
+/**
+ * Sends SMS to single recipients by coalescing them into multi-recipient requests. Sends with the same sender,
+ * message, flash flag and delivery report URL made within a short window are merged into one request, which is sent
+ * when the window has passed or has collected the maximum number of recipients. Each caller gets a future for its own
+ * {@link SmsResponse}, picked from the responses of the merged request by the <code>to</code> number.
+ * <p/>
+ * Requests are sent with {@link ElksTemplate#sendSmsResumable(SmsRequest)} on an executor. When a batch of the merged
+ * request fails only the futures of its recipients fail, with an {@link ElksException} caused by the failure of the
+ * batch. Callers sending the same message to the same number in one window each get an SMS.
+ *
+ * @author Tobias Mattsson
+ * @see AsyncElksTemplate
+ * @since 1.0
+ */
+public class CoalescingSmsSender {
+
+    public static final long DEFAULT_MAX_DELAY = 10;
+
+    private static final Callable<SmsResponse> NOT_RUNNABLE = new Callable<SmsResponse>() {
+        @Override
+        public SmsResponse call() {
+            throw new IllegalStateException("Completed when the merged request is sent");
+        }
+    };
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ElksTemplate elksTemplate;
+    private final ConcurrentMap<Key, Window> windows = new ConcurrentHashMap<Key, Window>();
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    private int maxRecipients = ElksTemplate.DEFAULT_BATCH_LIMIT;
+    private Executor executor;
+    private ExecutorService defaultExecutor;
+    private ScheduledExecutorService scheduler;
+
+    public CoalescingSmsSender(ElksTemplate elksTemplate) {
+        Assert.notNull(elksTemplate);
+        this.elksTemplate = elksTemplate;
+    }
+
+    public ElksTemplate getElksTemplate() {
+        return elksTemplate;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Sets the time in milliseconds a send waits for others to be merged with, counted from the first send of a
+     * request.
+     */
+    public void setMaxDelay(long maxDelay) {
+        Assert.isTrue(maxDelay > 0, "maxDelay must be positive");
+        this.maxDelay = maxDelay;
+    }
+
+    public int getMaxRecipients() {
+        return maxRecipients;
+    }
+
+    /**
+     * Sets the number of recipients after which a merged request is sent without waiting for the rest of the window.
+     */
+    public void setMaxRecipients(int maxRecipients) {
+        Assert.isTrue(maxRecipients > 0, "maxRecipients must be positive");
+        this.maxRecipients = maxRecipients;
+    }
+
+    /**
+     * Returns the executor merged requests are sent on. If none is set a pool of daemon threads is created, it is
+     * shut down by {@link #destroy()}.
+     */
+    public synchronized Executor getExecutor() {
+        if (executor != null) {
+            return executor;
+        }
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("elks-coalesce"));
+        }
+        return defaultExecutor;
+    }
+
+    public synchronized void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @see ElksTemplate#sendSms(String, String, String)
+     */
+    public Future<SmsResponse> sendSms(String from, String recipient, String message) {
+        return sendSms(from, recipient, message, null);
+    }
+
+    /**
+     * @see ElksTemplate#sendSms(String, String, String)
+     */
+    public Future<SmsResponse> sendSms(String from, String recipient, String message, ElksCallback<SmsResponse> callback) {
+        return send(new Key(from, message, false, null), recipient, callback);
+    }
+
+    /**
+     * @see ElksTemplate#sendFlashSms(String, String, String)
+     */
+    public Future<SmsResponse> sendFlashSms(String from, String recipient, String message) {
+        return sendFlashSms(from, recipient, message, null);
+    }
+
+    /**
+     * @see ElksTemplate#sendFlashSms(String, String, String)
+     */
+    public Future<SmsResponse> sendFlashSms(String from, String recipient, String message, ElksCallback<SmsResponse> callback) {
+        return send(new Key(from, message, true, null), recipient, callback);
+    }
+
+    /**
+     * Sends a request with a single recipient.
+     *
+     * @see ElksTemplate#sendSms(SmsRequest)
+     */
+    public Future<SmsResponse> sendSms(SmsRequest smsRequest, ElksCallback<SmsResponse> callback) {
+        Assert.notNull(smsRequest);
+        Assert.isTrue(smsRequest.getRecipients() != null && smsRequest.getRecipients().size() == 1, "Request must have exactly one recipient");
+        Key key = new Key(smsRequest.getFrom(), smsRequest.getMessage(), smsRequest.isFlash(), smsRequest.getDeliveryReportUrl());
+        return send(key, smsRequest.getRecipients().get(0), callback);
+    }
+
+    /**
+     * Sends the requests collected so far without waiting for their windows to pass, then shuts down the scheduler
+     * and the default executor. Does not destroy the wrapped template.
+     */
+    public void destroy() {
+        for (Window window : windows.values()) {
+            flush(window);
+        }
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdown();
+                scheduler = null;
+            }
+            if (defaultExecutor != null) {
+                defaultExecutor.shutdown();
+                defaultExecutor = null;
+            }
+        }
+    }
+
+    private Future<SmsResponse> send(Key key, String recipient, ElksCallback<SmsResponse> callback) {
+        Assert.hasText(key.from);
+        Assert.hasText(key.message);
+        Assert.hasText(recipient);
+        PendingSms pending = new PendingSms(recipient, callback);
+        while (true) {
+            Window window = windows.get(key);
+            if (window == null) {
+                Window created = new Window(key);
+                window = windows.putIfAbsent(key, created);
+                if (window == null) {
+                    window = created;
+                    scheduleFlush(window);
+                }
+            }
+            int added = window.add(pending, maxRecipients);
+            if (added == Window.FULL) {
+                dispatch(window);
+            }
+            if (added != Window.CLOSED) {
+                return pending;
+            }
+            // Closed by another thread about to send it, start a new window
+            windows.remove(key, window);
+        }
+    }
+
+    private void scheduleFlush(final Window window) {
+        ScheduledExecutorService currentScheduler;
+        synchronized (this) {
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("elks-coalesce-timer"));
+            }
+            currentScheduler = scheduler;
+        }
+        currentScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush(window);
+            }
+        }, maxDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes a window and sends its request, unless already done by another thread.
+     */
+    private void flush(Window window) {
+        if (window.close()) {
+            dispatch(window);
+        }
+    }
+
+    /**
+     * Sends the request of a closed window on the executor.
+     */
+    private void dispatch(final Window window) {
+        windows.remove(window.key, window);
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                sendWindow(window);
+            }
+        });
+    }
+
+    private void sendWindow(Window window) {
+        List<PendingSms> pendingList = window.pending;
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom(window.key.from);
+        smsRequest.setMessage(window.key.message);
+        smsRequest.setFlash(window.key.flash);
+        smsRequest.setDeliveryReportUrl(window.key.deliveryReportUrl);
+        for (PendingSms pending : pendingList) {
+            smsRequest.addRecipient(pending.recipient);
+        }
+        SmsSendResult result;
+        try {
+            result = elksTemplate.sendSmsResumable(smsRequest);
+        } catch (RuntimeException e) {
+            for (PendingSms pending : pendingList) {
+                pending.fail(e);
+            }
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sent [" + pendingList.size() + "] coalesced SMS in [" + result.getBatches().size() + "] batches");
+        }
+        for (SmsBatch batch : result.getBatches()) {
+            List<PendingSms> batchPending = pendingList.subList(batch.getStartIndex(), batch.getEndIndex());
+            if (batch.getStatus() == SmsBatch.Status.SENT) {
+                complete(batchPending, batch.getResponses());
+            } else {
+                ElksException exception = new ElksException("Could not send text message", batch.getException());
+                for (PendingSms pending : batchPending) {
+                    pending.fail(exception);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands each caller the response with its number. Responses whose number is not one of the recipients as given,
+     * e.g. when the service formats it differently, are handed out in order to the callers left.
+     */
+    private static void complete(List<PendingSms> pendingList, List<SmsResponse> responses) {
+        Map<String, LinkedList<PendingSms>> byRecipient = new HashMap<String, LinkedList<PendingSms>>();
+        for (PendingSms pending : pendingList) {
+            LinkedList<PendingSms> list = byRecipient.get(pending.recipient);
+            if (list == null) {
+                list = new LinkedList<PendingSms>();
+                byRecipient.put(pending.recipient, list);
+            }
+            list.add(pending);
+        }
+        List<SmsResponse> unmatched = new ArrayList<SmsResponse>();
+        for (SmsResponse response : responses) {
+            LinkedList<PendingSms> list = byRecipient.get(response.getTo());
+            if (list != null && !list.isEmpty()) {
+                list.removeFirst().complete(response);
+            } else {
+                unmatched.add(response);
+            }
+        }
+        int next = 0;
+        for (PendingSms pending : pendingList) {
+            if (!pending.isDone()) {
+                if (next < unmatched.size()) {
+                    pending.complete(unmatched.get(next++));
+                } else {
+                    pending.fail(new ElksException("No response for recipient [" + pending.recipient + "]"));
+                }
+            }
+        }
+    }
+
+    /**
+     * The fields a send must share with others to be merged with them.
+     */
+    private static class Key {
+
+        private final String from;
+        private final String message;
+        private final boolean flash;
+        private final String deliveryReportUrl;
+
+        public Key(String from, String message, boolean flash, String deliveryReportUrl) {
+            this.from = from;
+            this.message = message;
+            this.flash = flash;
+            this.deliveryReportUrl = deliveryReportUrl;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return flash == key.flash
+                    && (from != null ? from.equals(key.from) : key.from == null)
+                    && (message != null ? message.equals(key.message) : key.message == null)
+                    && (deliveryReportUrl != null ? deliveryReportUrl.equals(key.deliveryReportUrl) : key.deliveryReportUrl == null);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = from != null ? from.hashCode() : 0;
+            result = 31 * result + (message != null ? message.hashCode() : 0);
+            result = 31 * result + (flash ? 1 : 0);
+            result = 31 * result + (deliveryReportUrl != null ? deliveryReportUrl.hashCode() : 0);
+            return result;
+        }
+    }
+
+    /**
+     * The sends collected for one request. Once closed nothing more is added and the request is sent.
+     */
+    private static class Window {
+
+        static final int ADDED = 0;
+        static final int FULL = 1;
+        static final int CLOSED = 2;
+
+        private final Key key;
+        private final List<PendingSms> pending = new ArrayList<PendingSms>();
+        private boolean closed;
+
+        public Window(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * Adds a send unless the window is closed, a window that becomes full is closed and must be sent by the
+         * caller.
+         */
+        public synchronized int add(PendingSms sms, int maxRecipients) {
+            if (closed) {
+                return CLOSED;
+            }
+            pending.add(sms);
+            if (pending.size() >= maxRecipients) {
+                closed = true;
+                return FULL;
+            }
+            return ADDED;
+        }
+
+        /**
+         * Closes the window, returns true for the caller that closed it and is to send it.
+         */
+        public synchronized boolean close() {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            return true;
+        }
+    }
+
+    private static class PendingSms extends ElksFutureTask<SmsResponse> {
+
+        private final String recipient;
+
+        public PendingSms(String recipient, ElksCallback<SmsResponse> callback) {
+            super(NOT_RUNNABLE, callback);
+            this.recipient = recipient;
+        }
+
+        public void complete(SmsResponse response) {
+            set(response);
+        }
+
+        public void fail(RuntimeException exception) {
+            setException(exception);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.Date;
+
+/**
+ * Delivery report for a sent SMS, posted by the service to the delivery report URL of the request.
+ *
+ * @author Tobias Mattsson
+ * @see SmsRequest#setDeliveryReportUrl(String)
+ * @see DeliveryReportReceiver
+ * @since 1.0
+ */
+public class DeliveryReport {
+
+    public static final String STATUS_DELIVERED = "delivered";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_SENT = "sent";
+
+    /**
+     * Value of {@link #getDeliveredMillis()} when the report has no delivery time.
+     */
+    public static final long UNDEFINED = Long.MIN_VALUE;
+
+    private final String id;
+    private final String status;
+    private final long deliveredMillis;
+
+    public DeliveryReport(String id, String status, long deliveredMillis) {
+        this.id = id;
+        this.status = status;
+        this.deliveredMillis = deliveredMillis;
+    }
+
+    /**
+     * The id of the SMS, as in {@link SmsResponse#getId()}.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The status, {@link #STATUS_DELIVERED}, {@link #STATUS_FAILED} or another status reported by the service.
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    public boolean isDelivered() {
+        return STATUS_DELIVERED.equals(status);
+    }
+
+    public boolean isFailed() {
+        return STATUS_FAILED.equals(status);
+    }
+
+    /**
+     * The time of delivery in milliseconds since the epoch or {@link #UNDEFINED}.
+     */
+    public long getDeliveredMillis() {
+        return deliveredMillis;
+    }
+
+    /**
+     * The time of delivery or null if not included in the report.
+     */
+    public Date getDelivered() {
+        return deliveredMillis == UNDEFINED ? null : new Date(deliveredMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryReport{" +
+                "id='" + id + '\'' +
+                ", status='" + status + '\'' +
+                ", delivered=" + getDelivered() +
+                '}';
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+/**
+ * Receives delivery reports from a {@link DeliveryReportReceiver}. Called from the dispatcher threads of the receiver,
+ * a slow listener delays the reports queued after it.
+ *
+ * @author Tobias Mattsson
+ * @see DeliveryReportReceiver#addListener(DeliveryReportListener)
+ * @since 1.0
+ */
+public interface DeliveryReportListener {
+
+    void deliveryReportReceived(DeliveryReport report);
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import se.injoin.elkstemplate.support.DaemonThreadFactory;
+import se.injoin.elkstemplate.support.FormParser;
+
+/**
+ * Receives the delivery reports the service posts to the delivery report URL of sent messages and passes them on to
+ * listeners. The receiver is not tied to a HTTP server, {@link #receive(byte[], int, int)} takes the form encoded body
+ * of a request from any server and {@link ElksCallbackServer} provides one.
+ * <p/>
+ * Bodies are parsed on the calling thread without copying and the reports are put on a bounded queue, dispatcher
+ * threads take them from the queue and call the listeners. When the queue is full a report is refused rather than
+ * waited for so that the HTTP request can be answered with an error and the service posts the report again later.
+ *
+ * @author Tobias Mattsson
+ * @see SmsRequest#setDeliveryReportUrl(String)
+ * @since 1.0
+ */
+public class DeliveryReportReceiver implements CallbackReceiver {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_DISPATCHERS = 1;
+
+    private static final int MAX_DISPATCH_SIZE = 256;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final List<DeliveryReportListener> listeners = new CopyOnWriteArrayList<DeliveryReportListener>();
+    private final ThreadLocal<FormParser> parsers = new ThreadLocal<FormParser>() {
+        @Override
+        protected FormParser initialValue() {
+            return new FormParser();
+        }
+    };
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int dispatchers = DEFAULT_DISPATCHERS;
+    private BlockingQueue<DeliveryReport> queue = new ArrayBlockingQueue<DeliveryReport>(DEFAULT_QUEUE_CAPACITY);
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private volatile boolean running;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+
+    public void addListener(DeliveryReportListener listener) {
+        Assert.notNull(listener);
+        listeners.add(listener);
+    }
+
+    public void removeListener(DeliveryReportListener listener) {
+        listeners.remove(listener);
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the number of reports that can wait for the listeners before new reports are refused. Must be set before
+     * the receiver is started.
+     */
+    public synchronized void setQueueCapacity(int queueCapacity) {
+        Assert.isTrue(queueCapacity > 0, "queueCapacity must be positive");
+        Assert.state(!running, "Cannot change queue capacity of a started receiver");
+        this.queueCapacity = queueCapacity;
+        this.queue = new ArrayBlockingQueue<DeliveryReport>(queueCapacity);
+    }
+
+    public int getDispatchers() {
+        return dispatchers;
+    }
+
+    /**
+     * Sets the number of threads calling the listeners. With more than one the listeners may see reports out of order
+     * and must be thread-safe.
+     */
+    public void setDispatchers(int dispatchers) {
+        Assert.isTrue(dispatchers > 0, "dispatchers must be positive");
+        this.dispatchers = dispatchers;
+    }
+
+    /**
+     * Starts the dispatcher threads.
+     */
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        DaemonThreadFactory threadFactory = new DaemonThreadFactory("elks-delivery-report");
+        for (int i = 0; i < dispatchers; i++) {
+            Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the dispatcher threads after the queued reports have been passed to the listeners.
+     */
+    @Override
+    public void stop() {
+        List<Thread> stopping;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopping = new ArrayList<Thread>(threads);
+            threads.clear();
+        }
+        boolean interrupted = false;
+        for (Thread thread : stopping) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parses a form encoded delivery report and queues it for the listeners.
+     *
+     * @return false if the queue is full and the report was refused
+     * @throws IllegalArgumentException if the body is not a valid delivery report
+     */
+    @Override
+    public boolean receive(byte[] body, int offset, int length) {
+        DeliveryReport report;
+        try {
+            report = parse(parsers.get().reset(body, offset, length));
+        } catch (IllegalArgumentException e) {
+            invalid.incrementAndGet();
+            throw e;
+        }
+        return receive(report);
+    }
+
+    /**
+     * Queues a delivery report for the listeners.
+     *
+     * @return false if the queue is full and the report was refused
+     */
+    public boolean receive(DeliveryReport report) {
+        Assert.notNull(report);
+        received.incrementAndGet();
+        if (!queue.offer(report)) {
+            refused.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Refused delivery report [" + report.getId() + "], queue is full");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the fields of a delivery report. Fields other than id, status and delivered are ignored.
+     */
+    protected DeliveryReport parse(FormParser parser) {
+        String id = null;
+        String status = null;
+        long delivered = DeliveryReport.UNDEFINED;
+        while (parser.next()) {
+            if (parser.isName("id")) {
+                id = parser.getValue();
+            } else if (parser.isName("status")) {
+                status = status(parser);
+            } else if (parser.isName("delivered")) {
+                try {
+                    delivered = parser.getTimestampValue();
+                } catch (ParseException e) {
+                    throw new IllegalArgumentException("Invalid delivered timestamp [" + parser.getValue() + "]", e);
+                }
+            }
+        }
+        if (id == null || id.length() == 0 || status == null) {
+            throw new IllegalArgumentException("Delivery report without id or status");
+        }
+        return new DeliveryReport(id, status, delivered);
+    }
+
+    private static String status(FormParser parser) {
+        // The known statuses are shared constants, sparing a string per report
+        if (parser.isValue(DeliveryReport.STATUS_DELIVERED)) {
+            return DeliveryReport.STATUS_DELIVERED;
+        }
+        if (parser.isValue(DeliveryReport.STATUS_FAILED)) {
+            return DeliveryReport.STATUS_FAILED;
+        }
+        if (parser.isValue(DeliveryReport.STATUS_SENT)) {
+            return DeliveryReport.STATUS_SENT;
+        }
+        return parser.getValue();
+    }
+
+    /**
+     * Returns the number of reports waiting for the listeners.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getRefusedCount() {
+        return refused.get();
+    }
+
+    public long getInvalidCount() {
+        return invalid.get();
+    }
+
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    private void dispatch() {
+        BlockingQueue<DeliveryReport> queue = this.queue;
+        List<DeliveryReport> reports = new ArrayList<DeliveryReport>(MAX_DISPATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            DeliveryReport first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                continue;
+            }
+            reports.add(first);
+            queue.drainTo(reports, MAX_DISPATCH_SIZE - 1);
+            for (DeliveryReport report : reports) {
+                for (DeliveryReportListener listener : listeners) {
+                    try {
+                        listener.deliveryReportReceived(report);
+                    } catch (RuntimeException e) {
+                        logger.error("Delivery report listener failed for [" + report.getId() + "]", e);
+                    }
+                }
+            }
+            dispatched.addAndGet(reports.size());
+            reports.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryReportReceiver{" +
+                "queueSize=" + getQueueSize() +
+                ", received=" + received +
+                ", refused=" + refused +
+                ", invalid=" + invalid +
+                ", dispatched=" + dispatched +
+                '}';
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.Date;
+
+/**
+ * Delivery status of a sent SMS as tracked by a {@link DeliveryStatusIndex}.
+ *
+ * @author Tobias Mattsson
+ * @see DeliveryStatusIndex#get(String)
+ * @since 1.0
+ */
+public class DeliveryStatus {
+
+    public enum Status {
+        /**
+         * The SMS was sent, no final delivery report has been received.
+         */
+        SENT,
+        /**
+         * A delivery report says the SMS was delivered.
+         */
+        DELIVERED,
+        /**
+         * A delivery report says the SMS could not be delivered.
+         */
+        FAILED
+    }
+
+    private final String id;
+    private final Status status;
+    private final long sentMillis;
+    private final long deliveredMillis;
+
+    public DeliveryStatus(String id, Status status, long sentMillis, long deliveredMillis) {
+        this.id = id;
+        this.status = status;
+        this.sentMillis = sentMillis;
+        this.deliveredMillis = deliveredMillis;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * The time the SMS was sent in milliseconds since the epoch, truncated to seconds, or
+     * {@link DeliveryReport#UNDEFINED} if a delivery report arrived before the send was recorded.
+     */
+    public long getSentMillis() {
+        return sentMillis;
+    }
+
+    public Date getSent() {
+        return sentMillis == DeliveryReport.UNDEFINED ? null : new Date(sentMillis);
+    }
+
+    /**
+     * The time of delivery in milliseconds since the epoch, truncated to seconds, or {@link DeliveryReport#UNDEFINED}.
+     */
+    public long getDeliveredMillis() {
+        return deliveredMillis;
+    }
+
+    public Date getDelivered() {
+        return deliveredMillis == DeliveryReport.UNDEFINED ? null : new Date(deliveredMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryStatus{" +
+                "id='" + id + '\'' +
+                ", status=" + status +
+                ", sent=" + getSent() +
+                ", delivered=" + getDelivered() +
+                '}';
+    }
+}
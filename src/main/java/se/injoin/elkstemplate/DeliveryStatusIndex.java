@@ -0,0 +1,595 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Index of the delivery status of sent SMS, meant for tens of millions of messages. Records sends as a
+ * {@link SmsResponseHandler}, pass it to {@link ElksTemplate#sendSms(SmsRequest, SmsResponseHandler)}, and delivery
+ * reports as a {@link DeliveryReportListener}, add it to a {@link DeliveryReportReceiver}.
+ * <p/>
+ * Message ids, an "s" followed by up to 32 hex digits, are kept as two <code>long</code>s in open addressed tables of
+ * primitive arrays together with the times sent and delivered in seconds and the status. That is 32 bytes a slot, 60
+ * to 120 bytes per message of capacity with the free slots of all generations, instead of the several hundred of a map
+ * of strings to objects. Ids are compared by value, ids differing only in
+ * leading zeros share an entry. Ids of any other form are not tracked.
+ * <p/>
+ * Updates and lookups are lock-free. A slot is claimed by a compare-and-set on its state, a lookup finding a slot being
+ * claimed waits for it to be published, so concurrent records for the same id end up in one entry.
+ * <p/>
+ * Messages are evicted by age in whole tables rather than one by one. The index holds a number of generations, new
+ * messages go into the newest and a new generation is started every <code>ttl / (generations - 1)</code>, dropping the
+ * oldest. A message is therefore kept for at least the time to live and at most <code>generations / (generations -
+ * 1)</code> of it. A generation holds <code>capacity / (generations - 1)</code> messages, when it fills up a new one is
+ * started early which shortens how long messages are kept.
+ *
+ * @author Tobias Mattsson
+ * @see DeliveryStatus
+ * @since 1.0
+ */
+public class DeliveryStatusIndex implements SmsResponseHandler, DeliveryReportListener {
+
+    public static final int DEFAULT_GENERATIONS = 4;
+
+    private static final int SNAPSHOT_MAGIC = 0x454c4b53;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int MAX_ID_DIGITS = 32;
+    private static final int MAX_TABLE_SIZE = Integer.highestOneBit(Integer.MAX_VALUE / Generation.SLOT_SIZE);
+
+    /**
+     * The largest number of messages a generation can hold, three quarters of the largest table.
+     */
+    public static final int MAX_GENERATION_CAPACITY = MAX_TABLE_SIZE / 4 * 3;
+
+    private static final byte EMPTY = 0;
+    private static final byte CLAIMED = 1;
+    private static final byte SENT = 2;
+    private static final byte DELIVERED = 3;
+    private static final byte FAILED = 4;
+
+    /**
+     * Values of the hex digits by character, -1 for other ASCII characters.
+     */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        for (int c = 0; c < HEX_VALUES.length; c++) {
+            HEX_VALUES[c] = (byte) Character.digit((char) c, 16);
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final int generationCapacity;
+    private final int generations;
+    private final long rotationInterval;
+    private volatile Generation[] live;
+
+    private final AtomicLong untracked = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+
+    /**
+     * @param capacity the number of messages sent within the time to live
+     * @param ttl the time in milliseconds to keep messages
+     */
+    public DeliveryStatusIndex(int capacity, long ttl) {
+        this(capacity, ttl, DEFAULT_GENERATIONS);
+    }
+
+    /**
+     * @param capacity the number of messages sent within the time to live, at most {@link #MAX_GENERATION_CAPACITY}
+     * per generation after the first
+     * @param ttl the time in milliseconds to keep messages
+     * @param generations the number of generations, more gives a more precise time to live for the same capacity but
+     * needs more memory
+     */
+    public DeliveryStatusIndex(int capacity, long ttl, int generations) {
+        Assert.isTrue(capacity > 0, "capacity must be positive");
+        Assert.isTrue(ttl > 0, "ttl must be positive");
+        Assert.isTrue(generations >= 2, "generations must be at least 2");
+        this.generations = generations;
+        long perGeneration = (capacity + (long) generations - 2) / (generations - 1);
+        Assert.isTrue(perGeneration <= MAX_GENERATION_CAPACITY, "capacity [" + capacity + "] over [" + (generations - 1)
+                + "] generations exceeds the maximum of [" + MAX_GENERATION_CAPACITY + "] per generation, use more generations");
+        this.generationCapacity = (int) perGeneration;
+        this.rotationInterval = Math.max(1, ttl / (generations - 1));
+        this.live = new Generation[]{new Generation(System.currentTimeMillis(), generationCapacity)};
+    }
+
+    /**
+     * Records a sent message.
+     *
+     * @return false if the id is not of a form that can be tracked
+     */
+    public boolean recordSent(String id, long sentMillis) {
+        return record(id, SENT, seconds(sentMillis), 0);
+    }
+
+    /**
+     * Records the status of a message from a delivery report. A message that has reached a final status stays
+     * delivered or failed if a send is recorded for it afterwards.
+     *
+     * @return false if the id is not of a form that can be tracked
+     */
+    public boolean recordStatus(String id, DeliveryStatus.Status status, long deliveredMillis) {
+        Assert.notNull(status);
+        byte state = status == DeliveryStatus.Status.DELIVERED ? DELIVERED : (status == DeliveryStatus.Status.FAILED ? FAILED : SENT);
+        return record(id, state, 0, seconds(deliveredMillis));
+    }
+
+    /**
+     * Records a message as sent at the time it was created, or now if the response has no creation time.
+     */
+    @Override
+    public void handleResponse(SmsResponse response) {
+        recordSent(response.getId(), response.getCreated() != null ? response.getCreated().getTime() : System.currentTimeMillis());
+    }
+
+    @Override
+    public void deliveryReportReceived(DeliveryReport report) {
+        DeliveryStatus.Status status;
+        if (report.isDelivered()) {
+            status = DeliveryStatus.Status.DELIVERED;
+        } else if (report.isFailed()) {
+            status = DeliveryStatus.Status.FAILED;
+        } else {
+            status = DeliveryStatus.Status.SENT;
+        }
+        recordStatus(report.getId(), status, report.getDeliveredMillis());
+    }
+
+    /**
+     * Returns the tracked status of a message or null if it is not tracked.
+     */
+    public DeliveryStatus get(String id) {
+        if (!isTrackable(id)) {
+            return null;
+        }
+        long high = high(id);
+        long low = low(id);
+        long now = System.currentTimeMillis();
+        for (Generation generation : live) {
+            if (!isExpired(generation, now)) {
+                int i = generation.find(high, low);
+                if (i >= 0) {
+                    return generation.read(i, id);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the status of a message or null if it is not tracked, without creating a {@link DeliveryStatus}.
+     */
+    public DeliveryStatus.Status getStatus(String id) {
+        if (!isTrackable(id)) {
+            return null;
+        }
+        long high = high(id);
+        long low = low(id);
+        long now = System.currentTimeMillis();
+        for (Generation generation : live) {
+            if (!isExpired(generation, now)) {
+                int i = generation.find(high, low);
+                if (i >= 0) {
+                    return status(generation.state(i));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of messages tracked.
+     */
+    public int size() {
+        int size = 0;
+        long now = System.currentTimeMillis();
+        for (Generation generation : live) {
+            if (!isExpired(generation, now)) {
+                size += generation.size.get();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Starts a new generation if it is time to, dropping the oldest. Otherwise done when recording a message.
+     */
+    public void evictExpired() {
+        Generation current = live[0];
+        long now = System.currentTimeMillis();
+        if (now - current.startMillis >= rotationInterval) {
+            rotate(current, now);
+        }
+    }
+
+    public long getUntrackedCount() {
+        return untracked.get();
+    }
+
+    public long getRotationCount() {
+        return rotations.get();
+    }
+
+    /**
+     * Writes the tracked messages to a file, replacing it once written. Each message is written as it is when reached,
+     * messages recorded while writing may or may not be included.
+     */
+    public void writeSnapshot(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        Generation[] generations = live;
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Generation generation : generations) {
+            if (!isExpired(generation, now)) {
+                count++;
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 64 * 1024));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(count);
+            for (Generation generation : generations) {
+                if (!isExpired(generation, now)) {
+                    generation.writeTo(out);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+            throw new IOException("Could not rename [" + temporary + "] to [" + file + "]");
+        }
+    }
+
+    /**
+     * Replaces the tracked messages with those of a snapshot. Generations that have expired since the snapshot was
+     * written are skipped.
+     */
+    public void readSnapshot(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        List<Generation> loaded = new ArrayList<Generation>();
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("[" + file + "] is not a delivery status snapshot");
+            }
+            int count = in.readInt();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                Generation generation = new Generation(in.readLong(), generationCapacity);
+                generation.readFrom(in);
+                if (!isExpired(generation, now) && loaded.size() < generations) {
+                    loaded.add(generation);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (loaded.isEmpty()) {
+            loaded.add(new Generation(System.currentTimeMillis(), generationCapacity));
+        }
+        synchronized (this) {
+            live = loaded.toArray(new Generation[loaded.size()]);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Read [" + size() + "] delivery statuses from [" + file + "]");
+        }
+    }
+
+    private boolean record(String id, byte state, int sent, int delivered) {
+        if (!isTrackable(id)) {
+            untracked.incrementAndGet();
+            return false;
+        }
+        long high = high(id);
+        long low = low(id);
+        long now = System.currentTimeMillis();
+        while (true) {
+            Generation[] generations = live;
+            Generation current = generations[0];
+            if (now - current.startMillis >= rotationInterval) {
+                rotate(current, now);
+                continue;
+            }
+            for (int g = 1; g < generations.length; g++) {
+                Generation generation = generations[g];
+                if (!isExpired(generation, now)) {
+                    int i = generation.find(high, low);
+                    if (i >= 0) {
+                        generation.update(i, state, sent, delivered);
+                        return true;
+                    }
+                }
+            }
+            if (current.put(high, low, state, sent, delivered)) {
+                return true;
+            }
+            rotate(current, now);
+        }
+    }
+
+    private synchronized void rotate(Generation current, long now) {
+        Generation[] generations = live;
+        if (generations[0] != current) {
+            // Another thread rotated first
+            return;
+        }
+        Generation[] rotated = new Generation[Math.min(generations.length + 1, this.generations)];
+        rotated[0] = new Generation(now, generationCapacity);
+        System.arraycopy(generations, 0, rotated, 1, rotated.length - 1);
+        live = rotated;
+        rotations.incrementAndGet();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Started delivery status generation, previous held [" + current.size.get() + "] messages");
+        }
+    }
+
+    private boolean isExpired(Generation generation, long now) {
+        return now - generation.startMillis >= generations * rotationInterval;
+    }
+
+    private static DeliveryStatus.Status status(int state) {
+        switch (state) {
+            case DELIVERED:
+                return DeliveryStatus.Status.DELIVERED;
+            case FAILED:
+                return DeliveryStatus.Status.FAILED;
+            default:
+                return DeliveryStatus.Status.SENT;
+        }
+    }
+
+    private static int seconds(long millis) {
+        // Unsigned seconds since the epoch last until 2106, zero is undefined
+        return millis == DeliveryReport.UNDEFINED || millis < 1000 ? 0 : (int) (millis / 1000);
+    }
+
+    private static long millis(int seconds) {
+        return seconds == 0 ? DeliveryReport.UNDEFINED : (seconds & 0xffffffffL) * 1000;
+    }
+
+    static boolean isTrackable(String id) {
+        int length = id == null ? 0 : id.length();
+        if (length < 2 || length > MAX_ID_DIGITS + 1 || id.charAt(0) != 's') {
+            return false;
+        }
+        for (int i = 1; i < length; i++) {
+            char c = id.charAt(i);
+            if (c >= HEX_VALUES.length || HEX_VALUES[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of the hex digits before the last 16.
+     */
+    static long high(String id) {
+        long value = 0;
+        for (int i = 1; i < id.length() - 16; i++) {
+            value = (value << 4) | HEX_VALUES[id.charAt(i)];
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value of the last 16 hex digits.
+     */
+    static long low(String id) {
+        long value = 0;
+        for (int i = Math.max(1, id.length() - 16); i < id.length(); i++) {
+            value = (value << 4) | HEX_VALUES[id.charAt(i)];
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryStatusIndex{" +
+                "size=" + size() +
+                ", generations=" + live.length +
+                ", untracked=" + untracked +
+                ", rotations=" + rotations +
+                '}';
+    }
+
+    /**
+     * Open addressed table with linear probing. Each slot is four longs in one array, its state, the two halves of the
+     * id and the times sent and delivered in seconds packed in one long, so a probe reads a single cache line. Slots
+     * are never cleared, so an empty slot ends a probe.
+     */
+    private static final class Generation {
+
+        private static final int SLOT_SIZE = 4;
+        private static final int STATE = 0;
+        private static final int HIGH = 1;
+        private static final int LOW = 2;
+        private static final int TIMES = 3;
+
+        private final long startMillis;
+        private final int limit;
+        private final int mask;
+        private final AtomicLongArray slots;
+        private final AtomicInteger size = new AtomicInteger();
+
+        private Generation(long startMillis, int capacity) {
+            int tableSize = 16;
+            while (tableSize < MAX_TABLE_SIZE && tableSize * 3L / 4 < capacity) {
+                tableSize <<= 1;
+            }
+            this.startMillis = startMillis;
+            this.limit = capacity;
+            this.mask = tableSize - 1;
+            this.slots = new AtomicLongArray(tableSize * SLOT_SIZE);
+        }
+
+        private int find(long high, long low) {
+            int i = hash(high, low) & mask;
+            while (true) {
+                int slot = i * SLOT_SIZE;
+                long state = slots.get(slot + STATE);
+                if (state == EMPTY) {
+                    return -1;
+                }
+                if (state == CLAIMED) {
+                    await(slot);
+                }
+                if (slots.get(slot + HIGH) == high && slots.get(slot + LOW) == low) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        /**
+         * Inserts an id or updates it if already present.
+         *
+         * @return false if the id is not present and the generation is full
+         */
+        private boolean put(long high, long low, byte state, int sent, int delivered) {
+            int i = hash(high, low) & mask;
+            while (true) {
+                int slot = i * SLOT_SIZE;
+                long current = slots.get(slot + STATE);
+                if (current == EMPTY) {
+                    if (size.incrementAndGet() > limit) {
+                        size.decrementAndGet();
+                        return false;
+                    }
+                    if (slots.compareAndSet(slot + STATE, EMPTY, CLAIMED)) {
+                        slots.set(slot + HIGH, high);
+                        slots.set(slot + LOW, low);
+                        slots.set(slot + TIMES, times(sent, delivered));
+                        // Publishes the slot to threads waiting in await
+                        slots.set(slot + STATE, state);
+                        return true;
+                    }
+                    // Lost the slot to another thread, it may have claimed it for the same id
+                    size.decrementAndGet();
+                    continue;
+                }
+                if (current == CLAIMED) {
+                    await(slot);
+                }
+                if (slots.get(slot + HIGH) == high && slots.get(slot + LOW) == low) {
+                    update(i, state, sent, delivered);
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private void update(int i, byte state, int sent, int delivered) {
+            int slot = i * SLOT_SIZE;
+            while (true) {
+                long times = slots.get(slot + TIMES);
+                int currentSent = (int) (times >>> 32);
+                int currentDelivered = (int) times;
+                long updated = times(currentSent != 0 ? currentSent : sent, delivered != 0 ? delivered : currentDelivered);
+                if (updated == times || slots.compareAndSet(slot + TIMES, times, updated)) {
+                    break;
+                }
+            }
+            if (state != SENT) {
+                slots.set(slot + STATE, state);
+            }
+        }
+
+        private int state(int i) {
+            return (int) slots.get(i * SLOT_SIZE + STATE);
+        }
+
+        private DeliveryStatus read(int i, String id) {
+            int state = state(i);
+            long times = slots.get(i * SLOT_SIZE + TIMES);
+            return new DeliveryStatus(id, status(state), millis((int) (times >>> 32)), millis((int) times));
+        }
+
+        private void await(int slot) {
+            while (slots.get(slot + STATE) == CLAIMED) {
+                Thread.yield();
+            }
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(startMillis);
+            int tableSize = mask + 1;
+            for (int i = 0; i < tableSize; i++) {
+                int slot = i * SLOT_SIZE;
+                long state = slots.get(slot + STATE);
+                if (state > CLAIMED) {
+                    out.writeByte((int) state);
+                    out.writeLong(slots.get(slot + HIGH));
+                    out.writeLong(slots.get(slot + LOW));
+                    out.writeLong(slots.get(slot + TIMES));
+                }
+            }
+            out.writeByte(EMPTY);
+        }
+
+        private void readFrom(DataInputStream in) throws IOException {
+            byte state;
+            while ((state = in.readByte()) != EMPTY) {
+                long high = in.readLong();
+                long low = in.readLong();
+                long times = in.readLong();
+                // Entries beyond the capacity, if it was lowered since the snapshot was written, are dropped
+                put(high, low, state, (int) (times >>> 32), (int) times);
+            }
+        }
+
+        private static long times(int sent, int delivered) {
+            return ((long) sent << 32) | (delivered & 0xffffffffL);
+        }
+
+        /**
+         * Mixes the halves of the id with the finalizer of MurmurHash3, ids from the service are random but other ids
+         * may be sequential.
+         */
+        private static int hash(long high, long low) {
+            long h = low ^ (high * 0x9e3779b97f4a7c15L);
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return (int) h;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+/**
+ * Callback for the result of an asynchronous operation. Called by the thread that performed the operation.
+ *
+ * @author Tobias Mattsson
+ * @see AsyncElksTemplate
+ * @since 1.0
+ */
+public interface ElksCallback<T> {
+
+    /**
+     * Called when the operation completed with the same result as the corresponding method in {@link ElksTemplate}.
+     */
+    void onSuccess(T result);
+
+    /**
+     * Called when the operation failed with the exception thrown by the corresponding method in {@link ElksTemplate},
+     * an {@link ElksException} unless the arguments were invalid.
+     */
+    void onFailure(RuntimeException exception);
+}
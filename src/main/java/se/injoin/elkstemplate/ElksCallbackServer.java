@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import se.injoin.elkstemplate.support.DaemonThreadFactory;
+
+/**
+ * Lightweight HTTP server for the callbacks posted by the service, built on the HTTP server included in the JDK. For
+ * applications already running a servlet container the receivers can be called from a servlet or controller instead.
+ * <p/>
+ * Requests are answered with 200 when accepted, 400 when the body is invalid, 405 for methods other than POST, 413 for
+ * bodies larger than the maximum and 503 when the receiver queue is full, which makes the service try again later.
+ * Bodies are read into a buffer kept per server thread.
+ *
+ * @author Tobias Mattsson
+ * @see DeliveryReportReceiver
+ * @see IncomingSmsReceiver
+ * @since 1.0
+ */
+public class ElksCallbackServer {
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_MAX_BODY_SIZE = 16 * 1024;
+    public static final int DEFAULT_BACKLOG = 1024;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final InetSocketAddress address;
+    private int threads = DEFAULT_THREADS;
+    private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private int backlog = DEFAULT_BACKLOG;
+    private final Map<String, CallbackReceiver> receivers = new LinkedHashMap<String, CallbackReceiver>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[1024];
+        }
+    };
+
+    /**
+     * @param port the port to listen on, 0 for any free port
+     */
+    public ElksCallbackServer(int port) {
+        this(new InetSocketAddress(port));
+    }
+
+    public ElksCallbackServer(InetSocketAddress address) {
+        Assert.notNull(address);
+        this.address = address;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads handling requests.
+     */
+    public void setThreads(int threads) {
+        Assert.isTrue(threads > 0, "threads must be positive");
+        this.threads = threads;
+    }
+
+    public int getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    public void setMaxBodySize(int maxBodySize) {
+        Assert.isTrue(maxBodySize > 0, "maxBodySize must be positive");
+        this.maxBodySize = maxBodySize;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Sets the number of connections the operating system queues before the server accepts them.
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Passes delivery reports posted to a path to a receiver. The receiver is started and stopped with the server.
+     */
+    public void setDeliveryReportReceiver(String path, DeliveryReportReceiver deliveryReportReceiver) {
+        addReceiver(path, deliveryReportReceiver);
+    }
+
+    /**
+     * Passes incoming SMS posted to a path to a receiver. The receiver is started and stopped with the server.
+     */
+    public void setIncomingSmsReceiver(String path, IncomingSmsReceiver incomingSmsReceiver) {
+        addReceiver(path, incomingSmsReceiver);
+    }
+
+    /**
+     * Passes callbacks posted to a path to a receiver. The receiver is started and stopped with the server.
+     */
+    public synchronized void addReceiver(String path, CallbackReceiver receiver) {
+        Assert.hasText(path);
+        Assert.notNull(receiver);
+        Assert.state(server == null, "Cannot add receivers to a started server");
+        receivers.put(path, receiver);
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("elks-callback"));
+        server = HttpServer.create(address, backlog);
+        server.setExecutor(executor);
+        for (Map.Entry<String, CallbackReceiver> entry : receivers.entrySet()) {
+            final CallbackReceiver receiver = entry.getValue();
+            receiver.start();
+            server.createContext(entry.getKey(), new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    handleCallback(exchange, receiver);
+                }
+            });
+        }
+        server.start();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Started callback server on [" + server.getAddress() + "]");
+        }
+    }
+
+    /**
+     * Stops the server, waiting at most the given number of seconds for requests being handled, then stops the
+     * receivers.
+     */
+    public synchronized void stop(int delay) {
+        if (server == null) {
+            return;
+        }
+        server.stop(delay);
+        executor.shutdown();
+        server = null;
+        for (CallbackReceiver receiver : receivers.values()) {
+            receiver.stop();
+        }
+    }
+
+    /**
+     * Returns the port the server listens on, useful when started on any free port.
+     */
+    public synchronized int getPort() {
+        Assert.state(server != null, "Server is not started");
+        return server.getAddress().getPort();
+    }
+
+    private void handleCallback(HttpExchange exchange, CallbackReceiver receiver) throws IOException {
+        try {
+            int status;
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                status = 405;
+            } else {
+                int length = readBody(exchange.getRequestBody());
+                if (length < 0) {
+                    status = 413;
+                } else {
+                    try {
+                        status = receiver.receive(buffers.get(), 0, length) ? 200 : 503;
+                    } catch (IllegalArgumentException e) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Invalid callback to [" + exchange.getRequestURI() + "], " + e.getMessage());
+                        }
+                        status = 400;
+                    }
+                }
+            }
+            exchange.sendResponseHeaders(status, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads a request body into the buffer of the current thread.
+     *
+     * @return the length of the body or -1 if larger than the maximum
+     */
+    private int readBody(InputStream in) throws IOException {
+        byte[] buffer = buffers.get();
+        int length = 0;
+        int read;
+        while (true) {
+            if (length == buffer.length) {
+                if (length >= maxBodySize) {
+                    // A body of exactly the maximum size is accepted, only a byte more is too large
+                    return in.read() < 0 ? length : -1;
+                }
+                byte[] grown = new byte[Math.min(buffer.length * 2, maxBodySize)];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+                buffers.set(buffer);
+            }
+            read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                return length > maxBodySize ? -1 : length;
+            }
+            length += read;
+        }
+    }
+}
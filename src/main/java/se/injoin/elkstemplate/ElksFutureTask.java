@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Future calling an optional {@link ElksCallback} when it completes.
+ *
+ * @author Tobias Mattsson
+ * @see AsyncElksTemplate
+ * @since 1.0
+ */
+class ElksFutureTask<T> extends FutureTask<T> {
+
+    private final ElksCallback<T> callback;
+
+    public ElksFutureTask(Callable<T> callable, ElksCallback<T> callback) {
+        super(callable);
+        this.callback = callback;
+    }
+
+    @Override
+    protected void done() {
+        if (callback == null || isCancelled()) {
+            return;
+        }
+        T result;
+        try {
+            result = get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                callback.onFailure((RuntimeException) cause);
+            } else {
+                callback.onFailure(new ElksException("Asynchronous operation failed", cause));
+            }
+            return;
+        } catch (InterruptedException e) {
+            // Cannot happen since the task is done
+            Thread.currentThread().interrupt();
+            return;
+        }
+        callback.onSuccess(result);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+/**
+ * Receives metrics for the calls made by {@link ElksTemplate}. Listeners are called on the thread making the call, so
+ * implementations must be thread-safe and return quickly.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#setMetricsListener(ElksMetricsListener)
+ * @see InMemoryElksMetrics
+ * @since 1.0
+ */
+public interface ElksMetricsListener {
+
+    /**
+     * Called when an HTTP request completes or fails, once for every attempt when calls are retried.
+     */
+    void requestCompleted(RequestMetrics metrics);
+
+    /**
+     * Called when a batch of an SMS send has been sent or has failed.
+     *
+     * @param costMinorUnits the total cost reported for the batch in minor units
+     * @param elapsedNanos the time taken for the batch including retries and rate limiting
+     */
+    void smsBatchCompleted(SmsBatch batch, long costMinorUnits, long elapsedNanos);
+
+    /**
+     * Called after a batch has completed when an {@link AdaptiveBatchSizer} is used, with the batch size it arrived at.
+     */
+    void batchSizeAdapted(int batchSize);
+}
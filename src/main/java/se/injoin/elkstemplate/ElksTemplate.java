@@ -17,31 +17,70 @@
 
 package se.injoin.elkstemplate;
 
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AUTH;
 import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.util.Assert;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.StringUtils;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
 
+import se.injoin.elkstemplate.support.DaemonThreadFactory;
+import se.injoin.elkstemplate.support.IdleConnectionEvictor;
+import se.injoin.elkstemplate.support.MoneyUtils;
+import se.injoin.elkstemplate.support.SmsFormWriter;
+import se.injoin.elkstemplate.support.SmsResponseParser;
 import se.injoin.elkstemplate.support.TimestampUtils;
 
 /**
@@ -61,12 +100,40 @@ public class ElksTemplate {
     public static final String NUMBERS_RESOURCE_PATH = "/Numbers";
     public static final String SMS_RESOURCE_PATH = "/SMS";
     public static final int DEFAULT_BATCH_LIMIT = 2000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 60000;
+    public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 10000;
+    public static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 30000;
+    public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 30000;
+
+    /**
+     * Metrics of the request being made on the current thread, read by the request executor.
+     */
+    private static final ThreadLocal<RequestMetrics> CURRENT_REQUEST = new ThreadLocal<RequestMetrics>();
 
     private String apiUrl = DEFAULT_API_URL;
     private int batchLimit = DEFAULT_BATCH_LIMIT;
+    private AdaptiveBatchSizer adaptiveBatchSizer;
     private String username;
     private String password;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private int connectionRequestTimeout = DEFAULT_CONNECTION_REQUEST_TIMEOUT;
+    private long keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private long idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+    private int maxConcurrentBatches = 1;
+    private Executor batchExecutor;
+    private RetryPolicy retryPolicy;
+    private RateLimiter rateLimiter;
+    private ElksMetricsListener metricsListener;
+    private ExecutorService defaultBatchExecutor;
     private RestTemplate restTemplate;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private IdleConnectionEvictor connectionEvictor;
 
     public String getApiUrl() {
         return apiUrl;
@@ -84,6 +151,94 @@ public class ElksTemplate {
         this.batchLimit = batchLimit;
     }
 
+    public AdaptiveBatchSizer getAdaptiveBatchSizer() {
+        return adaptiveBatchSizer;
+    }
+
+    /**
+     * Sets a sizer adapting the number of recipients per batch to how the service is responding. Null, the default,
+     * sends batches of {@link #getBatchLimit()} recipients. Batches never exceed the batch limit whatever size the sizer
+     * arrives at.
+     */
+    public void setAdaptiveBatchSizer(AdaptiveBatchSizer adaptiveBatchSizer) {
+        this.adaptiveBatchSizer = adaptiveBatchSizer;
+    }
+
+    public int getMaxConcurrentBatches() {
+        return maxConcurrentBatches;
+    }
+
+    /**
+     * Sets the maximum number of batches in flight at the same time when sending to more recipients than the batch
+     * limit. The default of one sends the batches one after another in the calling thread.
+     *
+     * @see #setBatchExecutor(Executor)
+     */
+    public void setMaxConcurrentBatches(int maxConcurrentBatches) {
+        Assert.isTrue(maxConcurrentBatches > 0, "maxConcurrentBatches must be positive");
+        this.maxConcurrentBatches = maxConcurrentBatches;
+    }
+
+    /**
+     * Returns the executor used for sending batches concurrently. If none is set a pool of daemon threads is created,
+     * it is shut down by {@link #destroy()}.
+     */
+    public synchronized Executor getBatchExecutor() {
+        if (batchExecutor != null) {
+            return batchExecutor;
+        }
+        if (defaultBatchExecutor == null) {
+            defaultBatchExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("elks-batch"));
+        }
+        return defaultBatchExecutor;
+    }
+
+    /**
+     * Sets the executor used for sending batches concurrently. The number of batches in flight for a single request is
+     * limited by {@link #setMaxConcurrentBatches(int)} regardless of the size of the executor.
+     */
+    public synchronized void setBatchExecutor(Executor batchExecutor) {
+        this.batchExecutor = batchExecutor;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the policy for retrying calls that failed with a transient error, null disables retries which is the
+     * default. When sending SMS each batch is retried separately.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Sets a rate limiter pacing the calls made, null disables rate limiting which is the default. Every attempt
+     * including retries counts as a request, every recipient counts as a message.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public ElksMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * Sets a listener receiving timings and outcomes of every request and SMS batch, null disables metrics which is
+     * the default.
+     *
+     * @see InMemoryElksMetrics
+     */
+    public void setMetricsListener(ElksMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -100,6 +255,87 @@ public class ElksTemplate {
         this.password = password;
     }
 
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of pooled connections in total. Only applies when the REST template is created by this
+     * class.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * Sets the maximum number of pooled connections per route. All calls go to the same host so this is normally the
+     * same as the total. Only applies when the REST template is created by this class.
+     */
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the timeout in milliseconds for establishing a connection, zero means no timeout.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Sets the timeout in milliseconds when waiting for data from the service, zero means no timeout.
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    /**
+     * Sets the timeout in milliseconds when waiting for a connection from the pool, zero means no timeout.
+     */
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    public long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a connection is kept alive for reuse. Used when the service does not
+     * specify a shorter time in a <code>Keep-Alive</code> header.
+     */
+    public void setKeepAliveTimeout(long keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    public long getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds after which idle connections are evicted from the pool, zero or less disables
+     * eviction.
+     */
+    public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
     public synchronized RestTemplate getRestTemplate() {
         if (restTemplate == null) {
             restTemplate = createRestTemplate();
@@ -118,7 +354,7 @@ public class ElksTemplate {
      */
     public AccountDetails queryAccountDetails() throws ElksException {
         try {
-            AccountDetails accountDetails = getRestTemplate().getForObject(apiUrl + ME_RESOURCE_PATH, AccountDetails.class);
+            AccountDetails accountDetails = getForObject(ME_RESOURCE_PATH, AccountDetails.class);
             if (logger.isDebugEnabled()) {
                 logger.debug("Queried account details for account [" + accountDetails.getId() + "]");
             }
@@ -135,7 +371,7 @@ public class ElksTemplate {
      */
     public List<PhoneNumberDetails> queryPhoneNumbers() throws ElksException {
         try {
-            List<PhoneNumberDetails> numbers = getRestTemplate().getForObject(apiUrl + NUMBERS_RESOURCE_PATH, PhoneNumberList.class).getNumbers();
+            List<PhoneNumberDetails> numbers = getForObject(NUMBERS_RESOURCE_PATH, PhoneNumberList.class).getNumbers();
             if (logger.isDebugEnabled()) {
                 logger.debug("Queried phone numbers, found [" + numbers.size() + "] numbers");
             }
@@ -155,7 +391,7 @@ public class ElksTemplate {
     public PhoneNumberDetails queryPhoneNumber(String id) throws ElksException {
         Assert.hasText(id);
         try {
-            PhoneNumberDetails number = getRestTemplate().getForObject(apiUrl + NUMBERS_RESOURCE_PATH + "/" + id, PhoneNumberDetails.class);
+            PhoneNumberDetails number = getForObject(NUMBERS_RESOURCE_PATH + "/" + id, PhoneNumberDetails.class);
             if (logger.isDebugEnabled()) {
                 logger.debug("Queried phone number [" + id + "]");
             }
@@ -197,7 +433,7 @@ public class ElksTemplate {
             if (StringUtils.hasText(smsUrl)) {
                 parameters.set("sms_url", smsUrl);
             }
-            PhoneNumberDetails number = getRestTemplate().postForObject(apiUrl + NUMBERS_RESOURCE_PATH, parameters, PhoneNumberDetails.class);
+            PhoneNumberDetails number = postForObject(NUMBERS_RESOURCE_PATH, parameters, PhoneNumberDetails.class);
             if (logger.isDebugEnabled()) {
                 logger.debug("Allocated phone number [" + number.getNumber() + "] with id [" + number.getId() + "]");
             }
@@ -220,7 +456,7 @@ public class ElksTemplate {
             if (StringUtils.hasText(smsUrl)) {
                 parameters.set("sms_url", smsUrl);
             }
-            PhoneNumberDetails number = getRestTemplate().postForObject(apiUrl + NUMBERS_RESOURCE_PATH + "/" + id, parameters, PhoneNumberDetails.class);
+            PhoneNumberDetails number = postForObject(NUMBERS_RESOURCE_PATH + "/" + id, parameters, PhoneNumberDetails.class);
             if (logger.isDebugEnabled()) {
                 logger.debug("Updated phone number [" + id + "]");
             }
@@ -240,7 +476,7 @@ public class ElksTemplate {
         try {
             LinkedMultiValueMap<String, String> parameters = new LinkedMultiValueMap<String, String>();
             parameters.set("active", "no");
-            PhoneNumberDetails number = getRestTemplate().postForObject(apiUrl + NUMBERS_RESOURCE_PATH + "/" + id, parameters, PhoneNumberDetails.class);
+            PhoneNumberDetails number = postForObject(NUMBERS_RESOURCE_PATH + "/" + id, parameters, PhoneNumberDetails.class);
             if (logger.isDebugEnabled()) {
                 logger.debug("Updated phone number [" + id + "]");
             }
@@ -300,7 +536,11 @@ public class ElksTemplate {
      * Sends an SMS to all recipients in the request. Messages longer than what fits in one SMS are automatically sent
      * as several. The number of recipients can be exceed the per-call-limit imposed by the service as this method will
      * send them batched in multiple calls. When sending to more than one recipient only <code>id</code> and
-     * <code>to</code> is filled in the response.
+     * <code>to</code> is filled in the response. Batches are sent concurrently when
+     * {@link #setMaxConcurrentBatches(int)} is set to more than one, the responses are still in recipient order.
+     * <p/>
+     * If some of the batches fail a {@link SmsBatchException} is thrown telling which batches were sent, its result can
+     * be passed to {@link #resumeSms(SmsRequest, SmsSendResult)} to send the rest.
      * <p/>
      * The <code>from</code> number can either be one of your previously allocated phone numbers or an alphanumeric
      * string containing only characters a-z, A-Z, and 0-9 and max 11 characters. No other characters can be used, and
@@ -317,74 +557,313 @@ public class ElksTemplate {
      * @see SmsResponse
      */
     public List<SmsResponse> sendSms(SmsRequest smsRequest) throws ElksException {
+        validate(smsRequest);
+
+        List<String> recipients = smsRequest.getRecipients();
+
+        if (recipients.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        SmsSendResult result = sendBatches(smsRequest, null, null);
+
+        if (!result.isComplete()) {
+
+            int total = recipients.size();
+            int delivered = result.getResponses().size();
+            if (total == 1) {
+                throw new ElksException("Could not send text message to [1] recipient", result.getFirstException());
+            }
+            if (result.getBatches().size() == 1) {
+                throw new ElksException("Could not send text message to [" + total + "] recipients", result.getFirstException());
+            }
+            if (delivered == 0) {
+                throw new SmsBatchException("Could not send text message to [" + total + "] recipients", result);
+            }
+            throw new SmsBatchException("Could not send text message to all [" + total + "] recipients, failed after delivering [" + delivered + "]", result);
+        }
+
+        return result.getResponses();
+    }
+
+    /**
+     * Sends an SMS like {@link #sendSmsResumable(SmsRequest)} but passes each response to a handler as soon as it has
+     * been parsed instead of collecting them. Memory use does not grow with the size of the batches. The batches in the
+     * result have empty response lists.
+     * <p/>
+     * Within a batch the responses are handled in recipient order. With concurrent batches the handler is called from
+     * several threads at the same time and batches are handled in the order they complete. If reading the response of
+     * a batch fails after some of its responses were handled the batch still counts as sent, the service accepted it,
+     * and the responses not yet handled are lost.
+     */
+    public SmsSendResult sendSms(SmsRequest smsRequest, SmsResponseHandler handler) throws ElksException {
+        validate(smsRequest);
+        Assert.notNull(handler);
+        return sendBatches(smsRequest, null, handler);
+    }
+
+    /**
+     * Sends an SMS like {@link #sendSms(SmsRequest)} but instead of throwing an exception when batches fail returns
+     * the outcome of every batch. Batches that were not sent can be retried using
+     * {@link #resumeSms(SmsRequest, SmsSendResult)} without sending the same SMS twice to the recipients that
+     * already got it.
+     */
+    public SmsSendResult sendSmsResumable(SmsRequest smsRequest) throws ElksException {
+        validate(smsRequest);
+        return sendBatches(smsRequest, null, null);
+    }
+
+    /**
+     * Sends the batches of a previous result that are known not to have been sent, those never attempted and those
+     * that {@link SmsBatch.Status#FAILED failed}. The request must be the same as the one the result was created for.
+     * Returns a new result with the other batches as they were and the outcome of the resent batches.
+     */
+    public SmsSendResult resumeSms(SmsRequest smsRequest, SmsSendResult previous) throws ElksException {
+        return resumeSms(smsRequest, previous, false);
+    }
+
+    /**
+     * Sends the batches of a previous result that were not sent like {@link #resumeSms(SmsRequest, SmsSendResult)}.
+     *
+     * @param resendUnknown whether to also send the batches whose outcome is {@link SmsBatch.Status#UNKNOWN unknown},
+     * recipients that already got the SMS get it twice
+     */
+    public SmsSendResult resumeSms(SmsRequest smsRequest, SmsSendResult previous, boolean resendUnknown) throws ElksException {
+        validate(smsRequest);
+        Assert.notNull(previous);
+        Assert.isTrue(previous.getRecipientCount() == smsRequest.getRecipients().size(), "Result is for a different number of recipients");
+
+        ArrayList<SmsBatch> batches = new ArrayList<SmsBatch>();
+        ArrayList<SmsBatch> pending = new ArrayList<SmsBatch>();
+        for (SmsBatch batch : previous.getBatches()) {
+            if (SmsSendResult.isPending(batch, resendUnknown)) {
+                pending.add(new SmsBatch(batch.getIndex(), batch.getStartIndex(), batch.getEndIndex()));
+            } else {
+                batches.add(batch);
+            }
+        }
+        batches.addAll(sendBatches(smsRequest, pending, null).getBatches());
+        return new SmsSendResult(previous.getRecipientCount(), batches);
+    }
+
+    /**
+     * Sends the batches described by a resume token obtained from {@link SmsSendResult#getResumeToken()}. The request
+     * must be the same as the one the token was created for. The returned result only has the batches in the token.
+     */
+    public SmsSendResult resumeSms(SmsRequest smsRequest, String resumeToken) throws ElksException {
+        validate(smsRequest);
+        Assert.hasText(resumeToken);
+        return sendBatches(smsRequest, SmsSendResult.parseResumeToken(resumeToken, smsRequest.getRecipients().size()), null);
+    }
+
+    private void validate(SmsRequest smsRequest) {
         Assert.notNull(smsRequest);
         Assert.hasText(smsRequest.getFrom());
         Assert.hasText(smsRequest.getMessage());
         Assert.notNull(smsRequest.getRecipients());
+    }
+
+    private List<SmsBatch> createBatches(int recipientCount) {
+        int limit = batchLimit;
+        ArrayList<SmsBatch> batches = new ArrayList<SmsBatch>((recipientCount + limit - 1) / limit);
+        for (int startIndex = 0; startIndex < recipientCount; startIndex += limit) {
+            batches.add(new SmsBatch(batches.size(), startIndex, Math.min(startIndex + limit, recipientCount)));
+        }
+        return batches;
+    }
 
+    /**
+     * Sends the batches of a request.
+     *
+     * @param batches the batches to send or null to slice all recipients into batches
+     */
+    private SmsSendResult sendBatches(SmsRequest smsRequest, List<SmsBatch> batches, SmsResponseHandler handler) {
         List<String> recipients = smsRequest.getRecipients();
+        SmsFormWriter form = new SmsFormWriter(smsRequest);
 
-        if (recipients.isEmpty()) {
-            return Collections.emptyList();
+        BatchSlicer slicer;
+        AdaptiveBatchSizer sizer = adaptiveBatchSizer;
+        if (batches != null) {
+            slicer = new BatchSlicer(batches);
+        } else if (sizer != null) {
+            slicer = new BatchSlicer(recipients, form, sizer, batchLimit);
+        } else {
+            slicer = new BatchSlicer(createBatches(recipients.size()));
         }
 
-        LinkedMultiValueMap<String, String> parameters = new LinkedMultiValueMap<String, String>();
-        parameters.set("from", smsRequest.getFrom());
-        parameters.set("message", smsRequest.getMessage());
-        if (smsRequest.isFlash()) {
-            parameters.set("flashsms", "yes");
-        }
-        if (smsRequest.getDeliveryReportUrl() != null) {
-            parameters.set("whendelivered", smsRequest.getDeliveryReportUrl());
+        if (maxConcurrentBatches > 1 && !slicer.isSingleBatch()) {
+            sendBatchesConcurrently(form, recipients, slicer, handler);
+        } else {
+            sendBatchesSequentially(form, recipients, slicer, handler);
         }
 
-        ArrayList<SmsResponse> responses = new ArrayList<SmsResponse>(recipients.size());
-        try {
+        SmsSendResult result = new SmsSendResult(recipients.size(), slicer.getBatches());
 
-            int startIndex = 0;
-            while (startIndex < recipients.size()) {
-                int endIndex = Math.min(startIndex + batchLimit, recipients.size());
-                List<String> batch = recipients.subList(startIndex, endIndex);
-                parameters.set("to", StringUtils.collectionToCommaDelimitedString(batch));
-                if (batch.size() == 1) {
-                    // The service does not respond with an array when sending to only one number
-                    responses.add(getRestTemplate().postForObject(apiUrl + SMS_RESOURCE_PATH, parameters, SmsResponse.class));
-                } else {
-                    responses.addAll(getRestTemplate().postForObject(apiUrl + SMS_RESOURCE_PATH, parameters, SmsBatchResponse.class));
-                }
-                startIndex = endIndex;
+        if (logger.isDebugEnabled()) {
+            int sent = 0;
+            for (SmsBatch batch : result.getSentBatches()) {
+                sent += batch.size();
+            }
+            if (smsRequest.isFlash()) {
+                logger.debug("Sent flash SMS to [" + sent + "] recipients");
+            } else {
+                logger.debug("Sent SMS to [" + sent + "] recipients");
             }
+        }
 
-        } catch (RestClientException e) {
+        return result;
+    }
 
-            int total = smsRequest.getRecipients().size();
-            int delivered = responses.size();
-            if (total == 1) {
-                throw new ElksException("Could not send text message to [1] recipient", e);
+    /**
+     * Sends the batches one after another in the calling thread, stopping at the first failure.
+     */
+    private void sendBatchesSequentially(SmsFormWriter form, List<String> recipients, BatchSlicer slicer, SmsResponseHandler handler) {
+        SmsBatch batch;
+        while ((batch = slicer.next()) != null) {
+            sendBatch(form, recipients, batch, handler);
+            if (batch.getStatus() != SmsBatch.Status.SENT) {
+                break;
             }
-            if (delivered == 0) {
-                throw new ElksException("Could not send text message to [" + total + "] recipients", e);
+        }
+    }
+
+    /**
+     * Sends the batches using the batch executor with at most {@link #getMaxConcurrentBatches()} in flight. No new
+     * batches are started after a failure but batches already in flight are allowed to finish.
+     */
+    private void sendBatchesConcurrently(final SmsFormWriter form, final List<String> recipients, BatchSlicer slicer, final SmsResponseHandler handler) {
+        CompletionService<SmsBatch> completionService = new ExecutorCompletionService<SmsBatch>(getBatchExecutor());
+        int submitted = 0;
+        int completed = 0;
+        boolean failed = false;
+        Throwable unexpected = null;
+        boolean interrupted = false;
+        while (true) {
+            while (!failed && submitted - completed < maxConcurrentBatches) {
+                // Sliced when it can be sent so that an adaptive batch size has seen the batches completed so far
+                final SmsBatch batch = slicer.next();
+                if (batch == null) {
+                    break;
+                }
+                completionService.submit(new Callable<SmsBatch>() {
+                    @Override
+                    public SmsBatch call() {
+                        sendBatch(form, recipients, batch, handler);
+                        return batch;
+                    }
+                });
+                submitted++;
+            }
+            if (completed == submitted) {
+                break;
             }
-            throw new ElksException("Could not send text message to all [" + total + "] recipients, failed after delivering [" + delivered + "]", e);
+            try {
+                SmsBatch batch = completionService.take().get();
+                if (batch.getStatus() != SmsBatch.Status.SENT) {
+                    failed = true;
+                }
+            } catch (ExecutionException e) {
+                failed = true;
+                if (unexpected == null) {
+                    unexpected = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                // Stop sending but wait for the batches in flight so that their outcome is known
+                failed = true;
+                interrupted = true;
+                continue;
+            }
+            completed++;
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (unexpected != null) {
+            throw new ElksException("Could not send text message", unexpected);
+        }
+    }
 
-        if (logger.isDebugEnabled()) {
-            if (smsRequest.isFlash()) {
-                logger.debug("Sent flash SMS to [" + responses.size() + "] recipients");
+    private void sendBatch(SmsFormWriter form, List<String> recipients, SmsBatch batch, SmsResponseHandler handler) {
+        ElksMetricsListener listener = metricsListener;
+        AdaptiveBatchSizer sizer = adaptiveBatchSizer;
+        boolean timed = listener != null || sizer != null;
+        long startTime = timed ? System.nanoTime() : 0;
+        long cost = 0;
+        List<String> batchRecipients = recipients.subList(batch.getStartIndex(), batch.getEndIndex());
+        SendResponseExtractor extractor = null;
+        try {
+            RateLimiter limiter = rateLimiter;
+            if (limiter != null) {
+                limiter.acquireMessages(batchRecipients.size());
+                // Waiting for our own rate limit says nothing about how the service is responding
+                startTime = timed ? System.nanoTime() : 0;
+            }
+            if (handler != null) {
+                extractor = new SendResponseExtractor(handler);
+                try {
+                    stream(SMS_RESOURCE_PATH, HttpMethod.POST, new StreamingRequestCallback(form, batchRecipients), extractor);
+                } finally {
+                    cost = extractor.getCostMinorUnits();
+                }
+                batch.sent(Collections.<SmsResponse>emptyList());
             } else {
-                logger.debug("Sent SMS to [" + responses.size() + "] recipients");
+                batch.sent(postForm(SMS_RESOURCE_PATH, form, batchRecipients, new SendResponseCollector()));
+            }
+        } catch (RestClientException e) {
+            if (!(e instanceof PossiblyReceivedException) && isNotReceived(e)) {
+                batch.failed(e);
+            } else {
+                batch.unknown(e);
+            }
+        } catch (HttpMessageNotReadableException e) {
+            // The service answered that it accepted the request but the response could not be read
+            batch.unknown(e);
+        } catch (ElksException e) {
+            if (extractor != null && extractor.getHandled() > 0) {
+                // The service accepted the request and only reading its response failed, sending again would send twice
+                logger.warn("Batch [" + batch.getIndex() + "] was sent but only [" + extractor.getHandled() + "] of [" + batch.size() + "] responses were handled", e);
+                batch.sent(Collections.<SmsResponse>emptyList());
+            } else {
+                // The rate limit was exceeded
+                batch.failed(e);
+            }
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        int batchSize = sizer != null ? Math.min(sizer.batchCompleted(batch, elapsedTime), batchLimit) : 0;
+        if (listener != null) {
+            if (handler == null && batch.getResponses() != null) {
+                cost = MoneyUtils.sumCostMinorUnits(batch.getResponses());
+            }
+            listener.smsBatchCompleted(batch, cost, elapsedTime);
+            if (sizer != null) {
+                listener.batchSizeAdapted(batchSize);
             }
         }
+    }
 
-        return responses;
+    /**
+     * Returns true if a failed request is known not to have been received by the service, the connection could not
+     * be made or the service refused the request with a client error.
+     */
+    protected boolean isNotReceived(RestClientException exception) {
+        for (Throwable t = exception; t != null; t = t.getCause()) {
+            if (t instanceof HttpClientErrorException) {
+                return true;
+            }
+            if (t instanceof ConnectException || t instanceof ConnectTimeoutException || t instanceof UnknownHostException || t instanceof NoRouteToHostException) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Queries the SMS history returning the first 100 entries. Use {@link #querySmsHistory(Date)} to get more entries.
+     * Queries the SMS history returning the first 100 entries. Use {@link #querySmsHistory(Date)} to get more entries
+     * or {@link #iterateSmsHistory()} to walk the whole history.
      */
     public SmsHistory querySmsHistory() {
         try {
-            SmsHistory history = getRestTemplate().getForObject(apiUrl + SMS_RESOURCE_PATH, SmsHistory.class);
+            SmsHistory history = getForObject(SMS_RESOURCE_PATH, new HistoryCollector());
             if (logger.isDebugEnabled()) {
                 logger.debug("Queried SMS history");
             }
@@ -406,9 +885,7 @@ public class ElksTemplate {
             return querySmsHistory();
         }
         try {
-            HashMap<String, String> parameters = new HashMap<String, String>();
-            parameters.put("start", TimestampUtils.format(start));
-            SmsHistory history = getRestTemplate().getForObject(apiUrl + SMS_RESOURCE_PATH + "?start={start}", SmsHistory.class, parameters);
+            SmsHistory history = getForObject(SMS_RESOURCE_PATH + "?start={start}", new HistoryCollector(), TimestampUtils.format(start));
             if (logger.isDebugEnabled()) {
                 logger.debug("Queried SMS history with start [" + start + "]");
             }
@@ -421,18 +898,563 @@ public class ElksTemplate {
     }
 
     /**
-     * Creates a REST template using HttpComponents' HttpClient configured to use basic HTTP AUTH.
+     * Releases the pooled connections, stops the eviction of idle connections and shuts down the default batch
+     * executor. Only resources created by this class are released, they are created again if the template is used
+     * again.
+     */
+    public synchronized void destroy() {
+        if (defaultBatchExecutor != null) {
+            defaultBatchExecutor.shutdown();
+            defaultBatchExecutor = null;
+        }
+        if (connectionEvictor != null) {
+            connectionEvictor.shutdown();
+            connectionEvictor = null;
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
+            restTemplate = null;
+        }
+    }
+
+    /**
+     * Returns the resource path a path belongs to, i.e. <code>/Numbers</code> for <code>/Numbers/n1234</code> and
+     * <code>/SMS</code> for <code>/SMS?start=...</code>.
+     */
+    static String getResource(String resourcePath) {
+        for (int i = 1; i < resourcePath.length(); i++) {
+            char c = resourcePath.charAt(i);
+            if (c == '/' || c == '?') {
+                return resourcePath.substring(0, i);
+            }
+        }
+        return resourcePath;
+    }
+
+    private <T> T getForObject(final String resourcePath, final Class<T> responseType, final Object... uriVariables) {
+        return execute(resourcePath, true, new RestCall<T>() {
+            @Override
+            public T call() {
+                return getRestTemplate().getForObject(apiUrl + resourcePath, responseType, uriVariables);
+            }
+        });
+    }
+
+    private <T> T getForObject(final String resourcePath, final ResponseExtractor<T> extractor, final Object... uriVariables) {
+        return execute(resourcePath, true, new RestCall<T>() {
+            @Override
+            public T call() {
+                return getRestTemplate().execute(apiUrl + resourcePath, HttpMethod.GET, new StreamingRequestCallback(), extractor, uriVariables);
+            }
+        });
+    }
+
+    private <T> T postForObject(final String resourcePath, final Object request, final Class<T> responseType) {
+        return execute(resourcePath, false, new RestCall<T>() {
+            @Override
+            public T call() {
+                return getRestTemplate().postForObject(apiUrl + resourcePath, request, responseType);
+            }
+        });
+    }
+
+    /**
+     * Posts the form for sending an SMS to a batch of recipients.
+     */
+    private <T> T postForm(final String resourcePath, final SmsFormWriter form, final List<String> recipients, final ResponseExtractor<T> extractor) {
+        return execute(resourcePath, false, new RestCall<T>() {
+            @Override
+            public T call() {
+                return getRestTemplate().execute(apiUrl + resourcePath, HttpMethod.POST, new StreamingRequestCallback(form, recipients), extractor);
+            }
+        });
+    }
+
+    /**
+     * Performs a call to the service passing the response body to an extractor without buffering it. A failure after
+     * the extractor has handed responses to its handler is not retried since that would hand them over again.
+     */
+    private <T> T stream(final String resourcePath, final HttpMethod method, final RequestCallback requestCallback, final StreamingExtractor<T> extractor, final Object... uriVariables) {
+        return execute(resourcePath, method == HttpMethod.GET, new RestCall<T>() {
+            @Override
+            public T call() {
+                try {
+                    return getRestTemplate().execute(apiUrl + resourcePath, method, requestCallback, extractor, uriVariables);
+                } catch (RestClientException e) {
+                    if (extractor.getHandled() > 0) {
+                        throw new ElksException("Failed after handling [" + extractor.getHandled() + "] responses", e);
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Performs a call to the service, retrying it according to the retry policy. If a call that is not idempotent
+     * fails after an earlier attempt may have been received by the service the failure is thrown as a
+     * {@link PossiblyReceivedException}, the last attempt alone does not tell whether the call had any effect.
+     */
+    private <T> T execute(String resourcePath, boolean idempotent, RestCall<T> call) {
+        RetryPolicy policy = retryPolicy;
+        RateLimiter limiter = rateLimiter;
+        ElksMetricsListener listener = metricsListener;
+        long startTime = System.currentTimeMillis();
+        int attempts = 0;
+        RestClientException received = null;
+        while (true) {
+            if (limiter != null) {
+                try {
+                    limiter.acquireRequest(resourcePath);
+                } catch (RuntimeException e) {
+                    throw possiblyReceived(received, e);
+                }
+            }
+            RequestMetrics metrics = null;
+            try {
+                attempts++;
+                if (listener != null) {
+                    metrics = new RequestMetrics(resourcePath, attempts);
+                    CURRENT_REQUEST.set(metrics);
+                }
+                T result = call.call();
+                if (metrics != null) {
+                    metrics.completed(null);
+                    listener.requestCompleted(metrics);
+                }
+                return result;
+            } catch (RuntimeException e) {
+                if (metrics != null) {
+                    metrics.completed(e);
+                    listener.requestCompleted(metrics);
+                }
+                if (!(e instanceof RestClientException)) {
+                    throw e;
+                }
+                RestClientException failure = (RestClientException) e;
+                if (policy == null || !awaitRetry(policy, resourcePath, failure, idempotent, attempts, startTime)) {
+                    throw possiblyReceived(received, failure);
+                }
+                if (!idempotent && received == null && !isNotReceived(failure)) {
+                    received = failure;
+                }
+            } finally {
+                if (metrics != null) {
+                    CURRENT_REQUEST.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sleeps before retrying a failed call, returns false if the retry policy does not allow a retry.
+     */
+    private boolean awaitRetry(RetryPolicy policy, String resourcePath, RestClientException e, boolean idempotent, int attempts, long startTime) {
+        long delay = policy.getRetryDelay(e, idempotent, attempts, System.currentTimeMillis() - startTime);
+        if (delay < 0) {
+            return false;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Retrying call to [" + resourcePath + "] in [" + delay + "] ms after attempt [" + attempts + "] failed: " + e.getMessage());
+        }
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the failure of a call, wrapped if an earlier attempt may have been received by the service.
+     */
+    private static RuntimeException possiblyReceived(RestClientException received, RuntimeException e) {
+        if (received == null) {
+            return e;
+        }
+        return new PossiblyReceivedException("An earlier attempt may have been received by the service, it failed with [" + received.getMessage() + "]", e);
+    }
+
+    /**
+     * Queries for a part of the SMS history like {@link #querySmsHistory(Date)} but passes each entry to a handler as
+     * soon as it has been parsed instead of collecting them.
+     *
+     * @param start an offset into the history, null for the newest entries
+     * @return the <code>next</code> value to query with for the following page or null if there are no more entries
+     */
+    public Date querySmsHistory(Date start, SmsResponseHandler handler) throws ElksException {
+        Assert.notNull(handler);
+        try {
+            Date next;
+            if (start == null) {
+                next = stream(SMS_RESOURCE_PATH, HttpMethod.GET, new StreamingRequestCallback(), new HistoryExtractor(handler));
+            } else {
+                next = stream(SMS_RESOURCE_PATH + "?start={start}", HttpMethod.GET, new StreamingRequestCallback(), new HistoryExtractor(handler), TimestampUtils.format(start));
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Streamed SMS history with start [" + start + "]");
+            }
+            return next;
+        } catch (RestClientException e) {
+            throw new ElksException("Could not query message history with start [" + start + "]", e);
+        } catch (ParseException e) {
+            throw new ElksException("Could not parse start date [" + start + "]", e);
+        }
+    }
+
+    /**
+     * Returns a lazy iterable over the whole SMS history, newest entry first. Pages are fetched in the background
+     * while the caller consumes the current one.
+     *
+     * @see SmsHistoryIterable
+     */
+    public SmsHistoryIterable iterateSmsHistory() {
+        return new SmsHistoryIterable(this, null, null);
+    }
+
+    /**
+     * Returns a lazy iterable over a time window of the SMS history, newest entry first. Pages are fetched in the
+     * background while the caller consumes the current one.
+     *
+     * @param from the oldest time to include, null to walk to the beginning of the history
+     * @param to the time to start walking back from, exclusive, null to start with the newest entry
+     * @see SmsHistoryIterable
+     */
+    public SmsHistoryIterable iterateSmsHistory(Date from, Date to) {
+        return new SmsHistoryIterable(this, from, to);
+    }
+
+    /**
+     * Creates a REST template using HttpComponents' HttpClient configured to use basic HTTP AUTH. Connections are
+     * pooled and kept alive so that concurrent callers can share the template.
      */
     protected RestTemplate createRestTemplate() {
-        DefaultHttpClient httpClient = new DefaultHttpClient();
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .build();
+        UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(username, password);
         BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-        credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
-        httpClient.setCredentialsProvider(credentialsProvider);
+        credentialsProvider.setCredentials(AuthScope.ANY, credentials);
+        CloseableHttpClient httpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setDefaultCredentialsProvider(credentialsProvider)
+                .addInterceptorFirst(new PreemptiveAuthInterceptor(credentials))
+                .setRequestExecutor(new TimingRequestExecutor())
+                .setKeepAliveStrategy(new CappedKeepAliveStrategy(keepAliveTimeout))
+                .build();
+        if (idleConnectionTimeout > 0) {
+            connectionEvictor = new IdleConnectionEvictor(connectionManager, idleConnectionTimeout);
+            connectionEvictor.start();
+        }
         HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
         return new RestTemplate(requestFactory);
     }
 
-    private static class SmsBatchResponse extends ArrayList<SmsResponse> {
+    /**
+     * Records the time spent writing requests and waiting for responses into the metrics of the current request.
+     */
+    private static class TimingRequestExecutor extends HttpRequestExecutor {
+
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection connection, HttpContext context) throws IOException, HttpException {
+            RequestMetrics metrics = CURRENT_REQUEST.get();
+            if (metrics != null) {
+                metrics.executing();
+            }
+            return super.execute(request, connection, context);
+        }
+
+        @Override
+        protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection connection, HttpContext context) throws IOException, HttpException {
+            RequestMetrics metrics = CURRENT_REQUEST.get();
+            if (metrics == null) {
+                return super.doSendRequest(request, connection, context);
+            }
+            long startTime = System.nanoTime();
+            try {
+                return super.doSendRequest(request, connection, context);
+            } finally {
+                metrics.written(System.nanoTime() - startTime);
+            }
+        }
+
+        @Override
+        protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection connection, HttpContext context) throws IOException, HttpException {
+            RequestMetrics metrics = CURRENT_REQUEST.get();
+            if (metrics == null) {
+                return super.doReceiveResponse(request, connection, context);
+            }
+            long startTime = System.nanoTime();
+            HttpResponse response = null;
+            try {
+                response = super.doReceiveResponse(request, connection, context);
+                return response;
+            } finally {
+                metrics.received(System.nanoTime() - startTime, response != null ? response.getStatusLine().getStatusCode() : 0);
+            }
+        }
+    }
+
+    /**
+     * Sends the credentials with every request. Otherwise each request is first answered with a challenge and then
+     * repeated with the credentials, doubling the round trips.
+     */
+    private static class PreemptiveAuthInterceptor implements HttpRequestInterceptor {
+
+        private final BasicScheme basicScheme = new BasicScheme();
+        private final Credentials credentials;
+
+        public PreemptiveAuthInterceptor(Credentials credentials) {
+            this.credentials = credentials;
+        }
+
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+            if (!request.containsHeader(AUTH.WWW_AUTH_RESP)) {
+                request.addHeader(basicScheme.authenticate(credentials, request, context));
+            }
+        }
+    }
+
+    /**
+     * Keeps connections alive for as long as the service says, but never longer than the configured timeout.
+     */
+    private static class CappedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        private final long keepAliveTimeout;
+
+        public CappedKeepAliveStrategy(long keepAliveTimeout) {
+            this.keepAliveTimeout = keepAliveTimeout;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            if (duration > 0) {
+                return Math.min(duration, keepAliveTimeout);
+            }
+            return keepAliveTimeout;
+        }
+    }
+
+    /**
+     * Failure of a call that is not idempotent where an earlier attempt may have been received by the service.
+     */
+    private static class PossiblyReceivedException extends RestClientException {
+
+        public PossiblyReceivedException(String msg, Throwable cause) {
+            super(msg, cause);
+        }
+    }
+
+    private interface RestCall<T> {
+
+        T call() throws RestClientException;
+    }
+
+
+    /**
+     * Asks for a JSON response and writes the form for sending an SMS, if any, straight to the request body.
+     */
+    private static class StreamingRequestCallback implements RequestCallback {
+
+        private final SmsFormWriter form;
+        private final List<String> recipients;
+
+        public StreamingRequestCallback() {
+            this(null, null);
+        }
+
+        public StreamingRequestCallback(SmsFormWriter form, List<String> recipients) {
+            this.form = form;
+            this.recipients = recipients;
+        }
+
+        @Override
+        public void doWithRequest(ClientHttpRequest request) throws IOException {
+            request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+            if (form != null) {
+                request.getHeaders().setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+                form.writeTo(request.getBody(), recipients);
+            }
+        }
+    }
+
+    /**
+     * Hands out the batches to send, either from a fixed list or sliced from the recipients when they are about to be
+     * sent so that each batch gets the size the adaptive batch sizer has arrived at by then.
+     */
+    private static class BatchSlicer {
+
+        private final List<SmsBatch> batches;
+        private final List<String> recipients;
+        private final SmsFormWriter form;
+        private final AdaptiveBatchSizer sizer;
+        private final int batchLimit;
+        private int next;
+
+        public BatchSlicer(List<SmsBatch> batches) {
+            this.batches = batches;
+            this.recipients = null;
+            this.form = null;
+            this.sizer = null;
+            this.batchLimit = 0;
+        }
+
+        public BatchSlicer(List<String> recipients, SmsFormWriter form, AdaptiveBatchSizer sizer, int batchLimit) {
+            this.batches = new ArrayList<SmsBatch>();
+            this.recipients = recipients;
+            this.form = form;
+            this.sizer = sizer;
+            this.batchLimit = batchLimit;
+        }
+
+        public boolean isSingleBatch() {
+            return sizer == null ? batches.size() <= 1 : recipients.size() <= Math.min(sizer.getBatchSize(), batchLimit);
+        }
+
+        /**
+         * Returns the next batch to send or null if all have been handed out.
+         */
+        public SmsBatch next() {
+            if (sizer == null) {
+                return next < batches.size() ? batches.get(next++) : null;
+            }
+            if (next == recipients.size()) {
+                return null;
+            }
+            // The sizer may be shared by templates with different limits
+            int endIndex = Math.min(sizer.getBatchEnd(recipients, next, form), next + batchLimit);
+            SmsBatch batch = new SmsBatch(batches.size(), next, endIndex);
+            batches.add(batch);
+            next = endIndex;
+            return batch;
+        }
+
+        /**
+         * Returns all batches, slicing the recipients not handed out into batches that are not sent.
+         */
+        public List<SmsBatch> getBatches() {
+            if (sizer != null) {
+                while (next() != null) {
+                    // Continue until all recipients are in a batch
+                }
+            }
+            return batches;
+        }
+    }
+
+    /**
+     * Response extractor counting the responses handed to the handler.
+     */
+    private static abstract class StreamingExtractor<T> implements ResponseExtractor<T>, SmsResponseHandler {
+
+        private final SmsResponseHandler handler;
+        private int handled;
+        private long costMinorUnits;
+
+        public StreamingExtractor(SmsResponseHandler handler) {
+            this.handler = handler;
+        }
+
+        public int getHandled() {
+            return handled;
+        }
+
+        public long getCostMinorUnits() {
+            return costMinorUnits;
+        }
+
+        @Override
+        public void handleResponse(SmsResponse response) {
+            handled++;
+            if (response.hasCost()) {
+                costMinorUnits += response.getCostMinorUnits();
+            }
+            handler.handleResponse(response);
+        }
+    }
+
+    private static class SendResponseExtractor extends StreamingExtractor<Integer> {
+
+        public SendResponseExtractor(SmsResponseHandler handler) {
+            super(handler);
+        }
+
+        @Override
+        public Integer extractData(ClientHttpResponse response) throws IOException {
+            return SmsResponseParser.parseSendResponse(response.getBody(), this);
+        }
+    }
+
+    private static class HistoryExtractor extends StreamingExtractor<Date> {
+
+        public HistoryExtractor(SmsResponseHandler handler) {
+            super(handler);
+        }
+
+        @Override
+        public Date extractData(ClientHttpResponse response) throws IOException {
+            return SmsResponseParser.parseHistory(response.getBody(), this);
+        }
+    }
+
+    /**
+     * Response extractor collecting the responses from sending an SMS, read with {@link SmsResponseParser} instead of
+     * data binding. A body that can not be parsed fails like it does with data binding.
+     */
+    private static class SendResponseCollector implements ResponseExtractor<List<SmsResponse>>, SmsResponseHandler {
+
+        private final List<SmsResponse> responses = new ArrayList<SmsResponse>();
+
+        @Override
+        public List<SmsResponse> extractData(ClientHttpResponse response) throws IOException {
+            try {
+                // The service responds with a single object instead of an array when sending to only one number
+                SmsResponseParser.parseSendResponse(response.getBody(), this);
+            } catch (JsonProcessingException e) {
+                throw new HttpMessageNotReadableException("Could not read SMS response: " + e.getMessage(), e);
+            }
+            return responses;
+        }
+
+        @Override
+        public void handleResponse(SmsResponse response) {
+            responses.add(response);
+        }
+    }
+
+    /**
+     * Response extractor collecting a page of SMS history, read with {@link SmsResponseParser} instead of data binding.
+     */
+    private static class HistoryCollector implements ResponseExtractor<SmsHistory>, SmsResponseHandler {
+
+        private final List<SmsResponse> responses = new ArrayList<SmsResponse>();
+
+        @Override
+        public SmsHistory extractData(ClientHttpResponse response) throws IOException {
+            SmsHistory history = new SmsHistory();
+            try {
+                history.setNext(SmsResponseParser.parseHistory(response.getBody(), this));
+            } catch (JsonProcessingException e) {
+                throw new HttpMessageNotReadableException("Could not read SMS history: " + e.getMessage(), e);
+            }
+            history.setResponses(responses);
+            return history;
+        }
+
+        @Override
+        public void handleResponse(SmsResponse response) {
+            responses.add(response);
+        }
     }
 
     @JsonIgnoreProperties(ignoreUnknown = true)
@@ -0,0 +1,594 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+
+import se.injoin.elkstemplate.support.DaemonThreadFactory;
+
+/**
+ * Sends SMS through several templates, each with the credentials of its own account or sub-account, spreading the
+ * load and the throughput limits of the service over them. The recipients of a request are split in chunks that are
+ * sent concurrently, each through a template chosen by weighted round-robin or by the fewest outstanding chunks in
+ * proportion to weight.
+ * <p/>
+ * A template whose chunk fails because it is throttled, refused or the service is unavailable is drained, no chunks
+ * are sent through it for the drain time, doubled for every failure in a row up to the maximum drain time. Parts of a
+ * chunk that are known not to have reached the service, batches not attempted and batches refused by the client-side
+ * rate limit or with 401, 403 or 429, are sent again through another template. Other failed batches are left in the
+ * result and can be sent with {@link #resumeSms(SmsRequest, SmsSendResult)}, those whose outcome is unknown since the
+ * service may have sent them only when asked for with {@link #resumeSms(SmsRequest, SmsSendResult, boolean)}.
+ * When all templates are drained the one that has been drained the longest is used.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate
+ * @since 1.0
+ */
+public class ElksTemplatePool {
+
+    public enum Strategy {
+        /**
+         * Templates take turns in proportion to their weights, spread evenly.
+         */
+        WEIGHTED_ROUND_ROBIN,
+        /**
+         * The template with the fewest chunks in flight in proportion to its weight, adapts to templates that are
+         * slower than others.
+         */
+        LEAST_OUTSTANDING
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = ElksTemplate.DEFAULT_BATCH_LIMIT;
+    public static final int DEFAULT_MAX_CONCURRENT_CHUNKS = 4;
+    public static final long DEFAULT_DRAIN_TIME = 30000;
+    public static final long DEFAULT_MAX_DRAIN_TIME = 600000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final List<Member> members = new CopyOnWriteArrayList<Member>();
+    private Strategy strategy = Strategy.WEIGHTED_ROUND_ROBIN;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxConcurrentChunks = DEFAULT_MAX_CONCURRENT_CHUNKS;
+    private long drainTime = DEFAULT_DRAIN_TIME;
+    private long maxDrainTime = DEFAULT_MAX_DRAIN_TIME;
+    private Executor executor;
+    private ExecutorService defaultExecutor;
+
+    /**
+     * Adds a template with weight one.
+     */
+    public void addTemplate(ElksTemplate template) {
+        addTemplate(template, 1);
+    }
+
+    /**
+     * Adds a template. A template with twice the weight of another is given twice as many chunks.
+     */
+    public void addTemplate(ElksTemplate template, int weight) {
+        Assert.notNull(template);
+        Assert.isTrue(weight > 0, "weight must be positive");
+        members.add(new Member(template, weight));
+    }
+
+    public List<ElksTemplate> getTemplates() {
+        List<ElksTemplate> templates = new ArrayList<ElksTemplate>(members.size());
+        for (Member member : members) {
+            templates.add(member.template);
+        }
+        return templates;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(Strategy strategy) {
+        Assert.notNull(strategy);
+        this.strategy = strategy;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the number of recipients sent through one template at a time, each template splits its chunk further in
+     * batches by its own batch limit.
+     */
+    public void setChunkSize(int chunkSize) {
+        Assert.isTrue(chunkSize > 0, "chunkSize must be positive");
+        this.chunkSize = chunkSize;
+    }
+
+    public int getMaxConcurrentChunks() {
+        return maxConcurrentChunks;
+    }
+
+    /**
+     * Sets the maximum number of chunks of a request in flight at the same time.
+     */
+    public void setMaxConcurrentChunks(int maxConcurrentChunks) {
+        Assert.isTrue(maxConcurrentChunks > 0, "maxConcurrentChunks must be positive");
+        this.maxConcurrentChunks = maxConcurrentChunks;
+    }
+
+    public long getDrainTime() {
+        return drainTime;
+    }
+
+    /**
+     * Sets the time in milliseconds a template is drained after its first failure in a row.
+     */
+    public void setDrainTime(long drainTime) {
+        Assert.isTrue(drainTime > 0, "drainTime must be positive");
+        this.drainTime = drainTime;
+    }
+
+    public long getMaxDrainTime() {
+        return maxDrainTime;
+    }
+
+    public void setMaxDrainTime(long maxDrainTime) {
+        Assert.isTrue(maxDrainTime > 0, "maxDrainTime must be positive");
+        this.maxDrainTime = maxDrainTime;
+    }
+
+    /**
+     * Returns the executor used for sending chunks. If none is set a pool of daemon threads is created, it is shut
+     * down by {@link #destroy()}.
+     */
+    public synchronized Executor getExecutor() {
+        if (executor != null) {
+            return executor;
+        }
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("elks-pool"));
+        }
+        return defaultExecutor;
+    }
+
+    public synchronized void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns whether a template is drained.
+     */
+    public boolean isDrained(ElksTemplate template) {
+        return member(template).isDrained(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the number of chunks in flight through a template.
+     */
+    public int getOutstanding(ElksTemplate template) {
+        return member(template).outstanding.get();
+    }
+
+    /**
+     * Returns the number of recipients sent to through a template.
+     */
+    public long getSentCount(ElksTemplate template) {
+        return member(template).sent.get();
+    }
+
+    /**
+     * Sends an SMS to one recipient through one of the templates.
+     *
+     * @see ElksTemplate#sendSms(String, String, String)
+     */
+    public SmsResponse sendSms(String from, String recipient, String message) throws ElksException {
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom(from);
+        smsRequest.addRecipient(recipient);
+        smsRequest.setMessage(message);
+        return sendSms(smsRequest).get(0);
+    }
+
+    /**
+     * Sends an SMS spreading the recipients over the templates. Throws exceptions like
+     * {@link ElksTemplate#sendSms(SmsRequest)} if some recipients could not be sent to.
+     */
+    public List<SmsResponse> sendSms(SmsRequest smsRequest) throws ElksException {
+        SmsSendResult result = sendSmsResumable(smsRequest);
+        if (!result.isComplete()) {
+            int total = smsRequest.getRecipients().size();
+            int delivered = result.getResponses().size();
+            if (total == 1) {
+                throw new ElksException("Could not send text message to [1] recipient", result.getFirstException());
+            }
+            if (delivered == 0) {
+                throw new SmsBatchException("Could not send text message to [" + total + "] recipients", result);
+            }
+            throw new SmsBatchException("Could not send text message to all [" + total + "] recipients, failed after delivering [" + delivered + "]", result);
+        }
+        return result.getResponses();
+    }
+
+    /**
+     * Sends an SMS spreading the recipients over the templates, returning the outcome of every batch like
+     * {@link ElksTemplate#sendSmsResumable(SmsRequest)}.
+     */
+    public SmsSendResult sendSmsResumable(SmsRequest smsRequest) throws ElksException {
+        validate(smsRequest);
+        int recipientCount = smsRequest.getRecipients().size();
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (int startIndex = 0; startIndex < recipientCount; startIndex += chunkSize) {
+            chunks.add(new Chunk(startIndex, Math.min(startIndex + chunkSize, recipientCount), 0));
+        }
+        return new SmsSendResult(recipientCount, sendChunks(smsRequest, chunks));
+    }
+
+    /**
+     * Sends the batches of a previous result that are known not to have been sent, spreading them over the templates.
+     *
+     * @see ElksTemplate#resumeSms(SmsRequest, SmsSendResult)
+     */
+    public SmsSendResult resumeSms(SmsRequest smsRequest, SmsSendResult previous) throws ElksException {
+        return resumeSms(smsRequest, previous, false);
+    }
+
+    /**
+     * Sends the batches of a previous result that were not sent, spreading them over the templates.
+     *
+     * @param resendUnknown whether to also send the batches whose outcome is unknown, which may send them twice
+     * @see ElksTemplate#resumeSms(SmsRequest, SmsSendResult, boolean)
+     */
+    public SmsSendResult resumeSms(SmsRequest smsRequest, SmsSendResult previous, boolean resendUnknown) throws ElksException {
+        validate(smsRequest);
+        Assert.notNull(previous);
+        Assert.isTrue(previous.getRecipientCount() == smsRequest.getRecipients().size(), "Result is for a different number of recipients");
+        List<SmsBatch> batches = new ArrayList<SmsBatch>();
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (SmsBatch batch : previous.getBatches()) {
+            if (SmsSendResult.isPending(batch, resendUnknown)) {
+                chunks.add(new Chunk(batch.getStartIndex(), batch.getEndIndex(), 0));
+            } else {
+                batches.add(batch);
+            }
+        }
+        batches.addAll(sendChunks(smsRequest, chunks));
+        return new SmsSendResult(previous.getRecipientCount(), renumber(batches));
+    }
+
+    /**
+     * Queries the account details of every template, in the order the templates were added.
+     */
+    public List<AccountDetails> queryAccountDetails() throws ElksException {
+        List<AccountDetails> accountDetails = new ArrayList<AccountDetails>(members.size());
+        for (Member member : members) {
+            accountDetails.add(member.template.queryAccountDetails());
+        }
+        return accountDetails;
+    }
+
+    /**
+     * Queries the balance of every account and returns their sum in minor units, accounts without a balance are left
+     * out.
+     *
+     * @throws ElksException if the accounts have different currencies
+     */
+    public long queryBalanceMinorUnits() throws ElksException {
+        long balance = 0;
+        String currency = null;
+        for (AccountDetails accountDetails : queryAccountDetails()) {
+            if (!accountDetails.hasBalance()) {
+                continue;
+            }
+            if (currency == null) {
+                currency = accountDetails.getCurrency();
+            } else if (accountDetails.getCurrency() != null && !currency.equals(accountDetails.getCurrency())) {
+                throw new ElksException("Accounts have different currencies [" + currency + "] and [" + accountDetails.getCurrency() + "]");
+            }
+            balance += accountDetails.getBalanceMinorUnits();
+        }
+        return balance;
+    }
+
+    /**
+     * Shuts down the default executor, it is created again if the pool is used again. The templates are not destroyed.
+     */
+    public synchronized void destroy() {
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdown();
+            defaultExecutor = null;
+        }
+    }
+
+    private void validate(SmsRequest smsRequest) {
+        Assert.notNull(smsRequest);
+        Assert.hasText(smsRequest.getFrom());
+        Assert.hasText(smsRequest.getMessage());
+        Assert.notEmpty(smsRequest.getRecipients());
+        Assert.state(!members.isEmpty(), "No templates in pool");
+    }
+
+    /**
+     * Sends chunks concurrently, sending the parts of failed chunks that never reached the service again through other
+     * templates.
+     *
+     * @return the batches of all chunks, numbered in recipient order
+     */
+    private List<SmsBatch> sendChunks(final SmsRequest smsRequest, List<Chunk> chunks) {
+        CompletionService<ChunkOutcome> completionService = new ExecutorCompletionService<ChunkOutcome>(getExecutor());
+        Deque<Chunk> pending = new ArrayDeque<Chunk>(chunks);
+        List<SmsBatch> batches = new ArrayList<SmsBatch>();
+        int inFlight = 0;
+        while (!pending.isEmpty() || inFlight > 0) {
+            while (!pending.isEmpty() && inFlight < maxConcurrentChunks) {
+                final Chunk chunk = pending.poll();
+                final Member member = select();
+                completionService.submit(new Callable<ChunkOutcome>() {
+                    @Override
+                    public ChunkOutcome call() {
+                        return send(smsRequest, chunk, member);
+                    }
+                });
+                inFlight++;
+            }
+            ChunkOutcome outcome;
+            try {
+                outcome = completionService.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ElksException("Interrupted while sending text message", e);
+            } catch (ExecutionException e) {
+                throw new ElksException("Unexpected failure sending text message", e.getCause());
+            }
+            inFlight--;
+            for (SmsBatch batch : outcome.batches) {
+                if (batch.getStatus() != SmsBatch.Status.SENT && isNotSent(batch) && outcome.chunk.attempts + 1 < members.size()) {
+                    pending.add(new Chunk(batch.getStartIndex(), batch.getEndIndex(), outcome.chunk.attempts + 1));
+                } else {
+                    batches.add(batch);
+                }
+            }
+        }
+        return renumber(batches);
+    }
+
+    private ChunkOutcome send(SmsRequest smsRequest, Chunk chunk, Member member) {
+        SmsRequest chunkRequest = new SmsRequest();
+        chunkRequest.setFrom(smsRequest.getFrom());
+        chunkRequest.setMessage(smsRequest.getMessage());
+        chunkRequest.setFlash(smsRequest.isFlash());
+        chunkRequest.setDeliveryReportUrl(smsRequest.getDeliveryReportUrl());
+        chunkRequest.addRecipients(smsRequest.getRecipients().subList(chunk.startIndex, chunk.endIndex));
+        List<SmsBatch> batches = new ArrayList<SmsBatch>();
+        RuntimeException failure = null;
+        try {
+            for (SmsBatch batch : member.template.sendSmsResumable(chunkRequest).getBatches()) {
+                SmsBatch offset = new SmsBatch(0, chunk.startIndex + batch.getStartIndex(), chunk.startIndex + batch.getEndIndex());
+                offset.outcomeOf(batch);
+                if (batch.getStatus() == SmsBatch.Status.SENT) {
+                    member.sent.addAndGet(batch.size());
+                } else if (batch.getException() != null) {
+                    failure = failure != null ? failure : batch.getException();
+                }
+                batches.add(offset);
+            }
+        } catch (RuntimeException e) {
+            SmsBatch failed = new SmsBatch(0, chunk.startIndex, chunk.endIndex);
+            failed.unknown(e);
+            batches.add(failed);
+            failure = e;
+        } finally {
+            member.outstanding.decrementAndGet();
+        }
+        if (failure == null) {
+            member.recovered();
+        } else if (isUnhealthy(failure)) {
+            drain(member, failure);
+        }
+        return new ChunkOutcome(chunk, batches);
+    }
+
+    /**
+     * Chooses the template for a chunk and counts the chunk as outstanding for it.
+     */
+    private synchronized Member select() {
+        long now = System.currentTimeMillis();
+        Member selected = null;
+        if (strategy == Strategy.WEIGHTED_ROUND_ROBIN) {
+            // Smooth weighted round-robin, spreads the turns of heavier templates instead of giving them in a row
+            int totalWeight = 0;
+            for (Member member : members) {
+                if (!member.isDrained(now)) {
+                    member.currentWeight += member.weight;
+                    totalWeight += member.weight;
+                    if (selected == null || member.currentWeight > selected.currentWeight) {
+                        selected = member;
+                    }
+                }
+            }
+            if (selected != null) {
+                selected.currentWeight -= totalWeight;
+            }
+        } else {
+            for (Member member : members) {
+                if (!member.isDrained(now) && (selected == null
+                        || (long) member.outstanding.get() * selected.weight < (long) selected.outstanding.get() * member.weight)) {
+                    selected = member;
+                }
+            }
+        }
+        if (selected == null) {
+            for (Member member : members) {
+                if (selected == null || member.drainedUntil < selected.drainedUntil) {
+                    selected = member;
+                }
+            }
+        }
+        selected.outstanding.incrementAndGet();
+        return selected;
+    }
+
+    private void drain(Member member, RuntimeException failure) {
+        int failures = member.failures.incrementAndGet();
+        long time = Math.min(maxDrainTime, drainTime << Math.min(failures - 1, 20));
+        member.drainedUntil = System.currentTimeMillis() + time;
+        logger.warn("Draining template for account [" + member.template.getUsername() + "] for [" + time + "] ms after [" + failures + "] failures in a row", failure);
+    }
+
+    /**
+     * Returns true if a failure means that the template should not be used for a while.
+     */
+    protected boolean isUnhealthy(RuntimeException exception) {
+        for (Throwable t = exception; t != null; t = t.getCause()) {
+            if (t instanceof RateLimitExceededException) {
+                return true;
+            }
+            if (t instanceof HttpStatusCodeException) {
+                int status = ((HttpStatusCodeException) t).getStatusCode().value();
+                return status == 401 || status == 403 || status == 429 || status >= 500;
+            }
+            if (t instanceof ResourceAccessException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if a batch that was not sent is known not to have reached the service and can be sent through
+     * another template without risk of sending it twice.
+     */
+    protected boolean isNotSent(SmsBatch batch) {
+        if (batch.getStatus() == SmsBatch.Status.NOT_SENT) {
+            return true;
+        }
+        for (Throwable t = batch.getException(); t != null; t = t.getCause()) {
+            if (t instanceof RateLimitExceededException) {
+                return true;
+            }
+            if (t instanceof HttpStatusCodeException) {
+                int status = ((HttpStatusCodeException) t).getStatusCode().value();
+                return status == 401 || status == 403 || status == 429;
+            }
+        }
+        return false;
+    }
+
+    private Member member(ElksTemplate template) {
+        for (Member member : members) {
+            if (member.template == template) {
+                return member;
+            }
+        }
+        throw new IllegalArgumentException("Template is not in pool");
+    }
+
+    /**
+     * Returns the batches sorted in recipient order and numbered from zero.
+     */
+    private static List<SmsBatch> renumber(List<SmsBatch> batches) {
+        List<SmsBatch> sorted = new ArrayList<SmsBatch>(batches);
+        Collections.sort(sorted, new Comparator<SmsBatch>() {
+            @Override
+            public int compare(SmsBatch o1, SmsBatch o2) {
+                return o1.getStartIndex() < o2.getStartIndex() ? -1 : (o1.getStartIndex() == o2.getStartIndex() ? 0 : 1);
+            }
+        });
+        List<SmsBatch> numbered = new ArrayList<SmsBatch>(sorted.size());
+        for (SmsBatch batch : sorted) {
+            SmsBatch copy = new SmsBatch(numbered.size(), batch.getStartIndex(), batch.getEndIndex());
+            copy.outcomeOf(batch);
+            numbered.add(copy);
+        }
+        return numbered;
+    }
+
+    @Override
+    public String toString() {
+        return "ElksTemplatePool{" +
+                "templates=" + members.size() +
+                ", strategy=" + strategy +
+                ", chunkSize=" + chunkSize +
+                '}';
+    }
+
+    private static class Member {
+
+        private final ElksTemplate template;
+        private final int weight;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicLong sent = new AtomicLong();
+        private volatile long drainedUntil;
+        private int currentWeight;
+
+        public Member(ElksTemplate template, int weight) {
+            this.template = template;
+            this.weight = weight;
+        }
+
+        public boolean isDrained(long now) {
+            return drainedUntil > now;
+        }
+
+        public void recovered() {
+            failures.set(0);
+            drainedUntil = 0;
+        }
+    }
+
+    private static class Chunk {
+
+        private final int startIndex;
+        private final int endIndex;
+        private final int attempts;
+
+        public Chunk(int startIndex, int endIndex, int attempts) {
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+            this.attempts = attempts;
+        }
+    }
+
+    private static class ChunkOutcome {
+
+        private final Chunk chunk;
+        private final List<SmsBatch> batches;
+
+        public ChunkOutcome(Chunk chunk, List<SmsBatch> batches) {
+            this.chunk = chunk;
+            this.batches = batches;
+        }
+    }
+}
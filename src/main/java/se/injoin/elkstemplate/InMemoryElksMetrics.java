@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import se.injoin.elkstemplate.support.LatencyHistogram;
+
+/**
+ * Metrics listener keeping counters and latency histograms in memory. Requests are grouped by resource, the first
+ * segment of the resource path, e.g. <code>/SMS</code> or <code>/Numbers</code>. Recording uses atomic operations
+ * only and does not allocate once a resource has been seen.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#setMetricsListener(ElksMetricsListener)
+ * @since 1.0
+ */
+public class InMemoryElksMetrics implements ElksMetricsListener {
+
+    private final ConcurrentMap<String, ResourceMetrics> resources = new ConcurrentHashMap<String, ResourceMetrics>();
+    private final ConcurrentMap<String, AtomicLong> exceptions = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong recipientsSent = new AtomicLong();
+    private final AtomicLong recipientsFailed = new AtomicLong();
+    private final AtomicLong costMinorUnits = new AtomicLong();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    private volatile int batchSize;
+
+    @Override
+    public void requestCompleted(RequestMetrics metrics) {
+        getResourceMetrics(ElksTemplate.getResource(metrics.getResourcePath())).record(metrics);
+        if (metrics.getException() != null) {
+            countException(metrics.getException());
+        }
+    }
+
+    @Override
+    public void smsBatchCompleted(SmsBatch batch, long costMinorUnits, long elapsedNanos) {
+        batches.incrementAndGet();
+        if (batch.getStatus() == SmsBatch.Status.SENT) {
+            recipientsSent.addAndGet(batch.size());
+        } else {
+            failedBatches.incrementAndGet();
+            recipientsFailed.addAndGet(batch.size());
+        }
+        this.costMinorUnits.addAndGet(costMinorUnits);
+        batchLatency.record(elapsedNanos);
+    }
+
+    @Override
+    public void batchSizeAdapted(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the metrics for a resource, e.g. <code>/SMS</code>.
+     */
+    public ResourceMetrics getResourceMetrics(String resource) {
+        ResourceMetrics metrics = resources.get(resource);
+        if (metrics == null) {
+            ResourceMetrics created = new ResourceMetrics();
+            metrics = resources.putIfAbsent(resource, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the resources that have been called, sorted.
+     */
+    public Map<String, ResourceMetrics> getResources() {
+        return new TreeMap<String, ResourceMetrics>(resources);
+    }
+
+    /**
+     * Returns the number of failed requests by exception class name.
+     */
+    public Map<String, Long> getExceptionCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : exceptions.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getFailedBatches() {
+        return failedBatches.get();
+    }
+
+    public long getRecipientsSent() {
+        return recipientsSent.get();
+    }
+
+    public long getRecipientsFailed() {
+        return recipientsFailed.get();
+    }
+
+    /**
+     * Returns the total cost reported for sent SMS in minor units.
+     */
+    public long getCostMinorUnits() {
+        return costMinorUnits.get();
+    }
+
+    public LatencyHistogram getBatchLatency() {
+        return batchLatency;
+    }
+
+    /**
+     * Returns the latest batch size of an adaptive batch sizer or 0 if none is used.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    private void countException(RuntimeException exception) {
+        String name = exception.getClass().getName();
+        AtomicLong count = exceptions.get(name);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = exceptions.putIfAbsent(name, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryElksMetrics{" +
+                "resources=" + getResources() +
+                ", exceptions=" + getExceptionCounts() +
+                ", batches=" + batches +
+                ", failedBatches=" + failedBatches +
+                ", recipientsSent=" + recipientsSent +
+                ", recipientsFailed=" + recipientsFailed +
+                ", costMinorUnits=" + costMinorUnits +
+                ", batchLatency=" + batchLatency +
+                ", batchSize=" + batchSize +
+                '}';
+    }
+
+    /**
+     * Counters and latency histograms for the requests to one resource.
+     */
+    public static class ResourceMetrics {
+
+        private static final int MAX_STATUS = 600;
+
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS);
+        private final LatencyHistogram total = new LatencyHistogram();
+        private final LatencyHistogram connection = new LatencyHistogram();
+        private final LatencyHistogram write = new LatencyHistogram();
+        private final LatencyHistogram wait = new LatencyHistogram();
+        private final LatencyHistogram read = new LatencyHistogram();
+
+        void record(RequestMetrics metrics) {
+            requests.incrementAndGet();
+            if (metrics.getException() != null) {
+                failures.incrementAndGet();
+            }
+            if (metrics.getAttempt() > 1) {
+                retries.incrementAndGet();
+            }
+            int status = metrics.getStatus();
+            statuses.incrementAndGet(status >= 0 && status < MAX_STATUS ? status : 0);
+            total.record(metrics.getTotalNanos());
+            connection.record(metrics.getConnectionNanos());
+            write.record(metrics.getWriteNanos());
+            wait.record(metrics.getWaitNanos());
+            read.record(metrics.getReadNanos());
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * Returns the number of requests that were retries of a failed request.
+         */
+        public long getRetries() {
+            return retries.get();
+        }
+
+        /**
+         * Returns the number of responses with an HTTP status, 0 counts requests that got no response.
+         */
+        public long getStatusCount(int status) {
+            return statuses.get(status);
+        }
+
+        public LatencyHistogram getTotalLatency() {
+            return total;
+        }
+
+        public LatencyHistogram getConnectionLatency() {
+            return connection;
+        }
+
+        public LatencyHistogram getWriteLatency() {
+            return write;
+        }
+
+        public LatencyHistogram getWaitLatency() {
+            return wait;
+        }
+
+        public LatencyHistogram getReadLatency() {
+            return read;
+        }
+
+        @Override
+        public String toString() {
+            return "ResourceMetrics{" +
+                    "requests=" + requests +
+                    ", failures=" + failures +
+                    ", retries=" + retries +
+                    ", total=" + total +
+                    ", connection=" + connection +
+                    ", write=" + write +
+                    ", wait=" + wait +
+                    ", read=" + read +
+                    '}';
+        }
+    }
+}
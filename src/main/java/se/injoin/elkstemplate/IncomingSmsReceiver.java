@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import se.injoin.elkstemplate.support.DaemonThreadFactory;
+import se.injoin.elkstemplate.support.FormParser;
+
+/**
+ * Receives the incoming SMS the service posts to the SMS URL of allocated phone numbers and passes them to a handler
+ * as {@link SmsResponse}s with direction {@link SmsResponse#DIRECTION_INCOMING}.
+ * <p/>
+ * Messages are spread over a number of stripes by the hash of the sender, each stripe has a bounded queue and a
+ * worker thread of its own. Messages from the same sender are therefore handled one at a time in the order received
+ * while messages from different senders are handled in parallel. When the queue of a stripe is full the message is
+ * refused so that the HTTP request can be answered with an error and the service posts it again later, a slow handler
+ * for one sender only holds back the senders sharing its stripe.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#allocatePhoneNumber(String, String)
+ * @see ElksCallbackServer#setIncomingSmsReceiver(String, IncomingSmsReceiver)
+ * @since 1.0
+ */
+public class IncomingSmsReceiver implements CallbackReceiver {
+
+    public static final int DEFAULT_STRIPES = 8;
+    public static final int DEFAULT_STRIPE_CAPACITY = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final SmsResponseHandler handler;
+    private final ThreadLocal<FormParser> parsers = new ThreadLocal<FormParser>() {
+        @Override
+        protected FormParser initialValue() {
+            return new FormParser();
+        }
+    };
+    private int stripes = DEFAULT_STRIPES;
+    private int stripeCapacity = DEFAULT_STRIPE_CAPACITY;
+    private List<BlockingQueue<SmsResponse>> queues;
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private volatile boolean running;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+
+    /**
+     * @param handler called with every message from the worker threads, for messages from different senders
+     * concurrently
+     */
+    public IncomingSmsReceiver(SmsResponseHandler handler) {
+        Assert.notNull(handler);
+        this.handler = handler;
+        createQueues();
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * Sets the number of stripes, and so of worker threads. Must be set before the receiver is started.
+     */
+    public synchronized void setStripes(int stripes) {
+        Assert.isTrue(stripes > 0, "stripes must be positive");
+        Assert.state(!running, "Cannot change stripes of a started receiver");
+        this.stripes = stripes;
+        createQueues();
+    }
+
+    public int getStripeCapacity() {
+        return stripeCapacity;
+    }
+
+    /**
+     * Sets the number of messages that can wait in each stripe before new messages for it are refused. Must be set
+     * before the receiver is started.
+     */
+    public synchronized void setStripeCapacity(int stripeCapacity) {
+        Assert.isTrue(stripeCapacity > 0, "stripeCapacity must be positive");
+        Assert.state(!running, "Cannot change stripe capacity of a started receiver");
+        this.stripeCapacity = stripeCapacity;
+        createQueues();
+    }
+
+    private void createQueues() {
+        List<BlockingQueue<SmsResponse>> queues = new ArrayList<BlockingQueue<SmsResponse>>(stripes);
+        for (int i = 0; i < stripes; i++) {
+            queues.add(new ArrayBlockingQueue<SmsResponse>(stripeCapacity));
+        }
+        this.queues = queues;
+    }
+
+    /**
+     * Starts a worker thread per stripe.
+     */
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        DaemonThreadFactory threadFactory = new DaemonThreadFactory("elks-incoming");
+        for (final BlockingQueue<SmsResponse> queue : queues) {
+            Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    work(queue);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the worker threads after the queued messages have been handled.
+     */
+    @Override
+    public void stop() {
+        List<Thread> stopping;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopping = new ArrayList<Thread>(threads);
+            threads.clear();
+        }
+        boolean interrupted = false;
+        for (Thread thread : stopping) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parses a form encoded incoming SMS and queues it in the stripe of its sender.
+     *
+     * @return false if the queue of the stripe is full and the message was refused
+     * @throws IllegalArgumentException if the body is not a valid incoming SMS
+     */
+    @Override
+    public boolean receive(byte[] body, int offset, int length) {
+        SmsResponse sms;
+        try {
+            sms = parse(parsers.get().reset(body, offset, length));
+        } catch (IllegalArgumentException e) {
+            invalid.incrementAndGet();
+            throw e;
+        }
+        return receive(sms);
+    }
+
+    /**
+     * Queues an incoming SMS in the stripe of its sender.
+     *
+     * @return false if the queue of the stripe is full and the message was refused
+     */
+    public boolean receive(SmsResponse sms) {
+        Assert.notNull(sms);
+        Assert.notNull(sms.getFrom());
+        received.incrementAndGet();
+        if (!queues.get(stripe(sms.getFrom())).offer(sms)) {
+            refused.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Refused incoming SMS [" + sms.getId() + "] from [" + sms.getFrom() + "], stripe is full");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the stripe of a sender.
+     */
+    protected int stripe(String from) {
+        int h = from.hashCode();
+        // Spread the higher bits since senders often differ only in their last digits
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & Integer.MAX_VALUE) % stripes;
+    }
+
+    /**
+     * Parses the fields of an incoming SMS. Fields other than id, from, to, message and created are ignored.
+     */
+    protected SmsResponse parse(FormParser parser) {
+        SmsResponse sms = new SmsResponse();
+        sms.setDirection(SmsResponse.DIRECTION_INCOMING);
+        while (parser.next()) {
+            if (parser.isName("id")) {
+                sms.setId(parser.getValue());
+            } else if (parser.isName("from")) {
+                sms.setFrom(parser.getValue());
+            } else if (parser.isName("to")) {
+                sms.setTo(parser.getValue());
+            } else if (parser.isName("message")) {
+                sms.setMessage(parser.getValue());
+            } else if (parser.isName("created")) {
+                try {
+                    sms.setCreated(new Date(parser.getTimestampValue()));
+                } catch (ParseException e) {
+                    throw new IllegalArgumentException("Invalid created timestamp [" + parser.getValue() + "]", e);
+                }
+            }
+        }
+        if (sms.getFrom() == null || sms.getFrom().length() == 0 || sms.getMessage() == null) {
+            throw new IllegalArgumentException("Incoming SMS without from or message");
+        }
+        return sms;
+    }
+
+    /**
+     * Returns the number of messages waiting in all stripes.
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (BlockingQueue<SmsResponse> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getRefusedCount() {
+        return refused.get();
+    }
+
+    public long getInvalidCount() {
+        return invalid.get();
+    }
+
+    public long getHandledCount() {
+        return handled.get();
+    }
+
+    private void work(BlockingQueue<SmsResponse> queue) {
+        while (running || !queue.isEmpty()) {
+            SmsResponse sms;
+            try {
+                sms = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (sms == null) {
+                continue;
+            }
+            try {
+                handler.handleResponse(sms);
+            } catch (RuntimeException e) {
+                logger.error("Incoming SMS handler failed for [" + sms.getId() + "] from [" + sms.getFrom() + "]", e);
+            }
+            handled.incrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IncomingSmsReceiver{" +
+                "stripes=" + stripes +
+                ", queueSize=" + getQueueSize() +
+                ", received=" + received +
+                ", refused=" + refused +
+                ", invalid=" + invalid +
+                ", handled=" + handled +
+                '}';
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.List;
+
+/**
+ * Result of normalizing recipients.
+ *
+ * @author Tobias Mattsson
+ * @see RecipientNormalizer
+ * @since 1.0
+ */
+public class NormalizedRecipients {
+
+    private final List<String> recipients;
+    private final List<String> invalidRecipients;
+    private final int duplicates;
+
+    public NormalizedRecipients(List<String> recipients, List<String> invalidRecipients, int duplicates) {
+        this.recipients = recipients;
+        this.invalidRecipients = invalidRecipients;
+        this.duplicates = duplicates;
+    }
+
+    /**
+     * Returns the unique recipients in E.164 format.
+     */
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * Returns the recipients that are not valid numbers, as given.
+     */
+    public List<String> getInvalidRecipients() {
+        return invalidRecipients;
+    }
+
+    /**
+     * Returns the number of recipients removed as duplicates.
+     */
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    @Override
+    public String toString() {
+        return "NormalizedRecipients{" +
+                "recipients=" + recipients.size() +
+                ", invalidRecipients=" + invalidRecipients +
+                ", duplicates=" + duplicates +
+                '}';
+    }
+}
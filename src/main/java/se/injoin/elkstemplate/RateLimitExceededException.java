@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+/**
+ * Exception thrown when a call is not made because it would exceed the client-side rate limit.
+ *
+ * @author Tobias Mattsson
+ * @see RateLimiter
+ * @since 1.0
+ */
+public class RateLimitExceededException extends ElksException {
+
+    public RateLimitExceededException(String msg) {
+        super(msg);
+    }
+}
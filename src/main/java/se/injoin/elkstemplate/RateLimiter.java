@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.util.Assert;
+
+import se.injoin.elkstemplate.support.TokenBucket;
+
+/**
+ * Client-side rate limiter pacing calls to the 46 Elks service so that they stay within what the service accepts.
+ * Has one budget for messages per second, counting every recipient of every batch sent, and one budget of requests per
+ * second for each resource path, {@link ElksTemplate#SMS_RESOURCE_PATH}, {@link ElksTemplate#NUMBERS_RESOURCE_PATH} and
+ * {@link ElksTemplate#ME_RESOURCE_PATH}. Budgets that are not set are unlimited.
+ * <p/>
+ * Each budget is a lock-free token bucket so concurrent callers do not contend on a lock. In
+ * {@link Mode#BLOCKING blocking} mode callers wait for permits, up to {@link #setMaxWait(long)}. In
+ * {@link Mode#FAIL_FAST fail-fast} mode a {@link RateLimitExceededException} is thrown if permits are not available
+ * immediately.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#setRateLimiter(RateLimiter)
+ * @since 1.0
+ */
+public class RateLimiter {
+
+    public enum Mode {
+        BLOCKING,
+        FAIL_FAST
+    }
+
+    private final ConcurrentHashMap<String, TokenBucket> requestBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private volatile TokenBucket messageBucket;
+    private volatile Mode mode = Mode.BLOCKING;
+    private volatile long maxWait = Long.MAX_VALUE;
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        Assert.notNull(mode);
+        this.mode = mode;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Sets the longest time in milliseconds to wait for permits in blocking mode, by default there is no limit.
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Limits the number of messages sent per second, allowing a burst of one second's worth.
+     */
+    public void setMessagesPerSecond(double messagesPerSecond) {
+        setMessagesPerSecond(messagesPerSecond, (int) Math.ceil(messagesPerSecond));
+    }
+
+    /**
+     * Limits the number of messages sent per second.
+     *
+     * @param burst the number of messages that can be sent at once after being idle
+     */
+    public void setMessagesPerSecond(double messagesPerSecond, int burst) {
+        messageBucket = new TokenBucket(messagesPerSecond, burst);
+    }
+
+    /**
+     * Limits the number of requests per second to a resource path, allowing a burst of one second's worth.
+     */
+    public void setRequestsPerSecond(String resourcePath, double requestsPerSecond) {
+        setRequestsPerSecond(resourcePath, requestsPerSecond, (int) Math.ceil(requestsPerSecond));
+    }
+
+    /**
+     * Limits the number of requests per second to a resource path.
+     *
+     * @param resourcePath one of the resource paths in {@link ElksTemplate}
+     * @param burst the number of requests that can be made at once after being idle
+     */
+    public void setRequestsPerSecond(String resourcePath, double requestsPerSecond, int burst) {
+        Assert.hasText(resourcePath);
+        requestBuckets.put(resourcePath, new TokenBucket(requestsPerSecond, burst));
+    }
+
+    /**
+     * Acquires permits for sending messages.
+     *
+     * @param messages the number of messages, one per recipient
+     * @throws RateLimitExceededException if the permits could not be acquired
+     */
+    public void acquireMessages(int messages) throws RateLimitExceededException {
+        TokenBucket bucket = messageBucket;
+        if (bucket != null) {
+            acquire(bucket, messages, "[" + messages + "] messages");
+        }
+    }
+
+    /**
+     * Acquires a permit for making a request. Paths below a resource count towards the resource, i.e.
+     * <code>/Numbers/n1234</code> counts as <code>/Numbers</code>.
+     *
+     * @throws RateLimitExceededException if the permit could not be acquired
+     */
+    public void acquireRequest(String resourcePath) throws RateLimitExceededException {
+        if (requestBuckets.isEmpty()) {
+            return;
+        }
+        String resource = ElksTemplate.getResource(resourcePath);
+        TokenBucket bucket = requestBuckets.get(resource);
+        if (bucket != null) {
+            acquire(bucket, 1, "request to [" + resource + "]");
+        }
+    }
+
+    private void acquire(TokenBucket bucket, int permits, String description) {
+        long maxWaitNanos = mode == Mode.FAIL_FAST ? 0 : (maxWait == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(maxWait));
+        long wait = bucket.reserve(permits, maxWaitNanos);
+        if (wait < 0) {
+            throw new RateLimitExceededException("Rate limit exceeded for " + description);
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ElksException("Interrupted while waiting for rate limit for " + description, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.util.Assert;
+
+import se.injoin.elkstemplate.support.LongHashSet;
+import se.injoin.elkstemplate.support.PhoneNumberUtils;
+
+/**
+ * Normalizes recipients to E.164 format and removes duplicates, so that the same number written differently, e.g.
+ * <code>+46701234567</code>, <code>0046 70 123 45 67</code> and <code>070-1234567</code>, is sent to and paid for once.
+ * Numbers in national format are accepted when a default country code is set.
+ * <p/>
+ * Numbers seen are kept as primitive longs in a {@link LongHashSet}, making it practical to de-duplicate lists of
+ * millions of recipients. Thread-safe, every call uses its own set.
+ *
+ * @author Tobias Mattsson
+ * @see PhoneNumberUtils
+ * @since 1.0
+ */
+public class RecipientNormalizer {
+
+    private String defaultCountryCode;
+
+    public String getDefaultCountryCode() {
+        return defaultCountryCode;
+    }
+
+    /**
+     * Sets the country code for numbers in national format, e.g. <code>46</code> for Sweden. Without it numbers in
+     * national format are invalid.
+     */
+    public void setDefaultCountryCode(String defaultCountryCode) {
+        if (defaultCountryCode != null) {
+            Assert.isTrue(defaultCountryCode.matches("[1-9][0-9]{0,2}"), "defaultCountryCode must be 1 to 3 digits");
+        }
+        this.defaultCountryCode = defaultCountryCode;
+    }
+
+    /**
+     * Normalizes recipients keeping the order of their first occurrence.
+     */
+    public NormalizedRecipients normalize(Collection<String> recipients) {
+        LongHashSet seen = new LongHashSet(recipients.size());
+        List<String> normalized = new ArrayList<String>(recipients.size());
+        List<String> invalid = new ArrayList<String>();
+        int duplicates = 0;
+        for (String recipient : recipients) {
+            long number = recipient == null ? PhoneNumberUtils.INVALID : PhoneNumberUtils.parse(recipient, defaultCountryCode);
+            if (number == PhoneNumberUtils.INVALID) {
+                invalid.add(recipient);
+            } else if (seen.add(number)) {
+                normalized.add(PhoneNumberUtils.format(number));
+            } else {
+                duplicates++;
+            }
+        }
+        return new NormalizedRecipients(normalized, invalid, duplicates);
+    }
+
+    /**
+     * Replaces the recipients of a request with the normalized ones.
+     *
+     * @return the result, including the invalid recipients removed from the request
+     */
+    public NormalizedRecipients normalize(SmsRequest smsRequest) {
+        NormalizedRecipients result = normalize(smsRequest.getRecipients());
+        smsRequest.setRecipients(result.getRecipients());
+        return result;
+    }
+}
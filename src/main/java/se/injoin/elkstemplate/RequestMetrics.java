@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+/**
+ * Timings and outcome of a single HTTP request. The total time is split into the phases of the request:
+ * <ul>
+ * <li>connection - waiting for a connection from the pool, or opening one</li>
+ * <li>write - writing the request headers and body</li>
+ * <li>wait - waiting for the response headers from the service</li>
+ * <li>read - reading and deserializing the response body</li>
+ * </ul>
+ * A request that fails before reaching a phase has zero time in it.
+ *
+ * @author Tobias Mattsson
+ * @see ElksMetricsListener
+ * @since 1.0
+ */
+public class RequestMetrics {
+
+    private final String resourcePath;
+    private final int attempt;
+    private final long startTime;
+    private long executeTime;
+    private long writeNanos;
+    private long waitNanos;
+    private long totalNanos;
+    private int status;
+    private RuntimeException exception;
+
+    RequestMetrics(String resourcePath, int attempt) {
+        this.resourcePath = resourcePath;
+        this.attempt = attempt;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Returns the path of the resource called, including any path variables and query.
+     */
+    public String getResourcePath() {
+        return resourcePath;
+    }
+
+    /**
+     * Returns the attempt number, 1 for the first attempt and higher for retries.
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * Returns the HTTP status of the response or 0 if no response was received.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the exception the request failed with or null if it succeeded.
+     */
+    public RuntimeException getException() {
+        return exception;
+    }
+
+    public long getConnectionNanos() {
+        return executeTime == 0 ? 0 : executeTime - startTime;
+    }
+
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    public long getReadNanos() {
+        return executeTime == 0 ? 0 : totalNanos - getConnectionNanos() - writeNanos - waitNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    void executing() {
+        if (executeTime == 0) {
+            executeTime = System.nanoTime();
+        }
+    }
+
+    void written(long nanos) {
+        writeNanos += nanos;
+    }
+
+    void received(long nanos, int status) {
+        waitNanos += nanos;
+        this.status = status;
+    }
+
+    void completed(RuntimeException exception) {
+        this.totalNanos = System.nanoTime() - startTime;
+        this.exception = exception;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestMetrics{" +
+                "resourcePath='" + resourcePath + '\'' +
+                ", attempt=" + attempt +
+                ", status=" + status +
+                ", connectionNanos=" + getConnectionNanos() +
+                ", writeNanos=" + writeNanos +
+                ", waitNanos=" + waitNanos +
+                ", readNanos=" + getReadNanos() +
+                ", totalNanos=" + totalNanos +
+                ", exception=" + exception +
+                '}';
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.net.ConnectException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Policy for retrying calls to the 46 Elks service that failed with a transient error. Uses exponential backoff with
+ * random jitter and honors the <code>Retry-After</code> header. The total time spent on a call including waiting is
+ * capped by {@link #setMaxElapsedTime(long)}.
+ * <p/>
+ * Idempotent calls, which are the GET requests for account details, phone numbers and SMS history, are retried on
+ * server errors, <code>429 Too Many Requests</code> and I/O errors. Calls that are not idempotent, which are all POST
+ * requests including sending SMS, are only retried when the request is known not to have been processed. That is
+ * when the connection could not be established or the service answered <code>429 Too Many Requests</code>. Retrying
+ * them on other errors risks sending the same SMS twice and is only done if {@link #setRetryNonIdempotent(boolean)} is
+ * enabled.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#setRetryPolicy(RetryPolicy)
+ * @since 1.0
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF = 200;
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+    public static final long DEFAULT_MAX_BACKOFF = 10000;
+    public static final double DEFAULT_JITTER = 0.5;
+    public static final long DEFAULT_MAX_ELAPSED_TIME = 30000;
+
+    private static final String RETRY_AFTER_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final Random random = new Random();
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private double multiplier = DEFAULT_MULTIPLIER;
+    private long maxBackoff = DEFAULT_MAX_BACKOFF;
+    private double jitter = DEFAULT_JITTER;
+    private long maxElapsedTime = DEFAULT_MAX_ELAPSED_TIME;
+    private boolean retryNonIdempotent;
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Sets the maximum number of attempts including the first one.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * Sets the time in milliseconds to wait before the first retry.
+     */
+    public void setInitialBackoff(long initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    /**
+     * Sets the factor the backoff grows with for each retry.
+     */
+    public void setMultiplier(double multiplier) {
+        this.multiplier = multiplier;
+    }
+
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds to wait between two attempts, not counting <code>Retry-After</code>.
+     */
+    public void setMaxBackoff(long maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Sets the fraction of the backoff that is randomized, between 0 and 1. With the default of 0.5 the wait is
+     * between half and all of the backoff, spreading out retries from many clients failing at the same time.
+     */
+    public void setJitter(double jitter) {
+        this.jitter = jitter;
+    }
+
+    public long getMaxElapsedTime() {
+        return maxElapsedTime;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds from the first attempt after which no more retries are made.
+     */
+    public void setMaxElapsedTime(long maxElapsedTime) {
+        this.maxElapsedTime = maxElapsedTime;
+    }
+
+    public boolean isRetryNonIdempotent() {
+        return retryNonIdempotent;
+    }
+
+    /**
+     * Enables retrying POST requests on errors where the request may already have been processed by the service.
+     */
+    public void setRetryNonIdempotent(boolean retryNonIdempotent) {
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+
+    /**
+     * Returns the time in milliseconds to wait before the next attempt or -1 if the call should not be retried.
+     *
+     * @param exception the failure of the last attempt
+     * @param idempotent true if the call can be repeated without side effects
+     * @param attempts the number of attempts made so far
+     * @param elapsedTime the time in milliseconds since the first attempt
+     */
+    public long getRetryDelay(RestClientException exception, boolean idempotent, int attempts, long elapsedTime) {
+        if (attempts >= maxAttempts || !isRetryable(exception, idempotent)) {
+            return -1;
+        }
+        long delay = getRetryAfter(exception);
+        if (delay < 0) {
+            double backoff = Math.min(initialBackoff * Math.pow(multiplier, attempts - 1), maxBackoff);
+            delay = (long) (backoff - backoff * jitter * random.nextDouble());
+        }
+        if (elapsedTime + delay > maxElapsedTime) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * Returns true if the failure is transient and the call can be retried.
+     */
+    protected boolean isRetryable(RestClientException exception, boolean idempotent) {
+        if (exception instanceof HttpStatusCodeException) {
+            HttpStatus status = ((HttpStatusCodeException) exception).getStatusCode();
+            if (status == HttpStatus.TOO_MANY_REQUESTS) {
+                return true;
+            }
+            return status.value() >= 500 && (idempotent || retryNonIdempotent);
+        }
+        if (exception instanceof ResourceAccessException) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof ConnectException || cause instanceof ConnectTimeoutException || cause instanceof ConnectionPoolTimeoutException) {
+                // The request was never sent
+                return true;
+            }
+            return idempotent || retryNonIdempotent;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the wait in milliseconds requested by a <code>Retry-After</code> header or -1 if there is none.
+     */
+    protected long getRetryAfter(RestClientException exception) {
+        if (!(exception instanceof HttpStatusCodeException)) {
+            return -1;
+        }
+        HttpStatusCodeException statusCodeException = (HttpStatusCodeException) exception;
+        if (statusCodeException.getStatusCode() != HttpStatus.SERVICE_UNAVAILABLE && statusCodeException.getStatusCode() != HttpStatus.TOO_MANY_REQUESTS) {
+            return -1;
+        }
+        if (statusCodeException.getResponseHeaders() == null) {
+            return -1;
+        }
+        String retryAfter = statusCodeException.getResponseHeaders().getFirst("Retry-After");
+        if (retryAfter == null) {
+            return -1;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            return Math.max(Long.parseLong(retryAfter) * 1000, 0);
+        } catch (NumberFormatException e) {
+            // Not delta-seconds, try HTTP-date
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(RETRY_AFTER_DATE_FORMAT, Locale.US);
+            return Math.max(format.parse(retryAfter).getTime() - System.currentTimeMillis(), 0);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" +
+                "maxAttempts=" + maxAttempts +
+                ", initialBackoff=" + initialBackoff +
+                ", multiplier=" + multiplier +
+                ", maxBackoff=" + maxBackoff +
+                ", jitter=" + jitter +
+                ", maxElapsedTime=" + maxElapsedTime +
+                ", retryNonIdempotent=" + retryNonIdempotent +
+                '}';
+    }
+}
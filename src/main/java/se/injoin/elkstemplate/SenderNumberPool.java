@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import se.injoin.elkstemplate.support.DaemonThreadFactory;
+
+/**
+ * Pool of allocated phone numbers used as senders, spreading the traffic of numeric senders over several numbers
+ * instead of sending everything from one. Each country has its own numbers, recipients are matched to a country by
+ * calling code and recipients of no configured country use the numbers of the first.
+ * <p/>
+ * Recipients are sticky, a recipient is sent to from the same number every time so that replies and conversations stay
+ * on one number. New recipients get the number with the fewest messages in the current window. The assignments of the
+ * most recently seen recipients are remembered, up to {@link #setMaxStickyRecipients(int)}.
+ * <p/>
+ * {@link #rebalance()}, run every rate window once started, compares the messages sent per number and second during the
+ * window with the target rate. Above the target numbers are allocated, up to the maximum per country. Below half the
+ * target the least used number is deallocated, down to the minimum per country, and its recipients are assigned other
+ * numbers. Only numbers owned by the pool are deallocated, those it allocated itself and, when
+ * {@link #setSmsUrl(String)} is set, the numbers with that URL taken in by {@link #open()}. Other numbers taken in
+ * are used as senders but never released since they may be used for something else.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#allocatePhoneNumber(String, String)
+ * @since 1.0
+ */
+public class SenderNumberPool {
+
+    public static final int DEFAULT_MAX_NUMBERS = 10;
+    public static final double DEFAULT_TARGET_RATE = 1.0;
+    public static final long DEFAULT_RATE_WINDOW = 60000;
+    public static final int DEFAULT_MAX_STICKY_RECIPIENTS = 100000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ElksTemplate elksTemplate;
+    private final List<Country> countries = new ArrayList<Country>();
+    private String smsUrl;
+    private int maxNumbers = DEFAULT_MAX_NUMBERS;
+    private double targetRate = DEFAULT_TARGET_RATE;
+    private long rateWindow = DEFAULT_RATE_WINDOW;
+    private int maxStickyRecipients = DEFAULT_MAX_STICKY_RECIPIENTS;
+    private Map<String, Sender> sticky;
+    private long windowStart = System.currentTimeMillis();
+    private boolean opened;
+    private ScheduledExecutorService rebalancer;
+    private final Object rebalanceLock = new Object();
+
+    public SenderNumberPool(ElksTemplate elksTemplate) {
+        Assert.notNull(elksTemplate);
+        this.elksTemplate = elksTemplate;
+        setMaxStickyRecipients(DEFAULT_MAX_STICKY_RECIPIENTS);
+    }
+
+    /**
+     * Adds a country to keep numbers in.
+     *
+     * @param country the country as passed to {@link ElksTemplate#allocatePhoneNumber(String, String)}, e.g. "se"
+     * @param callingCode the calling code of recipients in the country, e.g. "46"
+     * @param minNumbers the number of numbers to keep at least
+     */
+    public synchronized void addCountry(String country, String callingCode, int minNumbers) {
+        Assert.hasText(country);
+        Assert.hasText(callingCode);
+        Assert.isTrue(minNumbers > 0, "minNumbers must be positive");
+        countries.add(new Country(country, "+" + callingCode, minNumbers));
+    }
+
+    public String getSmsUrl() {
+        return smsUrl;
+    }
+
+    /**
+     * Sets the URL for incoming SMS of allocated numbers. When set only numbers with this URL are taken into the pool
+     * by {@link #open()} and they are owned by the pool, so they may be deallocated when rebalancing.
+     */
+    public void setSmsUrl(String smsUrl) {
+        this.smsUrl = smsUrl;
+    }
+
+    public int getMaxNumbers() {
+        return maxNumbers;
+    }
+
+    /**
+     * Sets the maximum number of numbers per country.
+     */
+    public void setMaxNumbers(int maxNumbers) {
+        Assert.isTrue(maxNumbers > 0, "maxNumbers must be positive");
+        this.maxNumbers = maxNumbers;
+    }
+
+    public double getTargetRate() {
+        return targetRate;
+    }
+
+    /**
+     * Sets the messages per second to send from each number.
+     */
+    public void setTargetRate(double targetRate) {
+        Assert.isTrue(targetRate > 0, "targetRate must be positive");
+        this.targetRate = targetRate;
+    }
+
+    public long getRateWindow() {
+        return rateWindow;
+    }
+
+    /**
+     * Sets the time in milliseconds between rebalancing once started.
+     */
+    public void setRateWindow(long rateWindow) {
+        Assert.isTrue(rateWindow > 0, "rateWindow must be positive");
+        this.rateWindow = rateWindow;
+    }
+
+    public int getMaxStickyRecipients() {
+        return maxStickyRecipients;
+    }
+
+    /**
+     * Sets the number of recipient assignments remembered, the least recently used are forgotten first.
+     */
+    public synchronized void setMaxStickyRecipients(final int maxStickyRecipients) {
+        Assert.isTrue(maxStickyRecipients > 0, "maxStickyRecipients must be positive");
+        this.maxStickyRecipients = maxStickyRecipients;
+        Map<String, Sender> resized = new LinkedHashMap<String, Sender>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Sender> eldest) {
+                return size() > maxStickyRecipients;
+            }
+        };
+        if (sticky != null) {
+            resized.putAll(sticky);
+        }
+        sticky = resized;
+    }
+
+    /**
+     * Takes the active SMS capable numbers of the configured countries into the pool and allocates numbers for the
+     * countries with fewer than their minimum. Does nothing if already open. If opening fails the pool is left empty
+     * and can be opened again, numbers allocated before the failure are taken in then.
+     */
+    public synchronized void open() throws ElksException {
+        Assert.state(!countries.isEmpty(), "No countries added");
+        if (opened) {
+            return;
+        }
+        try {
+            for (PhoneNumberDetails details : elksTemplate.queryPhoneNumbers()) {
+                Country country = country(details.getCountry());
+                if (country != null && details.isActive() && details.hasCapability(PhoneNumberDetails.CAPABILITY_SMS)
+                        && (smsUrl == null || smsUrl.equals(details.getSmsUrl())) && country.senders.size() < maxNumbers) {
+                    country.senders.add(new Sender(details, smsUrl != null));
+                }
+            }
+            for (Country country : countries) {
+                while (country.senders.size() < country.minNumbers) {
+                    country.senders.add(allocate(country));
+                }
+            }
+            windowStart = System.currentTimeMillis();
+            opened = true;
+        } finally {
+            if (!opened) {
+                for (Country country : countries) {
+                    country.senders.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts rebalancing every rate window.
+     */
+    public synchronized void start() {
+        if (rebalancer != null) {
+            return;
+        }
+        rebalancer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("elks-sender-pool"));
+        rebalancer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebalance();
+                } catch (RuntimeException e) {
+                    logger.error("Could not rebalance sender numbers", e);
+                }
+            }
+        }, rateWindow, rateWindow, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops rebalancing. The numbers stay allocated.
+     */
+    public synchronized void destroy() {
+        if (rebalancer != null) {
+            rebalancer.shutdownNow();
+            rebalancer = null;
+        }
+    }
+
+    /**
+     * Returns the number to send to a recipient from and counts a message sent from it.
+     */
+    public synchronized String getSender(String recipient) {
+        Assert.hasText(recipient);
+        Sender sender = sticky.get(recipient);
+        if (sender == null || sender.removed) {
+            Country country = countryOf(recipient);
+            for (Sender candidate : country.senders) {
+                if (sender == null || sender.removed || candidate.windowCount.get() < sender.windowCount.get()) {
+                    sender = candidate;
+                }
+            }
+            Assert.state(sender != null, "No numbers in pool for [" + country.code + "]");
+            sticky.put(recipient, sender);
+        }
+        sender.windowCount.incrementAndGet();
+        sender.totalCount.incrementAndGet();
+        return sender.details.getNumber();
+    }
+
+    /**
+     * Assigns senders to recipients.
+     *
+     * @return the recipients of each sender, in the order of the recipients
+     */
+    public Map<String, List<String>> assignSenders(List<String> recipients) {
+        Map<String, List<String>> assigned = new LinkedHashMap<String, List<String>>();
+        for (String recipient : recipients) {
+            String sender = getSender(recipient);
+            List<String> list = assigned.get(sender);
+            if (list == null) {
+                list = new ArrayList<String>();
+                assigned.put(sender, list);
+            }
+            list.add(recipient);
+        }
+        return assigned;
+    }
+
+    /**
+     * Sends an SMS from the assigned sender of each recipient with one call per sender. The <code>from</code> of the
+     * request is ignored. If a call fails the exception is thrown, the recipients of earlier senders have been sent to.
+     *
+     * @return the responses in recipient order
+     */
+    public List<SmsResponse> sendSms(SmsRequest smsRequest) throws ElksException {
+        Assert.notNull(smsRequest);
+        List<String> recipients = smsRequest.getRecipients();
+        String[] senders = new String[recipients.size()];
+        Map<String, SmsRequest> requests = new LinkedHashMap<String, SmsRequest>();
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = getSender(recipients.get(i));
+            SmsRequest senderRequest = requests.get(senders[i]);
+            if (senderRequest == null) {
+                senderRequest = new SmsRequest();
+                senderRequest.setFrom(senders[i]);
+                senderRequest.setMessage(smsRequest.getMessage());
+                senderRequest.setFlash(smsRequest.isFlash());
+                senderRequest.setDeliveryReportUrl(smsRequest.getDeliveryReportUrl());
+                requests.put(senders[i], senderRequest);
+            }
+            senderRequest.addRecipient(recipients.get(i));
+        }
+        Map<String, Iterator<SmsResponse>> responses = new HashMap<String, Iterator<SmsResponse>>();
+        for (Map.Entry<String, SmsRequest> entry : requests.entrySet()) {
+            responses.put(entry.getKey(), elksTemplate.sendSms(entry.getValue()).iterator());
+        }
+        List<SmsResponse> ordered = new ArrayList<SmsResponse>(senders.length);
+        for (String sender : senders) {
+            ordered.add(responses.get(sender).next());
+        }
+        return ordered;
+    }
+
+    /**
+     * Allocates or deallocates numbers by the rate sent per number since the last time. The counters are taken and the
+     * numbers to release are taken out of the pool under the lock, the calls to the service are made without holding it
+     * so that senders are not held up.
+     */
+    public void rebalance() throws ElksException {
+        synchronized (rebalanceLock) {
+            Map<Country, Integer> growth = new LinkedHashMap<Country, Integer>();
+            Map<Country, Sender> released = new LinkedHashMap<Country, Sender>();
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                double seconds = Math.max(1, now - windowStart) / 1000.0;
+                windowStart = now;
+                for (Country country : countries) {
+                    long sent = 0;
+                    Sender leastUsed = null;
+                    for (Sender sender : country.senders) {
+                        long count = sender.windowCount.getAndSet(0);
+                        sender.lastWindowCount = count;
+                        sent += count;
+                        if (sender.owned && (leastUsed == null || count < leastUsed.lastWindowCount)) {
+                            leastUsed = sender;
+                        }
+                    }
+                    double rate = sent / seconds / Math.max(1, country.senders.size());
+                    if (rate > targetRate && country.senders.size() < maxNumbers) {
+                        int target = Math.min(maxNumbers, (int) Math.ceil(sent / seconds / targetRate));
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Growing sender numbers for [" + country.code + "] from [" + country.senders.size() + "] to [" + target + "] at [" + rate + "] messages per second and number");
+                        }
+                        growth.put(country, target - country.senders.size());
+                    } else if (rate < targetRate / 2 && country.senders.size() > country.minNumbers && leastUsed != null) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Shrinking sender numbers for [" + country.code + "] at [" + rate + "] messages per second and number");
+                        }
+                        // Recipients of the number are assigned another one when next seen
+                        country.senders.remove(leastUsed);
+                        leastUsed.removed = true;
+                        released.put(country, leastUsed);
+                    }
+                }
+            }
+            RuntimeException failure = null;
+            for (Map.Entry<Country, Sender> entry : released.entrySet()) {
+                try {
+                    deallocate(entry.getKey(), entry.getValue());
+                } catch (RuntimeException e) {
+                    failure = failure != null ? failure : e;
+                }
+            }
+            for (Map.Entry<Country, Integer> entry : growth.entrySet()) {
+                Country country = entry.getKey();
+                List<Sender> allocated = new ArrayList<Sender>();
+                try {
+                    for (int i = 0; i < entry.getValue(); i++) {
+                        allocated.add(allocate(country));
+                    }
+                } finally {
+                    synchronized (this) {
+                        country.senders.addAll(allocated);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Returns the numbers in the pool for a country.
+     */
+    public synchronized List<String> getNumbers(String country) {
+        Country c = country(country);
+        Assert.notNull(c, "Country [" + country + "] not in pool");
+        List<String> numbers = new ArrayList<String>(c.senders.size());
+        for (Sender sender : c.senders) {
+            numbers.add(sender.details.getNumber());
+        }
+        return numbers;
+    }
+
+    /**
+     * Returns the number of messages counted for a number in total.
+     */
+    public synchronized long getSentCount(String number) {
+        for (Country country : countries) {
+            for (Sender sender : country.senders) {
+                if (sender.details.getNumber().equals(number)) {
+                    return sender.totalCount.get();
+                }
+            }
+        }
+        return 0;
+    }
+
+    private Sender allocate(Country country) {
+        PhoneNumberDetails details = elksTemplate.allocatePhoneNumber(country.code, smsUrl);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Allocated sender number [" + details.getNumber() + "] for [" + country.code + "]");
+        }
+        return new Sender(details, true);
+    }
+
+    /**
+     * Deallocates a number already taken out of the pool. If the service fails the number is put back so that it is
+     * not left allocated without being used.
+     */
+    private void deallocate(Country country, Sender sender) {
+        try {
+            elksTemplate.deallocatePhoneNumber(sender.details.getId());
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                sender.removed = false;
+                country.senders.add(sender);
+            }
+            throw e;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Deallocated sender number [" + sender.details.getNumber() + "] for [" + country.code + "]");
+        }
+    }
+
+    private Country country(String code) {
+        for (Country country : countries) {
+            if (country.code.equalsIgnoreCase(code)) {
+                return country;
+            }
+        }
+        return null;
+    }
+
+    private Country countryOf(String recipient) {
+        Country matched = countries.get(0);
+        int matchedLength = 0;
+        for (Country country : countries) {
+            if (recipient.startsWith(country.prefix) && country.prefix.length() > matchedLength) {
+                matched = country;
+                matchedLength = country.prefix.length();
+            }
+        }
+        return matched;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder numbers = new StringBuilder();
+        for (Country country : countries) {
+            if (numbers.length() > 0) {
+                numbers.append(", ");
+            }
+            numbers.append(country.code).append('=').append(country.senders.size());
+        }
+        return "SenderNumberPool{" +
+                "numbers={" + numbers + '}' +
+                ", targetRate=" + targetRate +
+                ", stickyRecipients=" + sticky.size() +
+                '}';
+    }
+
+    private static class Country {
+
+        private final String code;
+        private final String prefix;
+        private final int minNumbers;
+        private final List<Sender> senders = new ArrayList<Sender>();
+
+        public Country(String code, String prefix, int minNumbers) {
+            this.code = code;
+            this.prefix = prefix;
+            this.minNumbers = minNumbers;
+        }
+    }
+
+    private static class Sender {
+
+        private final PhoneNumberDetails details;
+        private final AtomicLong windowCount = new AtomicLong();
+        private final AtomicLong totalCount = new AtomicLong();
+        private long lastWindowCount;
+        private final boolean owned;
+        private boolean removed;
+
+        public Sender(PhoneNumberDetails details, boolean owned) {
+            this.details = details;
+            this.owned = owned;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.List;
+
+/**
+ * Outcome of sending an SMS to one batch of recipients. A batch covers the recipients of the request from
+ * <code>startIndex</code> and up to but not including <code>endIndex</code>.
+ *
+ * @author Tobias Mattsson
+ * @see SmsSendResult
+ * @since 1.0
+ */
+public class SmsBatch {
+
+    public enum Status {
+        /**
+         * The batch has not been sent, either because an earlier batch failed or because it was not attempted yet.
+         */
+        NOT_SENT,
+        /**
+         * The batch was accepted by the service.
+         */
+        SENT,
+        /**
+         * Sending the batch failed before the service accepted it, e.g. the connection could not be made, the service
+         * refused the request with a client error or the client-side rate limit was exceeded. The SMS was not sent and
+         * resending the batch is safe.
+         */
+        FAILED,
+        /**
+         * Sending the batch failed in a way that hides whether the service received the request, e.g. a read timeout or
+         * a server error. The SMS may have been sent, resending the batch may send it twice.
+         */
+        UNKNOWN
+    }
+
+    private final int index;
+    private final int startIndex;
+    private final int endIndex;
+    private Status status = Status.NOT_SENT;
+    private List<SmsResponse> responses;
+    private RuntimeException exception;
+
+    public SmsBatch(int index, int startIndex, int endIndex) {
+        this.index = index;
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
+    }
+
+    /**
+     * Returns the number of the batch, counted from zero in recipient order.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public int getStartIndex() {
+        return startIndex;
+    }
+
+    public int getEndIndex() {
+        return endIndex;
+    }
+
+    public int size() {
+        return endIndex - startIndex;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the responses in recipient order if the batch was sent, otherwise null.
+     */
+    public List<SmsResponse> getResponses() {
+        return responses;
+    }
+
+    /**
+     * Returns the reason the batch failed or its outcome is unknown, otherwise null.
+     */
+    public RuntimeException getException() {
+        return exception;
+    }
+
+    void sent(List<SmsResponse> responses) {
+        this.status = Status.SENT;
+        this.responses = responses;
+    }
+
+    void failed(RuntimeException exception) {
+        this.status = Status.FAILED;
+        this.exception = exception;
+    }
+
+    void unknown(RuntimeException exception) {
+        this.status = Status.UNKNOWN;
+        this.exception = exception;
+    }
+
+    /**
+     * Takes the outcome of another batch covering the same recipients.
+     */
+    void outcomeOf(SmsBatch batch) {
+        this.status = batch.status;
+        this.responses = batch.responses;
+        this.exception = batch.exception;
+    }
+
+    @Override
+    public String toString() {
+        return "SmsBatch{" +
+                "index=" + index +
+                ", startIndex=" + startIndex +
+                ", endIndex=" + endIndex +
+                ", status=" + status +
+                '}';
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exception thrown when sending an SMS in several batches fails for one or more of the batches. Batches are numbered
+ * from zero in recipient order. Batches that neither succeeded, failed nor have an unknown outcome were never sent. The
+ * full outcome is available from {@link #getResult()} and can be used to resume sending.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#sendSms(SmsRequest)
+ * @see ElksTemplate#resumeSms(SmsRequest, SmsSendResult)
+ * @since 1.0
+ */
+public class SmsBatchException extends ElksException {
+
+    private final SmsSendResult result;
+
+    public SmsBatchException(String msg, SmsSendResult result) {
+        super(msg, result.getFirstException());
+        this.result = result;
+    }
+
+    /**
+     * Returns the outcome of every batch.
+     */
+    public SmsSendResult getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the numbers of the batches that were sent, in ascending order.
+     */
+    public List<Integer> getSucceededBatches() {
+        return indexes(result.getSentBatches());
+    }
+
+    /**
+     * Returns the numbers of the batches that failed without being sent, in ascending order.
+     */
+    public List<Integer> getFailedBatches() {
+        return indexes(result.getFailedBatches());
+    }
+
+    /**
+     * Returns the numbers of the batches that may have been sent, in ascending order.
+     */
+    public List<Integer> getUnknownBatches() {
+        return indexes(result.getUnknownBatches());
+    }
+
+    /**
+     * Returns the responses for all batches that were sent, in recipient order.
+     */
+    public List<SmsResponse> getResponses() {
+        return result.getResponses();
+    }
+
+    private static List<Integer> indexes(List<SmsBatch> batches) {
+        ArrayList<Integer> indexes = new ArrayList<Integer>(batches.size());
+        for (SmsBatch batch : batches) {
+            indexes.add(batch.getIndex());
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.math.BigDecimal;
+
+import se.injoin.elkstemplate.support.MoneyUtils;
+import se.injoin.elkstemplate.support.SmsSegments;
+
+/**
+ * Estimate of sending an SMS, made before sending it.
+ *
+ * @author Tobias Mattsson
+ * @see SmsCostEstimator
+ * @since 1.0
+ */
+public class SmsCostEstimate {
+
+    private final SmsSegments segments;
+    private final int recipients;
+    private final int requests;
+    private final long costMinorUnits;
+    private final long unpricedRecipients;
+
+    public SmsCostEstimate(SmsSegments segments, int recipients, int requests, long costMinorUnits, long unpricedRecipients) {
+        this.segments = segments;
+        this.recipients = recipients;
+        this.requests = requests;
+        this.costMinorUnits = costMinorUnits;
+        this.unpricedRecipients = unpricedRecipients;
+    }
+
+    /**
+     * Returns the encoding and segments of the message sent to each recipient.
+     */
+    public SmsSegments getSegments() {
+        return segments;
+    }
+
+    public int getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * Returns the total number of segments sent to all recipients.
+     */
+    public long getTotalSegments() {
+        return (long) recipients * segments.getSegments();
+    }
+
+    /**
+     * Returns the number of requests made to the service when sending.
+     */
+    public int getRequests() {
+        return requests;
+    }
+
+    /**
+     * Returns the estimated cost in minor units, excluding unpriced recipients.
+     */
+    public long getCostMinorUnits() {
+        return costMinorUnits;
+    }
+
+    public BigDecimal getCost() {
+        return MoneyUtils.toBigDecimal(costMinorUnits);
+    }
+
+    /**
+     * Returns the number of recipients without a price, left out of the cost.
+     */
+    public long getUnpricedRecipients() {
+        return unpricedRecipients;
+    }
+
+    @Override
+    public String toString() {
+        return "SmsCostEstimate{" +
+                "segments=" + segments +
+                ", recipients=" + recipients +
+                ", requests=" + requests +
+                ", costMinorUnits=" + costMinorUnits +
+                ", unpricedRecipients=" + unpricedRecipients +
+                '}';
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.Assert;
+
+import se.injoin.elkstemplate.support.MoneyUtils;
+import se.injoin.elkstemplate.support.SmsSegmentCalculator;
+import se.injoin.elkstemplate.support.SmsSegments;
+
+/**
+ * Estimates the number of segments, requests and the cost of sending an SMS before sending it. The message is
+ * analyzed locally with {@link SmsSegmentCalculator} and the cost is the price per segment times the segments sent to
+ * each recipient.
+ * <p/>
+ * Prices are in minor units, 1/10000 of the currency unit. A price table maps prefixes of recipient numbers in E.164
+ * format, e.g. <code>+46</code>, to the price per segment, the longest matching prefix is used. Recipients matching
+ * no prefix are priced with the default price. Without a default price they are counted as unpriced and left out of
+ * the cost.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#sendSms(SmsRequest)
+ * @since 1.0
+ */
+public class SmsCostEstimator {
+
+    private int batchLimit = ElksTemplate.DEFAULT_BATCH_LIMIT;
+    private long defaultPrice = MoneyUtils.UNDEFINED;
+    private String[] prefixes = new String[0];
+    private long[] prices = new long[0];
+
+    public int getBatchLimit() {
+        return batchLimit;
+    }
+
+    /**
+     * Sets the number of recipients per request, should match {@link ElksTemplate#setBatchLimit(int)}.
+     */
+    public void setBatchLimit(int batchLimit) {
+        Assert.isTrue(batchLimit > 0, "batchLimit must be positive");
+        this.batchLimit = batchLimit;
+    }
+
+    public long getDefaultPrice() {
+        return defaultPrice;
+    }
+
+    /**
+     * Sets the price per segment in minor units for recipients matching no prefix in the price table.
+     */
+    public void setDefaultPrice(long defaultPrice) {
+        this.defaultPrice = defaultPrice;
+    }
+
+    /**
+     * Sets the prices per segment in minor units by number prefix.
+     */
+    public synchronized void setPrices(Map<String, Long> priceTable) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(priceTable.entrySet());
+        // Longest prefix first so that the first match is the most specific
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return b.getKey().length() - a.getKey().length();
+            }
+        });
+        String[] newPrefixes = new String[entries.size()];
+        long[] newPrices = new long[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            newPrefixes[i] = entries.get(i).getKey();
+            newPrices[i] = entries.get(i).getValue();
+        }
+        this.prefixes = newPrefixes;
+        this.prices = newPrices;
+    }
+
+    /**
+     * Estimates sending a request.
+     */
+    public SmsCostEstimate estimate(SmsRequest smsRequest) {
+        Assert.notNull(smsRequest.getMessage(), "message is required");
+        SmsSegments segments = SmsSegmentCalculator.calculate(smsRequest.getMessage());
+        String[] currentPrefixes;
+        long[] currentPrices;
+        synchronized (this) {
+            currentPrefixes = prefixes;
+            currentPrices = prices;
+        }
+        long pricePerMessage = 0;
+        long unpriced = 0;
+        List<String> recipients = smsRequest.getRecipients();
+        for (int i = 0, size = recipients.size(); i < size; i++) {
+            long price = price(recipients.get(i), currentPrefixes, currentPrices);
+            if (price == MoneyUtils.UNDEFINED) {
+                unpriced++;
+            } else {
+                pricePerMessage += price;
+            }
+        }
+        int requests = (recipients.size() + batchLimit - 1) / batchLimit;
+        return new SmsCostEstimate(segments, recipients.size(), requests, pricePerMessage * segments.getSegments(), unpriced);
+    }
+
+    private long price(String recipient, String[] currentPrefixes, long[] currentPrices) {
+        for (int i = 0; i < currentPrefixes.length; i++) {
+            if (recipient.startsWith(currentPrefixes[i])) {
+                return currentPrices[i];
+            }
+        }
+        return defaultPrice;
+    }
+}
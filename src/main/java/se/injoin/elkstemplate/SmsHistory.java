@@ -22,6 +22,9 @@ import java.util.List;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+import se.injoin.elkstemplate.support.TimestampDeserializer;
 
 /**
  * Holds details on sent SMSes and the date used to query for the next page of history.
@@ -36,6 +39,7 @@ public class SmsHistory {
 
     @JsonProperty("data")
     private List<SmsResponse> responses;
+    @JsonDeserialize(using = TimestampDeserializer.class)
     private Date next;
 
     public List<SmsResponse> getResponses() {
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.util.Assert;
+
+/**
+ * Lazily walks the SMS history, newest entry first, fetching one page at a time. Nothing is fetched until
+ * {@link #iterator()} is called. While the caller consumes a page the following pages are fetched in the background,
+ * at most {@link #setBufferedPages(int)} pages are held waiting to be consumed which bounds the memory used.
+ * <p/>
+ * Each call to {@link #iterator()} starts a new walk. An iterator that is abandoned before reaching the end should be
+ * closed to stop the background fetching. Failures to fetch a page are thrown as {@link ElksException} from the
+ * iterator when the page would have been reached.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#iterateSmsHistory()
+ * @see ElksTemplate#iterateSmsHistory(Date, Date)
+ * @since 1.0
+ */
+public class SmsHistoryIterable implements Iterable<SmsResponse> {
+
+    public static final int DEFAULT_BUFFERED_PAGES = 2;
+
+    private static final long QUEUE_TIMEOUT = 100;
+
+    private final ElksTemplate elksTemplate;
+    private final Date from;
+    private final Date to;
+    private int bufferedPages = DEFAULT_BUFFERED_PAGES;
+    private Executor executor;
+
+    /**
+     * @param elksTemplate template used for fetching pages
+     * @param from the oldest time to include, null to walk to the beginning of the history
+     * @param to the time to start walking back from, exclusive, null to start with the newest entry
+     */
+    public SmsHistoryIterable(ElksTemplate elksTemplate, Date from, Date to) {
+        Assert.notNull(elksTemplate);
+        this.elksTemplate = elksTemplate;
+        this.from = from;
+        this.to = to;
+    }
+
+    public int getBufferedPages() {
+        return bufferedPages;
+    }
+
+    /**
+     * Sets the maximum number of fetched pages waiting to be consumed.
+     */
+    public void setBufferedPages(int bufferedPages) {
+        Assert.isTrue(bufferedPages > 0, "bufferedPages must be positive");
+        this.bufferedPages = bufferedPages;
+    }
+
+    /**
+     * Returns the executor pages are fetched with, by default the batch executor of the template.
+     */
+    public Executor getExecutor() {
+        return executor != null ? executor : elksTemplate.getBatchExecutor();
+    }
+
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public PrefetchingIterator iterator() {
+        PrefetchingIterator iterator = new PrefetchingIterator(bufferedPages);
+        getExecutor().execute(iterator.fetcher);
+        return iterator;
+    }
+
+    private static class Page {
+
+        private final List<SmsResponse> responses;
+        private final boolean last;
+        private final RuntimeException exception;
+
+        public Page(List<SmsResponse> responses, boolean last, RuntimeException exception) {
+            this.responses = responses;
+            this.last = last;
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * Iterator over the history that fetches pages in the background.
+     */
+    public class PrefetchingIterator implements Iterator<SmsResponse>, Closeable {
+
+        private final BlockingQueue<Page> pages;
+        private final Fetcher fetcher = new Fetcher();
+        private volatile boolean closed;
+        private volatile boolean fetching = true;
+        private Iterator<SmsResponse> current = Collections.<SmsResponse>emptyList().iterator();
+        private boolean last;
+
+        private PrefetchingIterator(int bufferedPages) {
+            this.pages = new ArrayBlockingQueue<Page>(bufferedPages);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (last || closed) {
+                    return false;
+                }
+                Page page;
+                try {
+                    page = pages.poll(QUEUE_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ElksException("Interrupted while waiting for SMS history", e);
+                }
+                if (page == null) {
+                    if (!fetching && pages.isEmpty()) {
+                        // The fetcher was stopped without reaching the end, i.e. its executor was shut down
+                        last = true;
+                        throw new ElksException("Fetching SMS history stopped before reaching the end");
+                    }
+                    continue;
+                }
+                if (page.exception != null) {
+                    last = true;
+                    throw page.exception;
+                }
+                last = page.last;
+                current = page.responses.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public SmsResponse next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops fetching pages in the background. The iterator has no more elements after being closed.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            pages.clear();
+        }
+
+        private class Fetcher implements Runnable {
+
+            @Override
+            public void run() {
+                Date start = to;
+                try {
+                    while (!closed) {
+                        SmsHistory history = elksTemplate.querySmsHistory(start);
+                        List<SmsResponse> responses = history.getResponses() != null ? history.getResponses() : Collections.<SmsResponse>emptyList();
+                        boolean reachedFrom = false;
+                        if (from != null) {
+                            // Entries are newest first so everything after the first entry older than from is outside
+                            for (int i = 0; i < responses.size(); i++) {
+                                Date created = responses.get(i).getCreated();
+                                if (created != null && created.before(from)) {
+                                    responses = responses.subList(0, i);
+                                    reachedFrom = true;
+                                    break;
+                                }
+                            }
+                        }
+                        start = history.getNext();
+                        boolean lastPage = reachedFrom || start == null || responses.isEmpty();
+                        if (!put(new Page(responses, lastPage, null)) || lastPage) {
+                            return;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    put(new Page(null, true, e));
+                } finally {
+                    fetching = false;
+                }
+            }
+
+            private boolean put(Page page) {
+                try {
+                    while (!closed) {
+                        if (pages.offer(page, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                            return true;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+        }
+    }
+}
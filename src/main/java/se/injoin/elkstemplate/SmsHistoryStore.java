@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import se.injoin.elkstemplate.support.MoneyUtils;
+
+/**
+ * Local copy of the SMS history kept in an append-only file. {@link #sync()} fetches only the entries newer than the
+ * newest entry synced, the watermark, and appends them. Queries are answered from the memory-mapped file without
+ * calling the service.
+ * <p/>
+ * Entries are stored oldest first. Every record carries its length and a CRC32 checksum, a record torn by a crash
+ * while appending is detected and cut off when the store is opened. A sync walks back through the history to the page
+ * holding the watermark and then appends and forces one page at a time, oldest first, so memory use does not grow with
+ * the delta and an interrupted sync leaves a consistent history that the next sync continues from. The watermark is
+ * also kept in a small file next to the store so that {@link #compact(Date)}, which rewrites the file dropping entries
+ * older than a retention date, does not make the next sync fetch the dropped entries again.
+ * <p/>
+ * The store file is limited to 2 GB since it is mapped as a single buffer.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class SmsHistoryStore {
+
+    public static final String DATA_FILE_NAME = "sms-history.dat";
+    public static final String WATERMARK_FILE_NAME = "sms-history.mark";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 8;
+    private static final long NO_WATERMARK = Long.MIN_VALUE;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File directory;
+    private final ElksTemplate elksTemplate;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long[] offsets = new long[1024];
+    private int count;
+    private long size;
+    private long watermark = NO_WATERMARK;
+    private final Set<String> idsAtWatermark = new HashSet<String>();
+
+    /**
+     * @param directory the directory to keep the store file in, created if missing
+     * @param elksTemplate the template used when syncing
+     */
+    public SmsHistoryStore(File directory, ElksTemplate elksTemplate) {
+        Assert.notNull(directory);
+        Assert.notNull(elksTemplate);
+        this.directory = directory;
+        this.elksTemplate = elksTemplate;
+    }
+
+    /**
+     * Opens the store reading the existing file, if any. A torn record at the end of the file is cut off.
+     */
+    public synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory [" + directory + "]");
+        }
+        file = new RandomAccessFile(new File(directory, DATA_FILE_NAME), "rw");
+        channel = file.getChannel();
+        scan();
+    }
+
+    public synchronized void close() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+            channel = null;
+            mapped = null;
+        }
+    }
+
+    /**
+     * Returns the number of stored entries.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Returns the creation time of the newest entry synced or null if nothing has been synced.
+     */
+    public synchronized Date getWatermark() {
+        return watermark == NO_WATERMARK ? null : new Date(watermark);
+    }
+
+    /**
+     * Fetches the entries newer than the watermark from the service and appends them.
+     *
+     * @return the number of entries appended
+     */
+    public synchronized int sync() throws ElksException, IOException {
+        checkOpen();
+        PageHandler handler = new PageHandler();
+        // Walk back to the page holding the watermark keeping only where each newer page starts
+        List<Date> starts = new ArrayList<Date>();
+        Date start = null;
+        while (true) {
+            handler.reset();
+            Date next = elksTemplate.querySmsHistory(start, handler);
+            if (handler.reached || next == null) {
+                break;
+            }
+            starts.add(start);
+            start = next;
+        }
+        int appended = append(handler.fresh);
+        // The newer pages are fetched again oldest first. The newest page starts just after its newest entry at the
+        // time of the walk, entries created since are left for the next sync.
+        for (int i = starts.size() - 1; i >= 0; i--) {
+            Date pageStart = i > 0 ? starts.get(i) : new Date(handler.newest + 1);
+            handler.reset();
+            elksTemplate.querySmsHistory(pageStart, handler);
+            appended += append(handler.fresh);
+        }
+        if (appended > 0) {
+            writeWatermark();
+        }
+        if (handler.skipped > 0) {
+            logger.warn("Skipped [" + handler.skipped + "] SMS history entries without a creation time");
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Synced SMS history, appended [" + appended + "] entries");
+        }
+        return appended;
+    }
+
+    /**
+     * Passes the stored entries created in a time window to a handler, oldest first.
+     *
+     * @param from the oldest time to include, null for no lower bound
+     * @param to the time to stop at, exclusive, null for no upper bound
+     * @return the number of entries handled
+     */
+    public synchronized int query(Date from, Date to, SmsResponseHandler handler) throws IOException {
+        checkOpen();
+        ByteBuffer buffer = map();
+        int index = from == null ? 0 : search(buffer, from.getTime());
+        long end = to == null ? Long.MAX_VALUE : to.getTime();
+        int handled = 0;
+        for (; index < count; index++) {
+            long offset = offsets[index];
+            if (buffer.getLong((int) offset + HEADER_SIZE) >= end) {
+                break;
+            }
+            handler.handleResponse(read(buffer, offset));
+            handled++;
+        }
+        return handled;
+    }
+
+    /**
+     * Sums the costs of the stored entries created in a time window, in minor units. Reads the costs directly from the
+     * file without creating the entries.
+     *
+     * @param from the oldest time to include, null for no lower bound
+     * @param to the time to stop at, exclusive, null for no upper bound
+     * @see MoneyUtils
+     */
+    public synchronized long sumCostMinorUnits(Date from, Date to) throws IOException {
+        checkOpen();
+        ByteBuffer buffer = map();
+        int index = from == null ? 0 : search(buffer, from.getTime());
+        long end = to == null ? Long.MAX_VALUE : to.getTime();
+        long sum = 0;
+        for (; index < count; index++) {
+            int position = (int) offsets[index] + HEADER_SIZE;
+            if (buffer.getLong(position) >= end) {
+                break;
+            }
+            long cost = buffer.getLong(position + 8);
+            if (cost != MoneyUtils.UNDEFINED) {
+                sum += cost;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Rewrites the store without the entries created before a retention date. The new file replaces the old one only
+     * once it is completely written.
+     *
+     * @param keepFrom the oldest time to keep, null keeps every entry
+     * @return the number of entries dropped
+     */
+    public synchronized int compact(Date keepFrom) throws IOException {
+        checkOpen();
+        ByteBuffer buffer = map();
+        int first = keepFrom == null ? 0 : search(buffer, keepFrom.getTime());
+        // The watermark may only be held by entries about to be dropped
+        writeWatermark();
+        File current = new File(directory, DATA_FILE_NAME);
+        File compacted = new File(directory, DATA_FILE_NAME + ".compact");
+        RandomAccessFile target = new RandomAccessFile(compacted, "rw");
+        try {
+            target.setLength(0);
+            FileChannel targetChannel = target.getChannel();
+            if (first < count) {
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit((int) size);
+                slice.position((int) offsets[first]);
+                while (slice.hasRemaining()) {
+                    targetChannel.write(slice);
+                }
+            }
+            targetChannel.force(true);
+        } finally {
+            target.close();
+        }
+        close();
+        if (!compacted.renameTo(current)) {
+            // Renaming over an existing file is not possible on all platforms
+            if (!current.delete() || !compacted.renameTo(current)) {
+                throw new IOException("Could not replace [" + current + "] with [" + compacted + "]");
+            }
+        }
+        open();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Compacted SMS history, dropped [" + first + "] entries");
+        }
+        return first;
+    }
+
+    private void checkOpen() {
+        if (file == null) {
+            throw new IllegalStateException("Store is not open");
+        }
+    }
+
+    /**
+     * Reads through the file building the index of record offsets, stopping at the first record that is incomplete or
+     * fails its checksum.
+     */
+    private void scan() throws IOException {
+        count = 0;
+        size = 0;
+        watermark = NO_WATERMARK;
+        idsAtWatermark.clear();
+        readWatermark();
+        long length = channel.size();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Store file is larger than 2 GB");
+        }
+        mapped = length == 0 ? null : channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        byte[] scratch = new byte[256];
+        CRC32 crc = new CRC32();
+        long offset = 0;
+        while (offset + HEADER_SIZE <= length) {
+            int recordLength = mapped.getInt((int) offset);
+            int checksum = mapped.getInt((int) offset + 4);
+            if (recordLength <= 0 || offset + HEADER_SIZE + recordLength > length) {
+                break;
+            }
+            if (scratch.length < recordLength) {
+                scratch = new byte[recordLength];
+            }
+            ByteBuffer record = mapped.duplicate();
+            record.position((int) offset + HEADER_SIZE);
+            record.get(scratch, 0, recordLength);
+            crc.reset();
+            crc.update(scratch, 0, recordLength);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            index(offset, read(mapped, offset));
+            offset += HEADER_SIZE + recordLength;
+        }
+        size = offset;
+        if (offset < length) {
+            logger.warn("Truncating SMS history store at [" + offset + "] of [" + length + "] bytes, the remainder is incomplete");
+            mapped = null;
+            channel.truncate(offset);
+        }
+    }
+
+    /**
+     * Appends entries given newest first, oldest first so that the file stays ordered, and forces them to disk.
+     *
+     * @return the number of entries appended
+     */
+    private int append(List<SmsResponse> responses) throws IOException {
+        if (responses.isEmpty()) {
+            return 0;
+        }
+        for (int i = responses.size() - 1; i >= 0; i--) {
+            append(responses.get(i));
+        }
+        channel.force(false);
+        return responses.size();
+    }
+
+    private void append(SmsResponse response) throws IOException {
+        byte[] id = encode(response.getId());
+        byte[] direction = encode(response.getDirection());
+        byte[] from = encode(response.getFrom());
+        byte[] to = encode(response.getTo());
+        byte[] message = encode(response.getMessage());
+        int recordLength = 16 + 20 + length(id) + length(direction) + length(from) + length(to) + length(message);
+        if (size + HEADER_SIZE + recordLength > Integer.MAX_VALUE) {
+            throw new IOException("Store file would be larger than 2 GB, compact it");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + recordLength);
+        buffer.position(HEADER_SIZE);
+        buffer.putLong(response.getCreated().getTime());
+        buffer.putLong(response.getCostMinorUnits());
+        put(buffer, id);
+        put(buffer, direction);
+        put(buffer, from);
+        put(buffer, to);
+        put(buffer, message);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, recordLength);
+        buffer.putInt(0, recordLength);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        long offset = size;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, size + buffer.position());
+        }
+        size += HEADER_SIZE + recordLength;
+        mapped = null;
+        index(offset, response);
+    }
+
+    private void index(long offset, SmsResponse response) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        offsets[count++] = offset;
+        long created = response.getCreated().getTime();
+        if (created > watermark) {
+            watermark = created;
+            idsAtWatermark.clear();
+        }
+        if (created == watermark) {
+            idsAtWatermark.add(response.getId());
+        }
+    }
+
+    /**
+     * Writes the watermark and the ids of the entries created at it, replacing the file once written.
+     */
+    private void writeWatermark() throws IOException {
+        File current = new File(directory, WATERMARK_FILE_NAME);
+        File temporary = new File(directory, WATERMARK_FILE_NAME + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        try {
+            out.writeLong(watermark);
+            out.writeInt(idsAtWatermark.size());
+            for (String id : idsAtWatermark) {
+                out.writeUTF(id);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(current) && !(current.delete() && temporary.renameTo(current))) {
+            throw new IOException("Could not rename [" + temporary + "] to [" + current + "]");
+        }
+    }
+
+    /**
+     * Reads the watermark written by the last sync or compaction, if any. The entries in the store file may be newer.
+     */
+    private void readWatermark() throws IOException {
+        File current = new File(directory, WATERMARK_FILE_NAME);
+        if (!current.isFile()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(current)));
+        try {
+            long mark = in.readLong();
+            int ids = in.readInt();
+            for (int i = 0; i < ids; i++) {
+                idsAtWatermark.add(in.readUTF());
+            }
+            watermark = mark;
+        } catch (EOFException e) {
+            idsAtWatermark.clear();
+            logger.warn("Ignoring incomplete SMS history watermark [" + current + "]");
+        } finally {
+            in.close();
+        }
+    }
+
+    private ByteBuffer map() throws IOException {
+        if (size == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        if (mapped == null || mapped.capacity() < size) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return mapped.duplicate();
+    }
+
+    /**
+     * Returns the index of the first record created at or after a time.
+     */
+    private int search(ByteBuffer buffer, long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getLong((int) offsets[middle] + HEADER_SIZE) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static SmsResponse read(ByteBuffer buffer, long offset) {
+        ByteBuffer record = buffer.duplicate();
+        record.position((int) offset + HEADER_SIZE);
+        SmsResponse response = new SmsResponse();
+        response.setCreated(new Date(record.getLong()));
+        response.setCostMinorUnits(record.getLong());
+        response.setId(get(record));
+        response.setDirection(get(record));
+        response.setFrom(get(record));
+        response.setTo(get(record));
+        response.setMessage(get(record));
+        return response;
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(UTF8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void put(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String get(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Collects the entries of a page newer than the watermark, newest first, noting when the watermark is passed.
+     */
+    private class PageHandler implements SmsResponseHandler {
+
+        private final List<SmsResponse> fresh = new ArrayList<SmsResponse>();
+        private boolean reached;
+        private long newest = NO_WATERMARK;
+        private int skipped;
+
+        public void reset() {
+            fresh.clear();
+            reached = false;
+        }
+
+        @Override
+        public void handleResponse(SmsResponse response) {
+            if (response.getCreated() == null) {
+                // Without a creation time the entry can neither be ordered nor compared with the watermark
+                skipped++;
+                return;
+            }
+            long created = response.getCreated().getTime();
+            newest = Math.max(newest, created);
+            if (reached || created < watermark) {
+                reached = true;
+            } else if (created > watermark || !idsAtWatermark.contains(response.getId())) {
+                fresh.add(response);
+            }
+        }
+    }
+}
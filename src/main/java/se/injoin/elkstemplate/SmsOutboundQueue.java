@@ -0,0 +1,939 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.Assert;
+import org.springframework.web.client.HttpClientErrorException;
+
+import se.injoin.elkstemplate.support.DaemonThreadFactory;
+
+/**
+ * Durable queue of outbound SMS backed by a write-ahead log. Enqueuing appends a record per recipient to the log and
+ * returns, a pool of dispatcher threads sends the queued messages with {@link ElksTemplate#sendSmsResumable(SmsRequest)}
+ * and appends an acknowledgement with the id of the {@link SmsResponse} for every message sent. When the queue is
+ * opened the log is replayed and the messages without an acknowledgement are queued again.
+ * <p/>
+ * The log is split in segment files. A new segment is started once the current one reaches the segment size and
+ * segments are deleted, oldest first, when all their messages are acknowledged. Every record carries its length and a
+ * CRC32 checksum, a record torn by a crash while appending is cut off when the queue is opened. How often the log is
+ * forced to disk is set with {@link #setFsyncPolicy(FsyncPolicy)}.
+ * <p/>
+ * Messages queued together with the same content are sent together as one request. A message whose batch fails is
+ * retried after the retry delay, except when the service rejects it with a client error, then it is logged as rejected
+ * and dropped. Delivery is at least once, a message may be sent twice if the process stops after sending it but before
+ * its acknowledgement is written, or if sending fails in a way that hides whether the service received the request.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class SmsOutboundQueue {
+
+    /**
+     * When the log is forced to disk.
+     */
+    public enum FsyncPolicy {
+        /**
+         * After every append, before enqueue returns.
+         */
+        ALWAYS,
+        /**
+         * Periodically in the background, a crash can lose the appends of the last interval.
+         */
+        INTERVAL,
+        /**
+         * Never, left to the operating system. A crash of the process loses nothing but a crash of the machine can.
+         */
+        NEVER
+    }
+
+    public static final String SEGMENT_PREFIX = "outbound-";
+    public static final String SEGMENT_SUFFIX = ".log";
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_FSYNC_INTERVAL = 1000;
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int DEFAULT_MAX_DISPATCH_SIZE = 500;
+    public static final long DEFAULT_RETRY_DELAY = 5000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 8;
+    private static final byte ENQUEUED = 1;
+    private static final byte ACKNOWLEDGED = 2;
+    private static final byte REJECTED = 3;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File directory;
+    private final ElksTemplate elksTemplate;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+    private long fsyncInterval = DEFAULT_FSYNC_INTERVAL;
+    private int workers = DEFAULT_WORKERS;
+    private int maxDispatchSize = DEFAULT_MAX_DISPATCH_SIZE;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+    private SmsResponseHandler responseHandler;
+
+    private final DelayQueue<QueuedSms> queue = new DelayQueue<QueuedSms>();
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private Segment active;
+    private long nextSequence = 1;
+    private long nextSegment = 1;
+    private boolean dirty;
+    private volatile boolean running;
+    private final List<Thread> dispatchers = new ArrayList<Thread>();
+    private ScheduledExecutorService syncer;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    /**
+     * @param directory the directory to keep the segment files in, created if missing
+     * @param elksTemplate the template used for sending
+     */
+    public SmsOutboundQueue(File directory, ElksTemplate elksTemplate) {
+        Assert.notNull(directory);
+        Assert.notNull(elksTemplate);
+        this.directory = directory;
+        this.elksTemplate = elksTemplate;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size in bytes after which a new segment file is started.
+     */
+    public void setSegmentSize(long segmentSize) {
+        Assert.isTrue(segmentSize > 0 && segmentSize <= Integer.MAX_VALUE, "segmentSize must be positive and at most 2 GB");
+        this.segmentSize = segmentSize;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Sets when the log is forced to disk, defaults to {@link FsyncPolicy#INTERVAL}.
+     */
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        Assert.notNull(fsyncPolicy);
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    public long getFsyncInterval() {
+        return fsyncInterval;
+    }
+
+    /**
+     * Sets the time in milliseconds between forcing the log to disk with {@link FsyncPolicy#INTERVAL}.
+     */
+    public void setFsyncInterval(long fsyncInterval) {
+        Assert.isTrue(fsyncInterval > 0, "fsyncInterval must be positive");
+        this.fsyncInterval = fsyncInterval;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Sets the number of dispatcher threads started by {@link #start()}.
+     */
+    public void setWorkers(int workers) {
+        Assert.isTrue(workers > 0, "workers must be positive");
+        this.workers = workers;
+    }
+
+    public int getMaxDispatchSize() {
+        return maxDispatchSize;
+    }
+
+    /**
+     * Sets the maximum number of messages a dispatcher takes from the queue at a time.
+     */
+    public void setMaxDispatchSize(int maxDispatchSize) {
+        Assert.isTrue(maxDispatchSize > 0, "maxDispatchSize must be positive");
+        this.maxDispatchSize = maxDispatchSize;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * Sets the time in milliseconds before a message that failed to send is tried again.
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public SmsResponseHandler getResponseHandler() {
+        return responseHandler;
+    }
+
+    /**
+     * Sets a handler called by the dispatchers with the response of every message sent, after its acknowledgement
+     * has been appended to the log.
+     */
+    public void setResponseHandler(SmsResponseHandler responseHandler) {
+        this.responseHandler = responseHandler;
+    }
+
+    /**
+     * Opens the queue replaying the log. Messages without an acknowledgement are queued again. A torn record at the
+     * end of the log is cut off.
+     */
+    public synchronized void open() throws IOException {
+        if (active != null) {
+            throw new IllegalStateException("Queue is already open");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory [" + directory + "]");
+        }
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        // Names hold a zero-padded segment number that grows with every segment so they sort in log order
+        Arrays.sort(files);
+        Map<Long, QueuedSms> unacknowledged = new LinkedHashMap<Long, QueuedSms>();
+        for (int i = 0; i < files.length; i++) {
+            nextSegment = Math.max(nextSegment, segmentNumber(files[i]) + 1);
+            Segment segment = new Segment(files[i]);
+            segments.add(segment);
+            replay(segment, unacknowledged, i == files.length - 1);
+        }
+        for (QueuedSms sms : unacknowledged.values()) {
+            queue.add(sms);
+        }
+        deleteResolvedSegments();
+        if (segments.isEmpty()) {
+            segments.add(newSegment());
+        }
+        active = segments.getLast();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Opened outbound queue with [" + unacknowledged.size() + "] unacknowledged messages in [" + segments.size() + "] segments");
+        }
+    }
+
+    /**
+     * Starts the dispatcher threads and, with {@link FsyncPolicy#INTERVAL}, the periodic forcing of the log.
+     */
+    public synchronized void start() {
+        checkOpen();
+        if (running) {
+            return;
+        }
+        running = true;
+        DaemonThreadFactory threadFactory = new DaemonThreadFactory("elks-outbound");
+        for (int i = 0; i < workers; i++) {
+            Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            });
+            dispatchers.add(thread);
+            thread.start();
+        }
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("elks-outbound-sync"));
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sync();
+                    } catch (IOException e) {
+                        logger.error("Could not force outbound queue to disk", e);
+                    }
+                }
+            }, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the dispatcher threads, waiting for the messages being sent, and forces the log to disk. Messages left in
+     * the queue stay in the log.
+     */
+    public void stop() throws IOException {
+        List<Thread> threads;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            threads = new ArrayList<Thread>(dispatchers);
+            dispatchers.clear();
+            if (syncer != null) {
+                syncer.shutdown();
+                syncer = null;
+            }
+        }
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+    }
+
+    /**
+     * Stops the dispatchers and closes the segment files.
+     */
+    public void close() throws IOException {
+        stop();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+            queue.clear();
+            active = null;
+        }
+    }
+
+    /**
+     * Appends a message per recipient of a request to the log and queues them.
+     *
+     * @return the sequence number of the first message, the others follow in recipient order
+     */
+    public long enqueue(SmsRequest smsRequest) throws IOException {
+        Assert.notNull(smsRequest);
+        Assert.hasText(smsRequest.getFrom());
+        Assert.hasText(smsRequest.getMessage());
+        Assert.notEmpty(smsRequest.getRecipients());
+        List<String> recipients = smsRequest.getRecipients();
+        List<QueuedSms> messages = new ArrayList<QueuedSms>(recipients.size());
+        long first;
+        synchronized (this) {
+            checkOpen();
+            first = nextSequence;
+            long now = System.currentTimeMillis();
+            for (String recipient : recipients) {
+                Assert.hasText(recipient);
+                messages.add(new QueuedSms(nextSequence++, now, smsRequest.getFrom(), recipient, smsRequest.getMessage(), smsRequest.isFlash(), smsRequest.getDeliveryReportUrl()));
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(recipients.size() * 64 + 1024);
+            for (QueuedSms sms : messages) {
+                buffer = appendRecord(buffer, sms);
+            }
+            write(buffer, messages);
+        }
+        queue.addAll(messages);
+        enqueued.addAndGet(messages.size());
+        return first;
+    }
+
+    /**
+     * Appends a message to the log and queues it.
+     *
+     * @return the sequence number of the message
+     */
+    public long enqueue(String from, String recipient, String message) throws IOException {
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom(from);
+        smsRequest.addRecipient(recipient);
+        smsRequest.setMessage(message);
+        return enqueue(smsRequest);
+    }
+
+    /**
+     * Returns the number of messages not yet acknowledged or rejected, including those being sent.
+     */
+    public int getDepth() {
+        return queue.size() + inFlight.get();
+    }
+
+    /**
+     * Returns the number of messages being sent by the dispatchers.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    public long getAcknowledgedCount() {
+        return acknowledged.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Forces appended records to disk.
+     */
+    public synchronized void sync() throws IOException {
+        if (dirty && active != null) {
+            active.channel.force(false);
+            dirty = false;
+        }
+    }
+
+    private void checkOpen() {
+        if (active == null) {
+            throw new IllegalStateException("Queue is not open");
+        }
+    }
+
+    /**
+     * Loop run by the dispatcher threads, taking the messages that are due and sending them.
+     */
+    private void dispatch() {
+        List<QueuedSms> taken = new ArrayList<QueuedSms>();
+        while (running) {
+            QueuedSms first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                continue;
+            }
+            taken.clear();
+            taken.add(first);
+            queue.drainTo(taken, maxDispatchSize - 1);
+            int count = taken.size();
+            inFlight.addAndGet(count);
+            try {
+                // Messages with the same content are sent as one request
+                while (!taken.isEmpty()) {
+                    QueuedSms head = taken.get(0);
+                    List<QueuedSms> group = new ArrayList<QueuedSms>();
+                    List<QueuedSms> rest = new ArrayList<QueuedSms>();
+                    for (QueuedSms sms : taken) {
+                        (head.hasSameContent(sms) ? group : rest).add(sms);
+                    }
+                    taken.clear();
+                    taken.addAll(rest);
+                    send(group);
+                }
+            } catch (RuntimeException e) {
+                // The group being sent may have been sent and is left to a restart, the groups after it are retried
+                logger.error("Unexpected failure dispatching outbound messages, retrying [" + taken.size() + "] not yet sent", e);
+                if (!taken.isEmpty()) {
+                    retry(new ArrayList<QueuedSms>(taken));
+                }
+            } finally {
+                inFlight.addAndGet(-count);
+            }
+        }
+    }
+
+    private void send(List<QueuedSms> group) {
+        QueuedSms head = group.get(0);
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom(head.from);
+        smsRequest.setMessage(head.message);
+        smsRequest.setFlash(head.flash);
+        smsRequest.setDeliveryReportUrl(head.deliveryReportUrl);
+        for (QueuedSms sms : group) {
+            smsRequest.addRecipient(sms.recipient);
+        }
+        List<SmsBatch> batches;
+        try {
+            batches = elksTemplate.sendSmsResumable(smsRequest).getBatches();
+        } catch (RuntimeException e) {
+            logger.warn("Could not send [" + group.size() + "] outbound messages, retrying in [" + retryDelay + "] ms", e);
+            retry(group);
+            return;
+        }
+        List<QueuedSms> sent = new ArrayList<QueuedSms>();
+        List<String> ids = new ArrayList<String>();
+        List<SmsResponse> responses = new ArrayList<SmsResponse>();
+        List<QueuedSms> rejectedMessages = new ArrayList<QueuedSms>();
+        List<String> reasons = new ArrayList<String>();
+        for (SmsBatch batch : batches) {
+            List<QueuedSms> batchMessages = group.subList(batch.getStartIndex(), batch.getEndIndex());
+            if (batch.getStatus() == SmsBatch.Status.SENT) {
+                List<SmsResponse> matched = match(batchMessages, batch.getResponses());
+                for (int i = 0; i < batchMessages.size(); i++) {
+                    SmsResponse response = matched.get(i);
+                    sent.add(batchMessages.get(i));
+                    if (response != null) {
+                        ids.add(response.getId());
+                        responses.add(response);
+                    } else {
+                        // Sending again could send twice, the message is acknowledged without an id
+                        logger.warn("No response for outbound message [" + batchMessages.get(i).sequence + "] sent in batch [" + batch.getIndex() + "]");
+                        ids.add(null);
+                    }
+                }
+            } else if (isRejected(batch.getException())) {
+                for (QueuedSms sms : batchMessages) {
+                    rejectedMessages.add(sms);
+                    reasons.add(String.valueOf(batch.getException().getMessage()));
+                }
+                logger.warn("Outbound messages [" + batchMessages.get(0).sequence + "] to [" + batchMessages.get(batchMessages.size() - 1).sequence + "] rejected", batch.getException());
+            } else {
+                if (batch.getException() != null) {
+                    logger.warn("Could not send [" + batchMessages.size() + "] outbound messages, retrying in [" + retryDelay + "] ms", batch.getException());
+                }
+                retry(batchMessages);
+            }
+        }
+        resolve(sent, ACKNOWLEDGED, ids);
+        resolve(rejectedMessages, REJECTED, reasons);
+        acknowledged.addAndGet(sent.size());
+        rejected.addAndGet(rejectedMessages.size());
+        SmsResponseHandler handler = responseHandler;
+        if (handler != null) {
+            for (SmsResponse response : responses) {
+                try {
+                    handler.handleResponse(response);
+                } catch (RuntimeException e) {
+                    logger.error("Response handler failed for outbound message to [" + response.getTo() + "]", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Matches the responses of a batch to its messages by recipient, falling back to the order of the responses for
+     * those not matched. Messages without a response get null.
+     */
+    private static List<SmsResponse> match(List<QueuedSms> messages, List<SmsResponse> responses) {
+        List<SmsResponse> matched = new ArrayList<SmsResponse>(Collections.<SmsResponse>nCopies(messages.size(), null));
+        if (responses == null) {
+            return matched;
+        }
+        Map<String, LinkedList<Integer>> byRecipient = new HashMap<String, LinkedList<Integer>>();
+        for (int i = 0; i < messages.size(); i++) {
+            LinkedList<Integer> indexes = byRecipient.get(messages.get(i).recipient);
+            if (indexes == null) {
+                indexes = new LinkedList<Integer>();
+                byRecipient.put(messages.get(i).recipient, indexes);
+            }
+            indexes.add(i);
+        }
+        List<SmsResponse> unmatched = new ArrayList<SmsResponse>();
+        for (SmsResponse response : responses) {
+            LinkedList<Integer> indexes = response != null ? byRecipient.get(response.getTo()) : null;
+            if (indexes != null && !indexes.isEmpty()) {
+                matched.set(indexes.removeFirst(), response);
+            } else if (response != null) {
+                unmatched.add(response);
+            }
+        }
+        int next = 0;
+        for (int i = 0; i < matched.size() && next < unmatched.size(); i++) {
+            if (matched.get(i) == null) {
+                matched.set(i, unmatched.get(next++));
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Returns true if the service refused the messages in a way that will not change by sending them again.
+     */
+    protected boolean isRejected(RuntimeException exception) {
+        for (Throwable t = exception; t != null; t = t.getCause()) {
+            if (t instanceof HttpClientErrorException) {
+                HttpStatus status = ((HttpClientErrorException) t).getStatusCode();
+                return status != HttpStatus.TOO_MANY_REQUESTS && status != HttpStatus.UNAUTHORIZED && status != HttpStatus.FORBIDDEN;
+            }
+        }
+        return false;
+    }
+
+    private void retry(List<QueuedSms> messages) {
+        long readyTime = System.currentTimeMillis() + retryDelay;
+        for (QueuedSms sms : messages) {
+            sms.readyTime = readyTime;
+        }
+        retried.addAndGet(messages.size());
+        queue.addAll(messages);
+    }
+
+    /**
+     * Appends acknowledgement or rejection records and deletes segments no longer needed.
+     */
+    private void resolve(List<QueuedSms> messages, byte type, List<String> values) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (active == null) {
+                // Closed while sending, the messages are sent again when the queue is opened
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(messages.size() * 48 + 256);
+            for (int i = 0; i < messages.size(); i++) {
+                buffer = appendRecord(buffer, type, messages.get(i).sequence, values.get(i));
+            }
+            try {
+                write(buffer, null);
+            } catch (IOException e) {
+                logger.error("Could not log outcome of [" + messages.size() + "] outbound messages, they will be sent again after a restart", e);
+                return;
+            }
+            for (QueuedSms sms : messages) {
+                sms.segment.unresolved--;
+            }
+            try {
+                deleteResolvedSegments();
+            } catch (IOException e) {
+                logger.warn("Could not delete outbound queue segment", e);
+            }
+        }
+    }
+
+    /**
+     * Writes records to the active segment, starting a new segment first if the active one is full.
+     *
+     * @param messages the enqueued messages in the records, counted as unresolved in the segment
+     */
+    private void write(ByteBuffer buffer, List<QueuedSms> messages) throws IOException {
+        buffer.flip();
+        if (active.size > 0 && active.size + buffer.remaining() > segmentSize) {
+            active.channel.force(false);
+            active = newSegment();
+            segments.add(active);
+        }
+        long position = active.size;
+        while (buffer.hasRemaining()) {
+            active.channel.write(buffer, position + buffer.position());
+        }
+        active.size += buffer.limit();
+        if (messages != null) {
+            for (QueuedSms sms : messages) {
+                sms.segment = active;
+            }
+            active.unresolved += messages.size();
+        }
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            active.channel.force(false);
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while all their messages are resolved. Segments are only deleted oldest first since
+     * a segment may hold the acknowledgements of messages in older segments.
+     */
+    private void deleteResolvedSegments() throws IOException {
+        while (segments.size() > 1 && segments.getFirst().unresolved == 0) {
+            Segment segment = segments.removeFirst();
+            segment.close();
+            if (!segment.file.delete()) {
+                throw new IOException("Could not delete [" + segment.file + "]");
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Deleted outbound queue segment [" + segment.file.getName() + "]");
+            }
+        }
+    }
+
+    /**
+     * Reads the records of a segment. A segment ending with an incomplete record or one failing its checksum is
+     * truncated there if it is the last one.
+     */
+    private void replay(Segment segment, Map<Long, QueuedSms> unacknowledged, boolean last) throws IOException {
+        long length = segment.channel.size();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Segment [" + segment.file + "] is larger than 2 GB");
+        }
+        MappedByteBuffer mapped = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        CRC32 crc = new CRC32();
+        byte[] scratch = new byte[256];
+        int offset = 0;
+        while (offset + HEADER_SIZE <= length) {
+            int recordLength = mapped.getInt(offset);
+            int checksum = mapped.getInt(offset + 4);
+            if (recordLength <= 0 || offset + HEADER_SIZE + recordLength > length) {
+                break;
+            }
+            if (scratch.length < recordLength) {
+                scratch = new byte[recordLength];
+            }
+            ByteBuffer record = mapped.duplicate();
+            record.position(offset + HEADER_SIZE);
+            record.get(scratch, 0, recordLength);
+            crc.reset();
+            crc.update(scratch, 0, recordLength);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            ByteBuffer fields = ByteBuffer.wrap(scratch, 0, recordLength);
+            byte type = fields.get();
+            long sequence = fields.getLong();
+            if (type == ENQUEUED) {
+                long enqueuedTime = fields.getLong();
+                boolean flash = fields.get() != 0;
+                String from = get(fields);
+                String recipient = get(fields);
+                String message = get(fields);
+                String deliveryReportUrl = get(fields);
+                QueuedSms sms = new QueuedSms(sequence, enqueuedTime, from, recipient, message, flash, deliveryReportUrl);
+                sms.segment = segment;
+                segment.unresolved++;
+                unacknowledged.put(sequence, sms);
+            } else {
+                QueuedSms sms = unacknowledged.remove(sequence);
+                if (sms != null) {
+                    sms.segment.unresolved--;
+                }
+            }
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            offset += HEADER_SIZE + recordLength;
+        }
+        segment.size = offset;
+        if (offset < length) {
+            if (!last) {
+                throw new IOException("Segment [" + segment.file + "] is corrupt at [" + offset + "] of [" + length + "] bytes");
+            }
+            logger.warn("Truncating outbound queue segment [" + segment.file.getName() + "] at [" + offset + "] of [" + length + "] bytes, the remainder is incomplete");
+            segment.channel.truncate(offset);
+        }
+    }
+
+    /**
+     * Creates the file of the next segment. Segment numbers are never reused, an existing file with the next number
+     * means the directory is shared or was changed behind the queue's back.
+     */
+    private Segment newSegment() throws IOException {
+        File file = new File(directory, SEGMENT_PREFIX + String.format("%020d", nextSegment) + SEGMENT_SUFFIX);
+        if (!file.createNewFile()) {
+            throw new IOException("Segment [" + file + "] already exists");
+        }
+        nextSegment++;
+        return new Segment(file);
+    }
+
+    private static long segmentNumber(File file) throws IOException {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid segment name [" + name + "]");
+        }
+    }
+
+    private static ByteBuffer appendRecord(ByteBuffer buffer, QueuedSms sms) {
+        byte[] from = encode(sms.from);
+        byte[] recipient = encode(sms.recipient);
+        byte[] message = encode(sms.message);
+        byte[] deliveryReportUrl = encode(sms.deliveryReportUrl);
+        int recordLength = 1 + 8 + 8 + 1 + 16 + length(from) + length(recipient) + length(message) + length(deliveryReportUrl);
+        buffer = ensureRemaining(buffer, HEADER_SIZE + recordLength);
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        buffer.put(ENQUEUED);
+        buffer.putLong(sms.sequence);
+        buffer.putLong(sms.enqueuedTime);
+        buffer.put((byte) (sms.flash ? 1 : 0));
+        put(buffer, from);
+        put(buffer, recipient);
+        put(buffer, message);
+        put(buffer, deliveryReportUrl);
+        finishRecord(buffer, start, recordLength);
+        return buffer;
+    }
+
+    private static ByteBuffer appendRecord(ByteBuffer buffer, byte type, long sequence, String value) {
+        byte[] bytes = encode(value);
+        int recordLength = 1 + 8 + 4 + length(bytes);
+        buffer = ensureRemaining(buffer, HEADER_SIZE + recordLength);
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        buffer.put(type);
+        buffer.putLong(sequence);
+        put(buffer, bytes);
+        finishRecord(buffer, start, recordLength);
+        return buffer;
+    }
+
+    private static void finishRecord(ByteBuffer buffer, int start, int recordLength) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), start + HEADER_SIZE, recordLength);
+        buffer.putInt(start, recordLength);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(UTF8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void put(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String get(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    @Override
+    public String toString() {
+        return "SmsOutboundQueue{" +
+                "directory=" + directory +
+                ", depth=" + getDepth() +
+                ", inFlight=" + inFlight +
+                ", enqueued=" + enqueued +
+                ", acknowledged=" + acknowledged +
+                ", rejected=" + rejected +
+                ", retried=" + retried +
+                '}';
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private long size;
+        private int unresolved;
+
+        public Segment(File file) throws IOException {
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.channel = randomAccessFile.getChannel();
+        }
+
+        public void close() throws IOException {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * A queued message, due to be sent at its ready time.
+     */
+    private static class QueuedSms implements Delayed {
+
+        private final long sequence;
+        private final long enqueuedTime;
+        private final String from;
+        private final String recipient;
+        private final String message;
+        private final boolean flash;
+        private final String deliveryReportUrl;
+        private volatile long readyTime;
+        private Segment segment;
+
+        public QueuedSms(long sequence, long enqueuedTime, String from, String recipient, String message, boolean flash, String deliveryReportUrl) {
+            this.sequence = sequence;
+            this.enqueuedTime = enqueuedTime;
+            this.from = from;
+            this.recipient = recipient;
+            this.message = message;
+            this.flash = flash;
+            this.deliveryReportUrl = deliveryReportUrl;
+        }
+
+        public boolean hasSameContent(QueuedSms other) {
+            return flash == other.flash
+                    && from.equals(other.from)
+                    && message.equals(other.message)
+                    && (deliveryReportUrl != null ? deliveryReportUrl.equals(other.deliveryReportUrl) : other.deliveryReportUrl == null);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            QueuedSms other = (QueuedSms) o;
+            if (readyTime != other.readyTime) {
+                return readyTime < other.readyTime ? -1 : 1;
+            }
+            // Messages due at the same time are sent in the order they were queued
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -57,7 +57,7 @@ public class SmsRequest {
     }
 
     public boolean addRecipients(Collection<String> recipients) {
-        return recipients.addAll(recipients);
+        return this.recipients.addAll(recipients);
     }
 
     public String getMessage() {
@@ -20,10 +20,13 @@ package se.injoin.elkstemplate;
 import java.math.BigDecimal;
 import java.util.Date;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
-import se.injoin.elkstemplate.support.MoneyDeserializer;
+import se.injoin.elkstemplate.support.MinorUnitsDeserializer;
+import se.injoin.elkstemplate.support.MoneyUtils;
 import se.injoin.elkstemplate.support.TimestampDeserializer;
 
 /**
@@ -45,7 +48,7 @@ public class SmsResponse {
     private String direction;
     @JsonDeserialize(using = TimestampDeserializer.class)
     private Date created;
-    @JsonDeserialize(using = MoneyDeserializer.class)
+    private long costMinorUnits = MoneyUtils.UNDEFINED;
     private BigDecimal cost;
     private String from;
     private String to;
@@ -78,14 +81,43 @@ public class SmsResponse {
         this.created = created;
     }
 
+    /**
+     * Returns the cost, created from {@link #getCostMinorUnits()} when first called. This is the value written when
+     * serialized to JSON.
+     */
+    @JsonProperty("cost")
     public BigDecimal getCost() {
+        if (cost == null) {
+            cost = MoneyUtils.toBigDecimal(costMinorUnits);
+        }
         return cost;
     }
 
+    @JsonIgnore
     public void setCost(BigDecimal cost) {
+        this.costMinorUnits = MoneyUtils.toMinorUnits(cost);
         this.cost = cost;
     }
 
+    /**
+     * Returns the cost in minor units, 1/10000 of the currency unit, or {@link MoneyUtils#UNDEFINED} if there is none.
+     */
+    @JsonIgnore
+    public long getCostMinorUnits() {
+        return costMinorUnits;
+    }
+
+    @JsonProperty("cost")
+    @JsonDeserialize(using = MinorUnitsDeserializer.class)
+    public void setCostMinorUnits(long costMinorUnits) {
+        this.costMinorUnits = costMinorUnits;
+        this.cost = null;
+    }
+
+    public boolean hasCost() {
+        return costMinorUnits != MoneyUtils.UNDEFINED;
+    }
+
     public String getFrom() {
         return from;
     }
@@ -116,7 +148,7 @@ public class SmsResponse {
                 "id='" + id + '\'' +
                 ", direction='" + direction + '\'' +
                 ", created='" + created + '\'' +
-                ", cost=" + cost +
+                ", cost=" + getCost() +
                 ", from='" + from + '\'' +
                 ", to='" + to + '\'' +
                 ", message='" + message + '\'' +
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+/**
+ * Receives SMS responses one at a time as they are parsed from a response body, before the rest of the body has been
+ * read.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#querySmsHistory(java.util.Date, SmsResponseHandler)
+ * @see ElksTemplate#sendSms(SmsRequest, SmsResponseHandler)
+ * @since 1.0
+ */
+public interface SmsResponseHandler {
+
+    void handleResponse(SmsResponse response);
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Result of sending an SMS in one or more batches, recording the outcome of every batch and the responses received
+ * so far. When not all batches were sent the result can be passed to {@link ElksTemplate#resumeSms(SmsRequest,
+ * SmsSendResult)} to send only the remaining batches. The same can be done across restarts by storing the
+ * {@link #getResumeToken() resume token} and passing it to {@link ElksTemplate#resumeSms(SmsRequest, String)}.
+ * <p/>
+ * Batches whose outcome is {@link SmsBatch.Status#UNKNOWN unknown} may have been sent and are only resent when asked
+ * for explicitly.
+ *
+ * @author Tobias Mattsson
+ * @see ElksTemplate#sendSmsResumable(SmsRequest)
+ * @since 1.0
+ */
+public class SmsSendResult {
+
+    private final int recipientCount;
+    private final List<SmsBatch> batches;
+
+    public SmsSendResult(int recipientCount, List<SmsBatch> batches) {
+        this.recipientCount = recipientCount;
+        this.batches = new ArrayList<SmsBatch>(batches);
+        Collections.sort(this.batches, new Comparator<SmsBatch>() {
+            @Override
+            public int compare(SmsBatch o1, SmsBatch o2) {
+                return o1.getStartIndex() < o2.getStartIndex() ? -1 : (o1.getStartIndex() == o2.getStartIndex() ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of recipients in the request.
+     */
+    public int getRecipientCount() {
+        return recipientCount;
+    }
+
+    /**
+     * Returns all batches in recipient order. A result from resuming with a token only has the batches in the token.
+     */
+    public List<SmsBatch> getBatches() {
+        return batches;
+    }
+
+    public List<SmsBatch> getSentBatches() {
+        return getBatches(SmsBatch.Status.SENT);
+    }
+
+    public List<SmsBatch> getFailedBatches() {
+        return getBatches(SmsBatch.Status.FAILED);
+    }
+
+    public List<SmsBatch> getUnknownBatches() {
+        return getBatches(SmsBatch.Status.UNKNOWN);
+    }
+
+    /**
+     * Returns the batches that still need to be sent and are known not to have been, both failed batches and batches
+     * never attempted.
+     */
+    public List<SmsBatch> getPendingBatches() {
+        return getPendingBatches(false);
+    }
+
+    /**
+     * Returns the batches that still need to be sent.
+     *
+     * @param includeUnknown whether to include the batches that may have been sent
+     */
+    public List<SmsBatch> getPendingBatches(boolean includeUnknown) {
+        ArrayList<SmsBatch> list = new ArrayList<SmsBatch>();
+        for (SmsBatch batch : batches) {
+            if (isPending(batch, includeUnknown)) {
+                list.add(batch);
+            }
+        }
+        return list;
+    }
+
+    public boolean isComplete() {
+        for (SmsBatch batch : batches) {
+            if (batch.getStatus() != SmsBatch.Status.SENT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the responses of all sent batches in recipient order.
+     */
+    public List<SmsResponse> getResponses() {
+        ArrayList<SmsResponse> responses = new ArrayList<SmsResponse>(recipientCount);
+        for (SmsBatch batch : batches) {
+            if (batch.getStatus() == SmsBatch.Status.SENT) {
+                responses.addAll(batch.getResponses());
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Returns the exception of the first failed batch or batch with unknown outcome, or null if no batch failed.
+     */
+    public RuntimeException getFirstException() {
+        for (SmsBatch batch : batches) {
+            if (batch.getException() != null) {
+                return batch.getException();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a token describing the batches that still need to be sent and are known not to have been, or null if
+     * there are none. The token is a plain string that can be stored and later passed to
+     * {@link ElksTemplate#resumeSms(SmsRequest, String)} together with the same request.
+     */
+    public String getResumeToken() {
+        return getResumeToken(false);
+    }
+
+    /**
+     * Returns a token describing the batches that still need to be sent or null if there are none.
+     *
+     * @param includeUnknown whether to include the batches that may have been sent
+     */
+    public String getResumeToken(boolean includeUnknown) {
+        List<SmsBatch> pending = getPendingBatches(includeUnknown);
+        if (pending.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(recipientCount).append(':');
+        for (int i = 0; i < pending.size(); i++) {
+            SmsBatch batch = pending.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(batch.getIndex()).append('=').append(batch.getStartIndex()).append('-').append(batch.getEndIndex());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a resume token into unsent batches.
+     *
+     * @throws IllegalArgumentException if the token is malformed or was created for a different number of recipients
+     */
+    static List<SmsBatch> parseResumeToken(String resumeToken, int recipientCount) {
+        try {
+            int colon = resumeToken.indexOf(':');
+            if (Integer.parseInt(resumeToken.substring(0, colon)) != recipientCount) {
+                throw new IllegalArgumentException("Resume token [" + resumeToken + "] is for a different number of recipients than [" + recipientCount + "]");
+            }
+            ArrayList<SmsBatch> batches = new ArrayList<SmsBatch>();
+            for (String range : resumeToken.substring(colon + 1).split(",")) {
+                int equals = range.indexOf('=');
+                int dash = range.indexOf('-', equals);
+                int index = Integer.parseInt(range.substring(0, equals));
+                int startIndex = Integer.parseInt(range.substring(equals + 1, dash));
+                int endIndex = Integer.parseInt(range.substring(dash + 1));
+                if (startIndex < 0 || startIndex >= endIndex || endIndex > recipientCount) {
+                    throw new IllegalArgumentException("Resume token [" + resumeToken + "] has an invalid batch [" + range + "]");
+                }
+                batches.add(new SmsBatch(index, startIndex, endIndex));
+            }
+            return batches;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Resume token [" + resumeToken + "] is malformed", e);
+        } catch (StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Resume token [" + resumeToken + "] is malformed", e);
+        }
+    }
+
+    static boolean isPending(SmsBatch batch, boolean includeUnknown) {
+        SmsBatch.Status status = batch.getStatus();
+        return status == SmsBatch.Status.NOT_SENT || status == SmsBatch.Status.FAILED || (includeUnknown && status == SmsBatch.Status.UNKNOWN);
+    }
+
+    private List<SmsBatch> getBatches(SmsBatch.Status status) {
+        ArrayList<SmsBatch> list = new ArrayList<SmsBatch>();
+        for (SmsBatch batch : batches) {
+            if (batch.getStatus() == status) {
+                list.add(batch);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return "SmsSendResult{" +
+                "recipientCount=" + recipientCount +
+                ", batches=" + batches +
+                '}';
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+
+/**
+ * Parses an application/x-www-form-urlencoded body in place, one field at a time. Names are compared without
+ * decoding, values are percent-decoded into a buffer kept by the parser and only turned into a string when asked for,
+ * so fields that are skipped or compared allocate nothing.
+ * <p/>
+ * Instances are not thread-safe but can be reused for any number of bodies.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class FormParser {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] body;
+    private int position;
+    private int limit;
+    private int nameStart;
+    private int nameEnd;
+    private int valueStart;
+    private int valueEnd;
+    private byte[] decoded = new byte[128];
+    private int decodedLength = -1;
+
+    /**
+     * Starts parsing a body.
+     */
+    public FormParser reset(byte[] body, int offset, int length) {
+        this.body = body;
+        this.position = offset;
+        this.limit = offset + length;
+        return this;
+    }
+
+    /**
+     * Advances to the next field.
+     *
+     * @return false when there are no more fields
+     */
+    public boolean next() {
+        while (position < limit && body[position] == '&') {
+            position++;
+        }
+        if (position >= limit) {
+            return false;
+        }
+        nameStart = position;
+        while (position < limit && body[position] != '=' && body[position] != '&') {
+            position++;
+        }
+        nameEnd = position;
+        if (position < limit && body[position] == '=') {
+            position++;
+        }
+        valueStart = position;
+        while (position < limit && body[position] != '&') {
+            position++;
+        }
+        valueEnd = position;
+        decodedLength = -1;
+        return true;
+    }
+
+    /**
+     * Returns whether the name of the current field is the given ASCII name.
+     */
+    public boolean isName(String name) {
+        int length = nameEnd - nameStart;
+        if (length != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (body[nameStart + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the decoded value of the current field.
+     */
+    public String getValue() {
+        decode();
+        return new String(decoded, 0, decodedLength, UTF8);
+    }
+
+    /**
+     * Returns whether the decoded value of the current field is the given ASCII value.
+     */
+    public boolean isValue(String value) {
+        decode();
+        if (decodedLength != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < decodedLength; i++) {
+            if (decoded[i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of the current field parsed as a timestamp.
+     *
+     * @see TimestampUtils#parseMillis(byte[], int, int)
+     */
+    public long getTimestampValue() throws ParseException {
+        decode();
+        return TimestampUtils.parseMillis(decoded, 0, decodedLength);
+    }
+
+    private void decode() {
+        if (decodedLength >= 0) {
+            return;
+        }
+        if (decoded.length < valueEnd - valueStart) {
+            decoded = new byte[Math.max(decoded.length * 2, valueEnd - valueStart)];
+        }
+        int length = 0;
+        for (int i = valueStart; i < valueEnd; i++) {
+            byte b = body[i];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%' && i + 2 < valueEnd) {
+                int high = Character.digit(body[i + 1], 16);
+                int low = Character.digit(body[i + 2], 16);
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException("Invalid percent-encoding at [" + (i - valueStart) + "]");
+                }
+                b = (byte) ((high << 4) | low);
+                i += 2;
+            } else if (b == '%') {
+                throw new IllegalArgumentException("Incomplete percent-encoding at [" + (i - valueStart) + "]");
+            }
+            decoded[length++] = b;
+        }
+        decodedLength = length;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.HttpClientConnectionManager;
+
+/**
+ * Background thread that periodically closes expired connections and connections that have been idle for longer than
+ * a given time in a pooled connection manager. Without it a connection closed by the server while sitting in the pool
+ * is only discovered when it is leased again.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class IdleConnectionEvictor {
+
+    private final HttpClientConnectionManager connectionManager;
+    private final long idleTimeout;
+    private final long interval;
+    private final Thread thread;
+
+    /**
+     * @param connectionManager the connection manager to evict connections from
+     * @param idleTimeout time in milliseconds a connection can be idle before being closed
+     */
+    public IdleConnectionEvictor(HttpClientConnectionManager connectionManager, long idleTimeout) {
+        this.connectionManager = connectionManager;
+        this.idleTimeout = idleTimeout;
+        this.interval = Math.max(idleTimeout / 2, 1000);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                evict();
+            }
+        }, "elks-connection-evictor");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void shutdown() {
+        thread.interrupt();
+    }
+
+    private void evict() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(interval);
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        }
+    }
+}
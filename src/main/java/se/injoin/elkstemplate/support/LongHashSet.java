@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import java.util.Arrays;
+
+/**
+ * Set of positive <code>long</code> values using open addressing with linear probing in a single array. Uses 8 bytes
+ * per slot instead of the boxed keys and entries of a {@link java.util.HashSet}, which matters for sets of millions of
+ * phone numbers. Zero marks an empty slot and can not be added.
+ * <p/>
+ * Not thread-safe.
+ *
+ * @author Tobias Mattsson
+ * @see PhoneNumberUtils
+ * @since 1.0
+ */
+public class LongHashSet {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] table;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of values the set will hold without having to grow
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * 3L / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @return true if the value was not already in the set
+     */
+    public boolean add(long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Value must be positive [" + value + "]");
+        }
+        int i = hash(value) & mask;
+        long current;
+        while ((current = table[i]) != 0) {
+            if (current == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        if (++size > resizeThreshold) {
+            grow();
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        int i = hash(value) & mask;
+        long current;
+        while ((current = table[i]) != 0) {
+            if (current == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    private void grow() {
+        if (table.length == MAX_CAPACITY) {
+            throw new IllegalStateException("Set is full");
+        }
+        long[] oldTable = table;
+        allocate(oldTable.length << 1);
+        for (long value : oldTable) {
+            if (value != 0) {
+                int i = hash(value) & mask;
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = value;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        table = new long[capacity];
+        mask = capacity - 1;
+        resizeThreshold = capacity == MAX_CAPACITY ? capacity - 1 : capacity / 4 * 3;
+    }
+
+    /**
+     * Spreads the bits of the value since phone numbers share prefixes and differ mostly in the low digits, this is
+     * the finalizer of MurmurHash3.
+     */
+    private static int hash(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+
+/**
+ * Deserializes money into minor units, provided in the API as integers scaled to represent hundreds of cents. Reads
+ * integer digits straight from the parser's buffer without creating a {@link java.math.BigDecimal}, other decimal forms
+ * are accepted as by {@link MoneyUtils#parseMinorUnits(char[], int, int)}.
+ * <p/>
+ * The result is boxed, data binding passes every value to the setter as an object so this can not be avoided with a
+ * {@link JsonDeserializer}. The template only binds the account details this way, responses to sending SMS and the
+ * SMS history are read with {@link SmsResponseParser} which stores the minor units without boxing. The deserializer
+ * is still used when responses are bound by other code, such as when they are parsed from stored JSON.
+ *
+ * @author Tobias Mattsson
+ * @see MoneyUtils
+ * @since 1.0
+ */
+public class MinorUnitsDeserializer extends JsonDeserializer<Long> {
+
+    @Override
+    public Long deserialize(JsonParser jsonParser, DeserializationContext context) throws IOException {
+        if (jsonParser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+            return jsonParser.getLongValue();
+        }
+        try {
+            return MoneyUtils.parseMinorUnits(jsonParser.getTextCharacters(), jsonParser.getTextOffset(), jsonParser.getTextLength());
+        } catch (NumberFormatException e) {
+            throw context.weirdStringException(jsonParser.getText(), Long.class, "not a valid money representation");
+        }
+    }
+}
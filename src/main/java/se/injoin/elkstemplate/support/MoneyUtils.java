@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import se.injoin.elkstemplate.SmsResponse;
+
+/**
+ * Utilities for money in minor units, the API provides amounts as integers of 1/10000 of the currency unit. I.e 3500
+ * is 0.3500. Working with minor units as <code>long</code> avoids creating a {@link BigDecimal} per amount.
+ *
+ * @author Tobias Mattsson
+ * @see MoneyDeserializer
+ * @since 1.0
+ */
+public class MoneyUtils {
+
+    /**
+     * Number of decimals in an amount in minor units.
+     */
+    public static final int SCALE = 4;
+
+    /**
+     * Value used for an amount in minor units that is missing.
+     */
+    public static final long UNDEFINED = Long.MIN_VALUE;
+
+    private static final int MAX_DIGITS = 18;
+
+    /**
+     * Parses an amount in minor units. Integers are parsed straight from the characters, other decimal forms such as
+     * <code>3500.00</code> or <code>3.5E3</code> are accepted like {@link MoneyDeserializer} does as long as they are a
+     * whole number of minor units.
+     *
+     * @throws NumberFormatException if the characters are not a number, are a fraction of a minor unit or do not fit
+     * in a long
+     */
+    public static long parseMinorUnits(char[] source, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        boolean negative = i < end && source[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end || end - i > MAX_DIGITS) {
+            return parseDecimalMinorUnits(source, offset, length);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = source[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return parseDecimalMinorUnits(source, offset, length);
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private static long parseDecimalMinorUnits(char[] source, int offset, int length) {
+        try {
+            return new BigDecimal(source, offset, length).longValueExact();
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("Not a valid money representation [" + new String(source, offset, length) + "]");
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Not a valid money representation [" + new String(source, offset, length) + "]");
+        }
+    }
+
+    /**
+     * Converts an amount in minor units to a {@link BigDecimal}, {@link #UNDEFINED} is converted to null.
+     */
+    public static BigDecimal toBigDecimal(long minorUnits) {
+        return minorUnits == UNDEFINED ? null : BigDecimal.valueOf(minorUnits, SCALE);
+    }
+
+    /**
+     * Converts an amount to minor units, null is converted to {@link #UNDEFINED}.
+     *
+     * @throws ArithmeticException if the amount has more decimals than minor units or does not fit in a long
+     */
+    public static long toMinorUnits(BigDecimal amount) {
+        if (amount == null) {
+            return UNDEFINED;
+        }
+        BigDecimal minorUnits = amount.movePointRight(SCALE);
+        if (minorUnits.scale() > 0) {
+            minorUnits = minorUnits.setScale(0);
+        }
+        return minorUnits.longValueExact();
+    }
+
+    /**
+     * Sums the costs of SMS responses in minor units, responses without a cost are skipped.
+     */
+    public static long sumCostMinorUnits(List<SmsResponse> responses) {
+        long sum = 0;
+        for (int i = 0, size = responses.size(); i < size; i++) {
+            long cost = responses.get(i).getCostMinorUnits();
+            if (cost != UNDEFINED) {
+                sum += cost;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+/**
+ * Utilities for phone numbers in E.164 format, e.g. <code>+46701234567</code>. A number is represented as a
+ * <code>long</code> of its digits, country code included, which fits the at most 15 digits of E.164 and is never
+ * zero since country codes do not start with 0.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class PhoneNumberUtils {
+
+    /**
+     * Value returned for a number that could not be parsed.
+     */
+    public static final long INVALID = -1;
+
+    /**
+     * Minimum number of digits of a number, country code included.
+     */
+    public static final int MIN_DIGITS = 7;
+
+    /**
+     * Maximum number of digits of a number according to E.164, country code included.
+     */
+    public static final int MAX_DIGITS = 15;
+
+    /**
+     * Parses a number in international format with a leading <code>+</code> or <code>00</code>, or in national format
+     * with a leading <code>0</code> if a default country code is given. Spaces, dashes, dots and parentheses between
+     * the digits are ignored, as is a trunk prefix written as <code>(0)</code> after the country code.
+     *
+     * @param number the number to parse
+     * @param defaultCountryCode the country code for numbers in national format, e.g. <code>46</code>, or null to
+     * reject them
+     * @return the digits of the number or {@link #INVALID}
+     */
+    public static long parse(CharSequence number, String defaultCountryCode) {
+        int length = number.length();
+        int i = 0;
+        while (i < length && number.charAt(i) == ' ') {
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        if (i < length && number.charAt(i) == '+') {
+            i++;
+        } else if (i + 1 < length && number.charAt(i) == '0' && number.charAt(i + 1) == '0') {
+            i += 2;
+        } else if (i < length && number.charAt(i) == '0' && defaultCountryCode != null) {
+            i++;
+            for (int j = 0; j < defaultCountryCode.length(); j++) {
+                value = value * 10 + (defaultCountryCode.charAt(j) - '0');
+                digits++;
+            }
+        } else {
+            return INVALID;
+        }
+        for (; i < length; i++) {
+            char c = number.charAt(i);
+            if (c == '(' && i + 2 < length && number.charAt(i + 1) == '0' && number.charAt(i + 2) == ')') {
+                i += 2;
+            } else if (c >= '0' && c <= '9') {
+                if (digits == 0 && c == '0' || ++digits > MAX_DIGITS) {
+                    return INVALID;
+                }
+                value = value * 10 + (c - '0');
+            } else if (c != ' ' && c != '-' && c != '.' && c != '(' && c != ')') {
+                return INVALID;
+            }
+        }
+        return digits < MIN_DIGITS ? INVALID : value;
+    }
+
+    /**
+     * Formats the digits of a number in E.164 format.
+     */
+    public static String format(long number) {
+        return "+" + number;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cached value loaded on demand and refreshed ahead of expiry. Once a value has been loaded readers never wait: when
+ * it is older than the refresh time a reload is started in the background and the current value is returned until the
+ * reload completes. Readers only wait for the first load and for the load after {@link #invalidate()}.
+ * <p/>
+ * Loading is single-flight, concurrent readers missing the value share one load and at most one background reload
+ * runs at a time. A failed background reload is logged and retried after a tenth of the refresh time.
+ * <p/>
+ * A value older than the maximum stale time is no longer returned. Readers then wait for a reload as if there was no
+ * value and get the exception if it fails, so a value is not served indefinitely while reloads keep failing.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class RefreshAheadValue<T> {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Callable<T> loader;
+    private final Executor executor;
+    private final long refreshNanos;
+    private final long maxStaleNanos;
+    private final AtomicReference<LoadTask> loading = new AtomicReference<LoadTask>();
+    private volatile int generation;
+    private volatile Entry<T> entry;
+    private volatile long refreshNotBefore;
+
+    /**
+     * @param loader loads the value, exceptions it throws are passed to the readers waiting for the load
+     * @param executor runs background reloads
+     * @param refreshTime time in milliseconds after loading that a value is reloaded
+     */
+    public RefreshAheadValue(Callable<T> loader, Executor executor, long refreshTime) {
+        this(loader, executor, refreshTime, 0);
+    }
+
+    /**
+     * @param loader loads the value, exceptions it throws are passed to the readers waiting for the load
+     * @param executor runs background reloads
+     * @param refreshTime time in milliseconds after loading that a value is reloaded
+     * @param maxStaleTime time in milliseconds after loading that a value is no longer returned, 0 for no limit
+     */
+    public RefreshAheadValue(Callable<T> loader, Executor executor, long refreshTime, long maxStaleTime) {
+        this.loader = loader;
+        this.executor = executor;
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshTime);
+        this.maxStaleNanos = maxStaleTime > 0 ? TimeUnit.MILLISECONDS.toNanos(maxStaleTime) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the value, loading it if there is none.
+     */
+    public T get() {
+        Entry<T> current = entry;
+        if (current == null) {
+            return load();
+        }
+        long now = System.nanoTime();
+        if (now - current.loadTime >= maxStaleNanos) {
+            return load();
+        }
+        if (now - current.loadTime >= refreshNanos && now - refreshNotBefore >= 0) {
+            refresh();
+        }
+        return current.value;
+    }
+
+    /**
+     * Returns the value without loading it, null if there is none.
+     */
+    public T peek() {
+        Entry<T> current = entry;
+        return current != null ? current.value : null;
+    }
+
+    /**
+     * Replaces the value. A load in progress will not overwrite it.
+     */
+    public synchronized void set(T value) {
+        generation++;
+        entry = new Entry<T>(value, System.nanoTime());
+    }
+
+    /**
+     * Removes the value so that the next reader loads it. A load in progress will not store its result.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        entry = null;
+    }
+
+    /**
+     * Starts a reload in the background unless one is already running.
+     */
+    public void refresh() {
+        LoadTask task = new LoadTask(true, generation);
+        if (loading.compareAndSet(null, task)) {
+            executor.execute(task);
+        }
+    }
+
+    private T load() {
+        while (true) {
+            LoadTask task = loading.get();
+            if (task == null) {
+                LoadTask created = new LoadTask(false, generation);
+                if (!loading.compareAndSet(null, created)) {
+                    continue;
+                }
+                created.run();
+                task = created;
+            }
+            T value = await(task);
+            // A load started before the value was replaced or invalidated may be outdated
+            if (task.loadGeneration == generation) {
+                return value;
+            }
+            Entry<T> current = entry;
+            if (current != null) {
+                return current.value;
+            }
+        }
+    }
+
+    private T await(LoadTask task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for value to load", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Loading value failed", e.getCause());
+        }
+    }
+
+    private static class Entry<T> {
+
+        private final T value;
+        private final long loadTime;
+
+        public Entry(T value, long loadTime) {
+            this.value = value;
+            this.loadTime = loadTime;
+        }
+    }
+
+    private class LoadTask extends FutureTask<T> {
+
+        private final boolean background;
+        private final int loadGeneration;
+
+        public LoadTask(boolean background, int loadGeneration) {
+            super(new Loader(loadGeneration));
+            this.background = background;
+            this.loadGeneration = loadGeneration;
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            if (background) {
+                logger.warn("Refreshing cached value failed", t);
+                refreshNotBefore = System.nanoTime() + refreshNanos / 10;
+            }
+            super.setException(t);
+        }
+
+        @Override
+        protected void done() {
+            loading.compareAndSet(this, null);
+        }
+    }
+
+    private class Loader implements Callable<T> {
+
+        private final int loadGeneration;
+
+        public Loader(int loadGeneration) {
+            this.loadGeneration = loadGeneration;
+        }
+
+        @Override
+        public T call() throws Exception {
+            T value = loader.call();
+            synchronized (RefreshAheadValue.this) {
+                if (generation == loadGeneration) {
+                    entry = new Entry<T>(value, System.nanoTime());
+                }
+            }
+            return value;
+        }
+    }
+}
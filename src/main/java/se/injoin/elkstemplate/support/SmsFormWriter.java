@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import se.injoin.elkstemplate.SmsRequest;
+
+/**
+ * Writes the form body for sending an SMS straight to an output stream. The part of the form that is the same for
+ * every batch is encoded once, the recipients are encoded from the list into a reused buffer, without joining them
+ * into a string and without the intermediate strings of {@link org.springframework.http.converter.FormHttpMessageConverter}.
+ * <p/>
+ * The output is the same as that of <code>FormHttpMessageConverter</code> with its default charset UTF-8.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class SmsFormWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Maximum length of an encoded code point, four percent-encoded bytes.
+     */
+    private static final int MAX_ENCODED_LENGTH = 12;
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    /**
+     * Encoded length of the comma separating two recipients.
+     */
+    private static final int SEPARATOR_LENGTH = 3;
+
+    private final byte[] prefix;
+
+    /**
+     * Encodes the fields of a request except for the recipients.
+     */
+    public SmsFormWriter(SmsRequest smsRequest) {
+        StringBuilder sb = new StringBuilder();
+        append(sb, "from", smsRequest.getFrom());
+        append(sb, "message", smsRequest.getMessage());
+        if (smsRequest.isFlash()) {
+            append(sb, "flashsms", "yes");
+        }
+        if (smsRequest.getDeliveryReportUrl() != null) {
+            append(sb, "whendelivered", smsRequest.getDeliveryReportUrl());
+        }
+        sb.append("to=");
+        prefix = new byte[sb.length()];
+        for (int i = 0; i < prefix.length; i++) {
+            prefix[i] = (byte) sb.charAt(i);
+        }
+    }
+
+    /**
+     * Returns the length in bytes of the form without any recipients.
+     */
+    public int getPrefixLength() {
+        return prefix.length;
+    }
+
+    /**
+     * Returns the number of bytes a recipient adds to the form, including the separating comma.
+     */
+    public static int getEncodedLength(String recipient) {
+        byte[] encoded = new byte[MAX_ENCODED_LENGTH];
+        int length = SEPARATOR_LENGTH;
+        for (int i = 0; i < recipient.length(); i++) {
+            char c = recipient.charAt(i);
+            if (isSafe(c) || c == ' ') {
+                length++;
+            } else {
+                length += encode(recipient, i, encoded, 0);
+                if (Character.isHighSurrogate(c) && i + 1 < recipient.length() && Character.isLowSurrogate(recipient.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the form with the given recipients.
+     */
+    public void writeTo(OutputStream out, List<String> recipients) throws IOException {
+        out.write(prefix);
+        byte[] buffer = BUFFER.get();
+        int position = 0;
+        for (int i = 0, size = recipients.size(); i < size; i++) {
+            String recipient = recipients.get(i);
+            if (i > 0) {
+                position = encode(",", 0, buffer, position);
+            }
+            for (int j = 0, length = recipient.length(); j < length; j++) {
+                if (position > BUFFER_SIZE - MAX_ENCODED_LENGTH) {
+                    out.write(buffer, 0, position);
+                    position = 0;
+                }
+                char c = recipient.charAt(j);
+                position = encode(recipient, j, buffer, position);
+                if (Character.isHighSurrogate(c) && j + 1 < length && Character.isLowSurrogate(recipient.charAt(j + 1))) {
+                    j++;
+                }
+            }
+            if (position > BUFFER_SIZE - MAX_ENCODED_LENGTH) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+        out.write(buffer, 0, position);
+    }
+
+    private static void append(StringBuilder sb, String name, String value) {
+        sb.append(name).append('=');
+        byte[] encoded = new byte[MAX_ENCODED_LENGTH];
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int length = encode(value, i, encoded, 0);
+            for (int j = 0; j < length; j++) {
+                sb.append((char) encoded[j]);
+            }
+            if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                i++;
+            }
+        }
+        sb.append('&');
+    }
+
+    /**
+     * Encodes the character at an index the way {@link java.net.URLEncoder} does with UTF-8. A surrogate pair is
+     * encoded as one code point, a lone surrogate as <code>?</code>.
+     *
+     * @return the position after the encoded character
+     */
+    private static int encode(CharSequence value, int index, byte[] buffer, int position) {
+        char c = value.charAt(index);
+        if (isSafe(c)) {
+            buffer[position++] = (byte) c;
+            return position;
+        }
+        if (c == ' ') {
+            buffer[position++] = '+';
+            return position;
+        }
+        int codePoint = c;
+        if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+                codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            } else {
+                codePoint = '?';
+            }
+        }
+        if (codePoint < 0x80) {
+            position = percent(codePoint, buffer, position);
+        } else if (codePoint < 0x800) {
+            position = percent(0xC0 | codePoint >> 6, buffer, position);
+            position = percent(0x80 | codePoint & 0x3F, buffer, position);
+        } else if (codePoint < 0x10000) {
+            position = percent(0xE0 | codePoint >> 12, buffer, position);
+            position = percent(0x80 | codePoint >> 6 & 0x3F, buffer, position);
+            position = percent(0x80 | codePoint & 0x3F, buffer, position);
+        } else {
+            position = percent(0xF0 | codePoint >> 18, buffer, position);
+            position = percent(0x80 | codePoint >> 12 & 0x3F, buffer, position);
+            position = percent(0x80 | codePoint >> 6 & 0x3F, buffer, position);
+            position = percent(0x80 | codePoint & 0x3F, buffer, position);
+        }
+        return position;
+    }
+
+    private static int percent(int b, byte[] buffer, int position) {
+        buffer[position++] = '%';
+        buffer[position++] = HEX[b >> 4];
+        buffer[position++] = HEX[b & 0xF];
+        return position;
+    }
+
+    private static boolean isSafe(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '.' || c == '-' || c == '*' || c == '_';
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.Date;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import se.injoin.elkstemplate.SmsResponse;
+import se.injoin.elkstemplate.SmsResponseHandler;
+
+/**
+ * Streaming parser for SMS responses using Jackson's token API. Each response is handed to a handler as soon as it
+ * has been parsed, so memory use does not grow with the size of the response body. Understands the same fields as the
+ * data binding of {@link SmsResponse} and skips unknown fields.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class SmsResponseParser {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * Parses the response from sending an SMS, either a single object or an array of objects.
+     *
+     * @return the number of responses parsed
+     */
+    public static int parseSendResponse(InputStream in, SmsResponseHandler handler) throws IOException {
+        JsonParser parser = JSON_FACTORY.createParser(in);
+        try {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                handler.handleResponse(parseResponse(parser));
+                return 1;
+            }
+            if (token != JsonToken.START_ARRAY) {
+                throw new JsonParseException("Expected object or array", parser.getCurrentLocation());
+            }
+            return parseArray(parser, handler);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Parses a page of SMS history, an object with the responses in the <code>data</code> array.
+     *
+     * @return the <code>next</code> date of the page or null if there is none
+     */
+    public static Date parseHistory(InputStream in, SmsResponseHandler handler) throws IOException {
+        JsonParser parser = JSON_FACTORY.createParser(in);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Expected object", parser.getCurrentLocation());
+            }
+            Date next = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (name.equals("data") && token == JsonToken.START_ARRAY) {
+                    parseArray(parser, handler);
+                } else if (name.equals("next") && token == JsonToken.VALUE_STRING) {
+                    next = parseTimestamp(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return next;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static int parseArray(JsonParser parser, SmsResponseHandler handler) throws IOException {
+        int count = 0;
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+            handler.handleResponse(parseResponse(parser));
+            count++;
+        }
+        if (token != JsonToken.END_ARRAY) {
+            throw new JsonParseException("Expected object or end of array", parser.getCurrentLocation());
+        }
+        return count;
+    }
+
+    /**
+     * Parses the fields of an object, the parser is positioned at its start and is left at its end.
+     */
+    private static SmsResponse parseResponse(JsonParser parser) throws IOException {
+        SmsResponse response = new SmsResponse();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            if (name.equals("id")) {
+                response.setId(parser.getText());
+            } else if (name.equals("direction")) {
+                response.setDirection(parser.getText());
+            } else if (name.equals("created")) {
+                response.setCreated(parseTimestamp(parser));
+            } else if (name.equals("cost")) {
+                response.setCostMinorUnits(parseMinorUnits(parser));
+            } else if (name.equals("from")) {
+                response.setFrom(parser.getText());
+            } else if (name.equals("to")) {
+                response.setTo(parser.getText());
+            } else if (name.equals("message")) {
+                response.setMessage(parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return response;
+    }
+
+    private static Date parseTimestamp(JsonParser parser) throws IOException {
+        try {
+            return TimestampUtils.parse(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+        } catch (ParseException e) {
+            throw new JsonParseException("Not a valid timestamp representation [" + parser.getText() + "]", parser.getCurrentLocation(), e);
+        }
+    }
+
+    private static long parseMinorUnits(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue();
+        }
+        try {
+            return MoneyUtils.parseMinorUnits(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+        } catch (NumberFormatException e) {
+            throw new JsonParseException("Not a valid money representation [" + parser.getText() + "]", parser.getCurrentLocation(), e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+/**
+ * Calculates how a message is encoded and split into segments when sent as SMS. Messages using only characters of the
+ * GSM 03.38 default alphabet and its extension table are sent as GSM-7, other messages as UCS-2.
+ * <p/>
+ * A single SMS holds 160 GSM-7 septets or 70 UCS-2 characters. Longer messages are sent as concatenated segments of
+ * 153 septets or 67 characters each, the rest of each segment holds the concatenation header. Extension characters
+ * take two septets and surrogate pairs two characters, neither is split between segments.
+ * <p/>
+ * Characters are classified with a lookup table, nothing is allocated per character.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class SmsSegmentCalculator {
+
+    public static final int GSM7_SINGLE_LIMIT = 160;
+    public static final int GSM7_SEGMENT_LIMIT = 153;
+    public static final int UCS2_SINGLE_LIMIT = 70;
+    public static final int UCS2_SEGMENT_LIMIT = 67;
+
+    private static final String GSM7_BASIC = "@\u00A3$\u00A5\u00E8\u00E9\u00F9\u00EC\u00F2\u00C7\n\u00D8\u00F8\r\u00C5\u00E5\u0394_\u03A6\u0393\u039B\u03A9\u03A0\u03A8\u03A3\u0398\u039E\u00C6\u00E6\u00DF\u00C9 !\"#\u00A4%&'()*+,-./0123456789:;<=>?"
+            + "\u00A1ABCDEFGHIJKLMNOPQRSTUVWXYZ\u00C4\u00D6\u00D1\u00DC\u00A7\u00BFabcdefghijklmnopqrstuvwxyz\u00E4\u00F6\u00F1\u00FC\u00E0";
+    private static final String GSM7_EXTENSION = "\f^{}\\[~]|\u20AC";
+
+    private static final byte NOT_GSM7 = 0;
+    private static final byte BASIC = 1;
+    private static final byte EXTENSION = 2;
+
+    /**
+     * Septets per character for the characters in the default alphabet and its extension, 0 for other characters. The
+     * euro sign is the only one above the table.
+     */
+    private static final byte[] SEPTETS = new byte[0x400];
+    private static final char EURO = '\u20AC';
+
+    static {
+        for (int i = 0; i < GSM7_BASIC.length(); i++) {
+            SEPTETS[GSM7_BASIC.charAt(i)] = BASIC;
+        }
+        for (int i = 0; i < GSM7_EXTENSION.length(); i++) {
+            char c = GSM7_EXTENSION.charAt(i);
+            if (c < SEPTETS.length) {
+                SEPTETS[c] = EXTENSION;
+            }
+        }
+    }
+
+    /**
+     * Calculates the encoding and segments of a message.
+     */
+    public static SmsSegments calculate(CharSequence message) {
+        int length = message.length();
+        int septets = 0;
+        boolean extension = false;
+        for (int i = 0; i < length; i++) {
+            int count = septets(message.charAt(i));
+            if (count == NOT_GSM7) {
+                return calculateUcs2(message);
+            }
+            septets += count;
+            extension |= count == EXTENSION;
+        }
+        int segments;
+        if (septets <= GSM7_SINGLE_LIMIT) {
+            segments = 1;
+        } else if (!extension) {
+            segments = (septets + GSM7_SEGMENT_LIMIT - 1) / GSM7_SEGMENT_LIMIT;
+        } else {
+            segments = 1;
+            int used = 0;
+            for (int i = 0; i < length; i++) {
+                int count = septets(message.charAt(i));
+                if (used + count > GSM7_SEGMENT_LIMIT) {
+                    segments++;
+                    used = 0;
+                }
+                used += count;
+            }
+        }
+        return new SmsSegments(SmsSegments.Encoding.GSM7, septets, segments);
+    }
+
+    /**
+     * Returns whether a character can be sent in GSM-7.
+     */
+    public static boolean isGsm7(char c) {
+        return septets(c) != NOT_GSM7;
+    }
+
+    private static SmsSegments calculateUcs2(CharSequence message) {
+        int length = message.length();
+        int segments;
+        if (length <= UCS2_SINGLE_LIMIT) {
+            segments = 1;
+        } else {
+            segments = 1;
+            int used = 0;
+            for (int i = 0; i < length; i++) {
+                int count = Character.isHighSurrogate(message.charAt(i)) && i + 1 < length
+                        && Character.isLowSurrogate(message.charAt(i + 1)) ? 2 : 1;
+                if (used + count > UCS2_SEGMENT_LIMIT) {
+                    segments++;
+                    used = 0;
+                }
+                used += count;
+                i += count - 1;
+            }
+        }
+        return new SmsSegments(SmsSegments.Encoding.UCS2, length, segments);
+    }
+
+    private static int septets(char c) {
+        if (c < SEPTETS.length) {
+            return SEPTETS[c];
+        }
+        return c == EURO ? EXTENSION : NOT_GSM7;
+    }
+}
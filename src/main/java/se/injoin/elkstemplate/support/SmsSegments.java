@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+/**
+ * The encoding of a message and the number of segments it is sent as.
+ *
+ * @author Tobias Mattsson
+ * @see SmsSegmentCalculator
+ * @since 1.0
+ */
+public class SmsSegments {
+
+    public enum Encoding {
+        /**
+         * The GSM 03.38 default alphabet, 7 bits per character.
+         */
+        GSM7,
+        /**
+         * UCS-2, 16 bits per character.
+         */
+        UCS2
+    }
+
+    private final Encoding encoding;
+    private final int length;
+    private final int segments;
+
+    public SmsSegments(Encoding encoding, int length, int segments) {
+        this.encoding = encoding;
+        this.length = length;
+        this.segments = segments;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Returns the length of the encoded message, in septets for GSM-7 and in 16 bit characters for UCS-2.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of segments the message is sent as, at least 1.
+     */
+    public int getSegments() {
+        return segments;
+    }
+
+    @Override
+    public String toString() {
+        return "SmsSegments{" +
+                "encoding=" + encoding +
+                ", length=" + length +
+                ", segments=" + segments +
+                '}';
+    }
+}
@@ -36,11 +36,10 @@ public class TimestampDeserializer extends JsonDeserializer<Date> {
 
     @Override
     public Date deserialize(JsonParser jsonParser, DeserializationContext context) throws IOException {
-        String text = jsonParser.getText();
         try {
-            return TimestampUtils.parse(text);
+            return TimestampUtils.parse(jsonParser.getTextCharacters(), jsonParser.getTextOffset(), jsonParser.getTextLength());
         } catch (ParseException e) {
-            throw context.weirdStringException(text, Date.class, "not a valid timestamp representation");
+            throw context.weirdStringException(jsonParser.getText(), Date.class, "not a valid timestamp representation");
         }
     }
 }
@@ -18,32 +18,208 @@
 package se.injoin.elkstemplate.support;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.TimeZone;
 
 /**
- * Utilities for parsing and formatting timestamps. The API provides them as "2012-05-08T20:38:11.623000".
+ * Utilities for parsing and formatting timestamps. The API provides them as "2012-05-08T20:38:11.623000" in GMT.
+ * <p/>
+ * Parsing and formatting is done by hand for this fixed format rather than with {@link java.text.SimpleDateFormat}.
+ * The methods are thread-safe and, apart from the returned value, do not allocate. Fractions of a second are truncated
+ * to milliseconds when parsing and written with six digits when formatting.
  *
  * @author Tobias Mattsson
  * @since 1.0
  */
 public class TimestampUtils {
 
-    private static final String GMT_ID = "GMT";
-    private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS";
+    /**
+     * Length of a formatted timestamp.
+     */
+    public static final int LENGTH = 26;
+
+    private static final int MIN_LENGTH = 19;
+    private static final int MAX_LENGTH = 64;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private static final ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[MAX_LENGTH];
+        }
+    };
 
     public static Date parse(String source) throws ParseException {
-        SimpleDateFormat format = new SimpleDateFormat(TIMESTAMP_FORMAT);
-        format.setTimeZone(TimeZone.getTimeZone(GMT_ID));
-        // Remove last 3 digits to make milliseconds 3 digits long
-        String timestamp = source.substring(0, 23);
-        return format.parse(timestamp);
+        return new Date(parseMillis(source));
+    }
+
+    public static Date parse(char[] source, int offset, int length) throws ParseException {
+        return new Date(parseMillis(source, offset, length));
+    }
+
+    /**
+     * Parses a timestamp into milliseconds since the epoch.
+     */
+    public static long parseMillis(CharSequence source) throws ParseException {
+        int length = source.length();
+        if (length > MAX_LENGTH) {
+            throw new ParseException("Unparseable timestamp [" + source + "]", MAX_LENGTH);
+        }
+        char[] buffer = BUFFER.get();
+        for (int i = 0; i < length; i++) {
+            buffer[i] = source.charAt(i);
+        }
+        return parseMillis(buffer, 0, length);
+    }
+
+    /**
+     * Parses a timestamp encoded in ASCII into milliseconds since the epoch.
+     */
+    public static long parseMillis(byte[] source, int offset, int length) throws ParseException {
+        if (length > MAX_LENGTH) {
+            throw new ParseException("Unparseable timestamp [" + new String(source, offset, length) + "]", MAX_LENGTH);
+        }
+        char[] buffer = BUFFER.get();
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (char) (source[offset + i] & 0xff);
+        }
+        return parseMillis(buffer, 0, length);
+    }
+
+    /**
+     * Parses a timestamp into milliseconds since the epoch.
+     */
+    public static long parseMillis(char[] source, int offset, int length) throws ParseException {
+        if (length < MIN_LENGTH
+                || source[offset + 4] != '-' || source[offset + 7] != '-' || source[offset + 10] != 'T'
+                || source[offset + 13] != ':' || source[offset + 16] != ':') {
+            throw unparseable(source, offset, length, 0);
+        }
+        int year = digits(source, offset, 4);
+        int month = digits(source, offset + 5, 2);
+        int day = digits(source, offset + 8, 2);
+        int hour = digits(source, offset + 11, 2);
+        int minute = digits(source, offset + 14, 2);
+        int second = digits(source, offset + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            throw unparseable(source, offset, length, 0);
+        }
+        int millis = 0;
+        if (length > MIN_LENGTH) {
+            if (source[offset + MIN_LENGTH] != '.' || length == MIN_LENGTH + 1) {
+                throw unparseable(source, offset, length, MIN_LENGTH);
+            }
+            // Only milliseconds are kept, any further digits are checked and dropped
+            int scale = 100;
+            for (int i = MIN_LENGTH + 1; i < length; i++) {
+                int digit = source[offset + i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw unparseable(source, offset, length, i);
+                }
+                millis += digit * scale;
+                scale /= 10;
+            }
+        }
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+                + ((hour * 60 + minute) * 60 + second) * 1000L + millis;
     }
 
     public static String format(Date timestamp) throws ParseException {
-        SimpleDateFormat format = new SimpleDateFormat(TIMESTAMP_FORMAT);
-        format.setTimeZone(TimeZone.getTimeZone(GMT_ID));
-        return format.format(timestamp) + "000";
+        char[] buffer = BUFFER.get();
+        format(timestamp.getTime(), buffer, 0);
+        return new String(buffer, 0, LENGTH);
+    }
+
+    /**
+     * Formats a timestamp into a buffer which must have room for {@link #LENGTH} characters from the offset.
+     *
+     * @return the offset following the formatted timestamp
+     */
+    public static int format(long millis, char[] destination, int offset) {
+        long days = millis / MILLIS_PER_DAY;
+        int millisOfDay = (int) (millis % MILLIS_PER_DAY);
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += MILLIS_PER_DAY;
+        }
+
+        // Civil date from days since the epoch, see http://howardhinnant.github.io/date_algorithms.html
+        long shifted = days + 719468;
+        long era = (shifted >= 0 ? shifted : shifted - 146096) / 146097;
+        int dayOfEra = (int) (shifted - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            throw new IllegalArgumentException("Year [" + year + "] can not be formatted as a timestamp");
+        }
+
+        int i = offset;
+        i = put(destination, i, (int) year, 4);
+        destination[i++] = '-';
+        i = put(destination, i, month, 2);
+        destination[i++] = '-';
+        i = put(destination, i, day, 2);
+        destination[i++] = 'T';
+        i = put(destination, i, millisOfDay / 3600000, 2);
+        destination[i++] = ':';
+        i = put(destination, i, millisOfDay / 60000 % 60, 2);
+        destination[i++] = ':';
+        i = put(destination, i, millisOfDay / 1000 % 60, 2);
+        destination[i++] = '.';
+        i = put(destination, i, millisOfDay % 1000, 3);
+        destination[i++] = '0';
+        destination[i++] = '0';
+        destination[i++] = '0';
+        return i;
+    }
+
+    /**
+     * Days since the epoch of a date in the proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    /**
+     * Reads a fixed number of decimal digits, returns -1 if any of them is not a digit.
+     */
+    private static int digits(char[] source, int offset, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            int digit = source[offset + i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int put(char[] destination, int offset, int value, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            destination[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + count;
+    }
+
+    private static ParseException unparseable(char[] source, int offset, int length, int errorOffset) {
+        return new ParseException("Unparseable timestamp [" + new String(source, offset, length) + "]", errorOffset);
     }
 }
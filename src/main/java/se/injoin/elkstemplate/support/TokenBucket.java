@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket. The whole state is a single timestamp, the time at which all permits handed out so far are
+ * paid for, which is updated with compare-and-set. Permits accumulate at the configured rate up to the burst size.
+ * <p/>
+ * A request for more permits than are available is granted immediately if the bucket is not already in debt, the
+ * debt is then paid by the following requests waiting. This lets a batch larger than the burst size through while
+ * keeping the average rate.
+ *
+ * @author Tobias Mattsson
+ * @since 1.0
+ */
+public class TokenBucket {
+
+    private final long nanosPerPermit;
+    private final long burstNanos;
+    private final AtomicLong paidUntil;
+
+    /**
+     * @param permitsPerSecond the rate permits are added with
+     * @param burst the maximum number of permits that can accumulate
+     */
+    public TokenBucket(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        }
+        this.nanosPerPermit = Math.max((long) (1000000000L / permitsPerSecond), 1);
+        this.burstNanos = nanosPerPermit * Math.max(burst, 1);
+        this.paidUntil = new AtomicLong(System.nanoTime() - burstNanos);
+    }
+
+    /**
+     * Reserves permits if they are available within the given time.
+     *
+     * @param permits the number of permits to reserve
+     * @param maxWaitNanos the longest acceptable wait, zero to only succeed when permits are available now
+     * @return the number of nanoseconds to wait before the permits can be used or -1 if they could not be reserved
+     */
+    public long reserve(int permits, long maxWaitNanos) {
+        while (true) {
+            long now = System.nanoTime();
+            long current = paidUntil.get();
+            long start = Math.max(current, now - burstNanos);
+            long wait = start - now;
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            if (paidUntil.compareAndSet(current, start + permits * nanosPerPermit)) {
+                return Math.max(wait, 0);
+            }
+        }
+    }
+}
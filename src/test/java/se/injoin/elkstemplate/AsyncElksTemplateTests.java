@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.HttpClientErrorException;
+
+public class AsyncElksTemplateTests {
+
+    private ElksStubServer server;
+    private ElksTemplate template;
+    private AsyncElksTemplate asyncTemplate;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ElksStubServer();
+        server.start();
+        template = new ElksTemplate();
+        template.setApiUrl(server.getApiUrl());
+        template.setUsername("username");
+        template.setPassword("password");
+        asyncTemplate = new AsyncElksTemplate(template);
+    }
+
+    @After
+    public void tearDown() {
+        asyncTemplate.destroy();
+        template.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void testSuccessAndFailure() throws Exception {
+        assertEquals(server.getBalance(), asyncTemplate.queryAccountDetails().get().getBalanceMinorUnits());
+
+        server.failNextRequests(1, 400);
+        try {
+            asyncTemplate.sendSms("Sender", "+46700001000", "Hello").get();
+            throw new AssertionError("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ElksException);
+            assertTrue(e.getCause().getCause() instanceof HttpClientErrorException);
+        }
+    }
+
+    @Test
+    public void testCallbacks() throws Exception {
+        RecordingCallback<SmsResponse> success = new RecordingCallback<SmsResponse>();
+        asyncTemplate.sendSms("Sender", "+46700001000", "Hello", success);
+        success.await();
+        assertEquals("+46700001000", success.result.get().getTo());
+        assertNull(success.exception.get());
+
+        server.failNextRequests(1, 400);
+        RecordingCallback<AccountDetails> failure = new RecordingCallback<AccountDetails>();
+        asyncTemplate.queryAccountDetails(failure);
+        failure.await();
+        assertNull(failure.result.get());
+        assertTrue(failure.exception.get() instanceof ElksException);
+    }
+
+    @Test
+    public void testResumableAndStreaming() throws Exception {
+        template.setBatchLimit(4);
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom("Sender");
+        smsRequest.setMessage("Hello");
+        for (int i = 0; i < 10; i++) {
+            smsRequest.addRecipient("+4670000" + (1000 + i));
+        }
+
+        server.failRequestsAfter(1, 1, 429);
+        SmsSendResult result = asyncTemplate.sendSmsResumable(smsRequest).get();
+        assertFalse(result.isComplete());
+        RecordingCallback<SmsSendResult> callback = new RecordingCallback<SmsSendResult>();
+        asyncTemplate.resumeSms(smsRequest, result.getResumeToken(), callback).get();
+        callback.await();
+        assertTrue(callback.result.get().isComplete());
+
+        final List<SmsResponse> handled = Collections.synchronizedList(new ArrayList<SmsResponse>());
+        SmsResponseHandler handler = new SmsResponseHandler() {
+            @Override
+            public void handleResponse(SmsResponse response) {
+                handled.add(response);
+            }
+        };
+        assertTrue(asyncTemplate.sendSms(smsRequest, handler).get().isComplete());
+        assertEquals(10, handled.size());
+    }
+
+    @Test
+    public void testDestroyShutsDownDefaultExecutor() throws Exception {
+        ExecutorService executor = (ExecutorService) asyncTemplate.getExecutor();
+        asyncTemplate.queryAccountDetails().get();
+        asyncTemplate.destroy();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        // A new default executor is created when used again
+        assertEquals(server.getBalance(), asyncTemplate.queryAccountDetails().get().getBalanceMinorUnits());
+        assertFalse(executor == asyncTemplate.getExecutor());
+    }
+
+    private static class RecordingCallback<T> implements ElksCallback<T> {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final AtomicReference<T> result = new AtomicReference<T>();
+        private final AtomicReference<RuntimeException> exception = new AtomicReference<RuntimeException>();
+
+        @Override
+        public void onSuccess(T result) {
+            this.result.set(result);
+            latch.countDown();
+        }
+
+        @Override
+        public void onFailure(RuntimeException exception) {
+            this.exception.set(exception);
+            latch.countDown();
+        }
+
+        public void await() throws InterruptedException {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+    }
+}
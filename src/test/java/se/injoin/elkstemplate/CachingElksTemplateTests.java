@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingElksTemplateTests {
+
+    private ElksStubServer server;
+    private CachingElksTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ElksStubServer();
+        server.start();
+        template = new CachingElksTemplate();
+        template.setApiUrl(server.getApiUrl());
+        template.setUsername("username");
+        template.setPassword("password");
+    }
+
+    @After
+    public void tearDown() {
+        template.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneRequest() throws Exception {
+        server.setLatency(50);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<AccountDetails>> futures = new ArrayList<Future<AccountDetails>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<AccountDetails>() {
+                    @Override
+                    public AccountDetails call() {
+                        return template.queryAccountDetails();
+                    }
+                }));
+            }
+            AccountDetails first = futures.get(0).get();
+            for (Future<AccountDetails> future : futures) {
+                assertSame(first, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testRefreshesAheadWithoutBlocking() throws Exception {
+        template.setAccountDetailsTtl(50);
+        long balance = template.queryAccountDetails().getBalanceMinorUnits();
+        template.sendSms("Sender", "+46700001000", "Hello");
+        Thread.sleep(100);
+
+        // Past the time to live the cached value is returned while it is refreshed
+        assertEquals(balance, template.queryAccountDetails().getBalanceMinorUnits());
+        for (int i = 0; i < 100 && template.queryAccountDetails().getBalanceMinorUnits() == balance; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(balance - ElksStubServer.SMS_COST, template.queryAccountDetails().getBalanceMinorUnits());
+    }
+
+    @Test
+    public void testPhoneNumberIndex() {
+        String id = server.addNumber("se", "+46766100001");
+
+        assertEquals(id, template.findPhoneNumber("+46766100001").getId());
+        assertEquals("+46766100001", template.queryPhoneNumber(id).getNumber());
+        int requests = server.getRequestCount();
+
+        PhoneNumberDetails allocated = template.allocatePhoneNumber("se", null);
+        assertSame(allocated, template.queryPhoneNumber(allocated.getId()));
+        assertSame(allocated, template.findPhoneNumber(allocated.getNumber()));
+        assertEquals(2, template.queryPhoneNumbers().size());
+        assertEquals(requests + 1, server.getRequestCount());
+    }
+
+    @Test
+    public void testCachesNotFound() {
+        assertNull(template.queryPhoneNumber("n404"));
+        int requests = server.getRequestCount();
+        assertNull(template.queryPhoneNumber("n404"));
+        assertEquals(requests, server.getRequestCount());
+    }
+
+    @Test
+    public void testNotFoundIsBounded() {
+        template.setMaxNotFound(2);
+        assertNull(template.queryPhoneNumber("n1"));
+        assertNull(template.queryPhoneNumber("n2"));
+        assertNull(template.queryPhoneNumber("n3"));
+        assertEquals(2, template.getNotFoundCount());
+
+        // Past the limit ids are queried every time
+        int requests = server.getRequestCount();
+        assertNull(template.queryPhoneNumber("n3"));
+        assertEquals(requests + 1, server.getRequestCount());
+        assertNull(template.queryPhoneNumber("n1"));
+        assertEquals(requests + 1, server.getRequestCount());
+    }
+
+    @Test
+    public void testPurgesExpiredNotFound() throws Exception {
+        template.setNotFoundTtl(500);
+        for (int i = 0; i < 10; i++) {
+            assertNull(template.queryPhoneNumber("n" + i));
+        }
+        assertEquals(10, template.getNotFoundCount());
+        Thread.sleep(600);
+
+        assertNull(template.queryPhoneNumber("n404"));
+        assertEquals(1, template.getNotFoundCount());
+    }
+
+    @Test
+    public void testStaleValueExpiresWhenRefreshFails() throws Exception {
+        template.setAccountDetailsTtl(50);
+        template.setMaxStaleTime(300);
+        AccountDetails accountDetails = template.queryAccountDetails();
+        server.failNextRequests(1000, 500);
+        Thread.sleep(100);
+
+        // Refreshing fails in the background and the cached value is returned
+        assertSame(accountDetails, template.queryAccountDetails());
+        Thread.sleep(300);
+
+        try {
+            template.queryAccountDetails();
+            fail("Expected the refresh failure once the value is too stale");
+        } catch (ElksException expected) {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoalescingSmsSenderTests {
+
+    private ElksStubServer server;
+    private ElksTemplate template;
+    private CoalescingSmsSender sender;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ElksStubServer();
+        server.start();
+        template = new ElksTemplate();
+        template.setApiUrl(server.getApiUrl());
+        template.setUsername("username");
+        template.setPassword("password");
+        sender = new CoalescingSmsSender(template);
+        sender.setMaxDelay(200);
+    }
+
+    @After
+    public void tearDown() {
+        sender.destroy();
+        template.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void testMergesSendsWithinWindow() throws Exception {
+        List<Future<SmsResponse>> futures = new ArrayList<Future<SmsResponse>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(sender.sendSms("Sender", "+4670000" + (1000 + i), "Hello"));
+        }
+        Future<SmsResponse> other = sender.sendSms("Sender", "+46700001000", "Other");
+
+        for (int i = 0; i < 10; i++) {
+            SmsResponse response = futures.get(i).get();
+            assertEquals("+4670000" + (1000 + i), response.getTo());
+            assertEquals("Hello", response.getMessage());
+        }
+        assertEquals("Other", other.get().getMessage());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testSendsWhenFull() throws Exception {
+        sender.setMaxDelay(60000);
+        sender.setMaxRecipients(4);
+        List<Future<SmsResponse>> futures = new ArrayList<Future<SmsResponse>>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(sender.sendSms("Sender", "+4670000" + (1000 + i), "Hello"));
+        }
+        for (int i = 0; i < 8; i++) {
+            assertEquals("+4670000" + (1000 + i), futures.get(i).get().getTo());
+        }
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testFailsEveryCallerOfFailedRequest() throws Exception {
+        server.failNextRequests(1, 500);
+        List<Future<SmsResponse>> futures = new ArrayList<Future<SmsResponse>>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(sender.sendSms("Sender", "+4670000" + (1000 + i), "Hello"));
+        }
+        for (Future<SmsResponse> future : futures) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ElksException);
+            }
+        }
+    }
+}
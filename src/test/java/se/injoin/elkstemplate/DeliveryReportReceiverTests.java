@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import se.injoin.elkstemplate.support.TimestampUtils;
+
+public class DeliveryReportReceiverTests {
+
+    @Test
+    public void testParsesAndQueuesReports() throws Exception {
+        DeliveryReportReceiver receiver = new DeliveryReportReceiver();
+        receiver.setQueueCapacity(1);
+        byte[] body = "id=s17a6dafb12d6b1cabc053d57dac2b9d8&status=delivered&delivered=2014-03-18T13%3A57%3A23.741000".getBytes("US-ASCII");
+
+        assertTrue(receiver.receive(body, 0, body.length));
+        assertFalse(receiver.receive(body, 0, body.length));
+        assertEquals(1, receiver.getRefusedCount());
+
+        final List<DeliveryReport> reports = new ArrayList<DeliveryReport>();
+        receiver.addListener(new DeliveryReportListener() {
+            @Override
+            public void deliveryReportReceived(DeliveryReport report) {
+                reports.add(report);
+            }
+        });
+        receiver.start();
+        receiver.stop();
+
+        assertEquals(1, reports.size());
+        DeliveryReport report = reports.get(0);
+        assertEquals("s17a6dafb12d6b1cabc053d57dac2b9d8", report.getId());
+        assertTrue(report.isDelivered());
+        assertEquals(TimestampUtils.parseMillis("2014-03-18T13:57:23.741000"), report.getDeliveredMillis());
+
+        for (String invalid : new String[]{"status=failed", "id=s1&status=failed&delivered=yesterday", "id=s1&status=%4"}) {
+            byte[] bytes = invalid.getBytes("US-ASCII");
+            try {
+                receiver.receive(bytes, 0, bytes.length);
+                throw new AssertionError("Expected IllegalArgumentException for [" + invalid + "]");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        assertEquals(3, receiver.getInvalidCount());
+    }
+
+    @Test
+    public void testCallbackServer() throws Exception {
+        final List<DeliveryReport> reports = Collections.synchronizedList(new ArrayList<DeliveryReport>());
+        DeliveryReportReceiver receiver = new DeliveryReportReceiver();
+        receiver.addListener(new DeliveryReportListener() {
+            @Override
+            public void deliveryReportReceived(DeliveryReport report) {
+                reports.add(report);
+            }
+        });
+        ElksCallbackServer server = new ElksCallbackServer(0);
+        server.setDeliveryReportReceiver("/delivery", receiver);
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getPort() + "/delivery";
+            for (int i = 0; i < 10; i++) {
+                assertEquals(200, post(url, "id=s" + i + "&status=failed"));
+            }
+            assertEquals(400, post(url, "status=failed"));
+        } finally {
+            server.stop(0);
+        }
+
+        assertEquals(10, reports.size());
+        assertTrue(reports.get(9).isFailed());
+    }
+
+    @Test
+    public void testCallbackServerMaxBodySize() throws Exception {
+        ElksCallbackServer server = new ElksCallbackServer(0);
+        server.setMaxBodySize(2048);
+        server.setDeliveryReportReceiver("/delivery", new DeliveryReportReceiver());
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getPort() + "/delivery";
+            assertEquals(200, post(url, body(2048)));
+            assertEquals(413, post(url, body(2049)));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static String body(int length) {
+        StringBuilder body = new StringBuilder("id=s1&status=failed&padding=");
+        while (body.length() < length) {
+            body.append('x');
+        }
+        return body.toString();
+    }
+
+    private static int post(String url, String body) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        OutputStream out = connection.getOutputStream();
+        out.write(body.getBytes("US-ASCII"));
+        out.close();
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        return status;
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeliveryStatusIndexTests {
+
+    private static final String ID = "s17a6dafb12d6b1cabc053d57dac2b9d8";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsSendsAndReports() {
+        DeliveryStatusIndex index = new DeliveryStatusIndex(1000, 60000);
+        assertTrue(index.recordSent(ID, 1395150000000L));
+        assertEquals(DeliveryStatus.Status.SENT, index.getStatus(ID));
+
+        index.deliveryReportReceived(new DeliveryReport(ID, DeliveryReport.STATUS_DELIVERED, 1395150043741L));
+        DeliveryStatus status = index.get(ID);
+        assertEquals(DeliveryStatus.Status.DELIVERED, status.getStatus());
+        assertEquals(1395150000000L, status.getSentMillis());
+        assertEquals(1395150043000L, status.getDeliveredMillis());
+
+        // A report arriving before the send is recorded keeps its final status
+        index.deliveryReportReceived(new DeliveryReport("s2", DeliveryReport.STATUS_FAILED, DeliveryReport.UNDEFINED));
+        index.recordSent("s2", 1395150000000L);
+        assertEquals(DeliveryStatus.Status.FAILED, index.getStatus("s2"));
+        assertEquals(1395150000000L, index.get("s2").getSentMillis());
+
+        assertFalse(index.recordSent("not-an-id", 1395150000000L));
+        assertNull(index.get("s3"));
+        assertEquals(2, index.size());
+        assertEquals(1, index.getUntrackedCount());
+    }
+
+    @Test
+    public void testRejectsCapacityBeyondTableSize() {
+        int capacity = DeliveryStatusIndex.MAX_GENERATION_CAPACITY * 3 + 1;
+        try {
+            new DeliveryStatusIndex(capacity, 60000);
+            throw new AssertionError("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("exceeds the maximum"));
+        }
+        assertEquals(1 << 28, DeliveryStatusIndex.MAX_GENERATION_CAPACITY / 3 * 4);
+    }
+
+    @Test
+    public void testEvictsByGeneration() throws Exception {
+        DeliveryStatusIndex index = new DeliveryStatusIndex(20, 100, 2);
+        for (int i = 1; i <= 50; i++) {
+            index.recordSent("s" + i, System.currentTimeMillis());
+        }
+        // Full generations start new ones early, dropping the first 20
+        assertEquals(2, index.getRotationCount());
+        assertNull(index.get("s20"));
+        assertEquals(DeliveryStatus.Status.SENT, index.getStatus("s21"));
+        assertEquals(30, index.size());
+
+        Thread.sleep(250);
+        assertEquals(0, index.size());
+        assertNull(index.get("s40"));
+    }
+
+    @Test
+    public void testConcurrentRecordsShareEntries() throws Exception {
+        final DeliveryStatusIndex index = new DeliveryStatusIndex(100000, 60000);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final boolean reports = t % 2 == 0;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 20000; i++) {
+                        if (reports) {
+                            index.recordStatus("s" + Integer.toHexString(i), DeliveryStatus.Status.DELIVERED, 1395150043000L);
+                        } else {
+                            index.recordSent("s" + Integer.toHexString(i), 1395150000000L);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(20000, index.size());
+        DeliveryStatus status = index.get("s4e1f");
+        assertEquals(DeliveryStatus.Status.DELIVERED, status.getStatus());
+        assertEquals(1395150000000L, status.getSentMillis());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        DeliveryStatusIndex index = new DeliveryStatusIndex(1000, 60000);
+        for (int i = 0; i < 500; i++) {
+            index.recordSent("s" + i, 1395150000000L);
+        }
+        index.recordStatus(ID, DeliveryStatus.Status.FAILED, DeliveryReport.UNDEFINED);
+        File file = new File(temporaryFolder.getRoot(), "statuses");
+        index.writeSnapshot(file);
+        index.writeSnapshot(file);
+
+        DeliveryStatusIndex read = new DeliveryStatusIndex(1000, 60000);
+        read.readSnapshot(file);
+        assertEquals(501, read.size());
+        assertEquals(DeliveryStatus.Status.FAILED, read.getStatus(ID));
+        assertEquals(1395150000000L, read.get("s499").getSentMillis());
+    }
+}
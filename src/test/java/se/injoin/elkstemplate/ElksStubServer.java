@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import se.injoin.elkstemplate.support.TimestampUtils;
+
+/**
+ * In-process HTTP server answering like the 46 Elks API, used for testing and benchmarking without sending real SMS.
+ * Point {@link ElksTemplate#setApiUrl(String)} at {@link #getApiUrl()}.
+ * <p/>
+ * Implements <code>/Me</code>, <code>/Numbers</code>, <code>/Numbers/{id}</code> and <code>/SMS</code> with paging of
+ * the history. Sent SMS are recorded in the history and their cost is drawn from the balance. Responses can be
+ * delayed, errors injected for a number of requests or at random, and requests throttled with 429 responses.
+ */
+public class ElksStubServer {
+
+    static {
+        // Avoids Nagle's algorithm delaying the response body until the headers are acknowledged
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    public static final long SMS_COST = 3500;
+
+    /**
+     * Status to fail requests with that handles them but answers 200 with a truncated body.
+     */
+    public static final int MALFORMED = -1;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong balance = new AtomicLong(10000000);
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Map<String, Map<String, Object>> numbers = new ConcurrentHashMap<String, Map<String, Object>>();
+    private final List<Map<String, Object>> history = new ArrayList<Map<String, Object>>();
+    private final Queue<Integer> injectedErrors = new LinkedList<Integer>();
+    private final Random random = new Random();
+    private volatile long latency;
+    private volatile int pageSize = 100;
+    private volatile double errorRate;
+    private volatile int errorStatus = 500;
+    private volatile int maxRequestsPerSecond;
+    private long lastCreated;
+    private long throttleWindow;
+    private int throttleCount;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Sets a fixed delay in milliseconds added to every response.
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Sets the number of entries per page of SMS history, 100 like the API by default.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Fails a fraction of all requests at random with a status.
+     */
+    public void setErrorRate(double errorRate, int errorStatus) {
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+    }
+
+    /**
+     * Fails the next requests with a status, in addition to any random failures.
+     */
+    public void failNextRequests(int count, int status) {
+        synchronized (injectedErrors) {
+            for (int i = 0; i < count; i++) {
+                injectedErrors.add(status);
+            }
+        }
+    }
+
+    /**
+     * Answers a number of requests normally and then fails the following requests with a status.
+     */
+    public void failRequestsAfter(int passed, int count, int status) {
+        synchronized (injectedErrors) {
+            for (int i = 0; i < passed; i++) {
+                injectedErrors.add(0);
+            }
+        }
+        failNextRequests(count, status);
+    }
+
+    /**
+     * Answers requests beyond a number per second with 429 and a Retry-After header, 0 disables throttling.
+     */
+    public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    /**
+     * Returns the number of requests received including those answered with errors.
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    public long getBalance() {
+        return balance.get();
+    }
+
+    /**
+     * Records an SMS in the history as if it had been sent or received.
+     *
+     * @return the id of the SMS
+     */
+    public String addSms(String direction, String from, String to, String message) {
+        return (String) record(direction, from, to, message).get("id");
+    }
+
+    private Map<String, Object> record(String direction, String from, String to, String message) {
+        Map<String, Object> sms = new LinkedHashMap<String, Object>();
+        sms.put("id", "s" + sequence.incrementAndGet());
+        sms.put("direction", direction);
+        sms.put("from", from);
+        sms.put("to", to);
+        sms.put("message", message);
+        sms.put("cost", SMS_COST);
+        synchronized (history) {
+            sms.put("created", nextCreated());
+            history.add(sms);
+        }
+        return sms;
+    }
+
+    /**
+     * Allocates a phone number as if allocated through the API.
+     *
+     * @return the id of the number
+     */
+    public String addNumber(String country, String number) {
+        Map<String, Object> details = new LinkedHashMap<String, Object>();
+        details.put("id", "n" + sequence.incrementAndGet());
+        details.put("active", "yes");
+        details.put("country", country);
+        details.put("number", number);
+        details.put("capabilities", Arrays.asList("sms"));
+        numbers.put((String) details.get("id"), details);
+        return (String) details.get("id");
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext(ElksTemplate.ME_RESOURCE_PATH, new MeHandler());
+        server.createContext(ElksTemplate.NUMBERS_RESOURCE_PATH, new NumbersHandler());
+        server.createContext(ElksTemplate.SMS_RESOURCE_PATH, new SmsHandler());
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getApiUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Creation timestamps are the current time but strictly increasing so that paging is unambiguous. Called holding
+     * the lock on the history.
+     */
+    private String nextCreated() {
+        long created = Math.max(System.currentTimeMillis(), lastCreated + 1);
+        lastCreated = created;
+        try {
+            return TimestampUtils.format(new Date(created));
+        } catch (ParseException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a status to fail the request with or 0 to handle it.
+     */
+    private int injectedStatus() {
+        synchronized (injectedErrors) {
+            Integer status = injectedErrors.poll();
+            if (status != null) {
+                return status;
+            }
+        }
+        if (errorRate > 0) {
+            synchronized (random) {
+                if (random.nextDouble() < errorRate) {
+                    return errorStatus;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private synchronized boolean throttled() {
+        if (maxRequestsPerSecond <= 0) {
+            return false;
+        }
+        long window = System.currentTimeMillis() / 1000;
+        if (window != throttleWindow) {
+            throttleWindow = window;
+            throttleCount = 0;
+        }
+        return ++throttleCount > maxRequestsPerSecond;
+    }
+
+    private abstract class StubHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                requests.incrementAndGet();
+                Map<String, String> parameters = parseForm(exchange.getRequestBody());
+                parameters.putAll(parseQuery(exchange.getRequestURI().getRawQuery()));
+                if (latency > 0) {
+                    Thread.sleep(latency);
+                }
+                String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                if (authorization == null || !authorization.startsWith("Basic ")) {
+                    exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"46elks\"");
+                    respond(exchange, 401, "Unauthorized");
+                    return;
+                }
+                if (throttled()) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    respond(exchange, 429, "Too many requests");
+                    return;
+                }
+                int status = injectedStatus();
+                if (status != 0 && status != MALFORMED) {
+                    respond(exchange, status, "Injected error");
+                    return;
+                }
+                String path = exchange.getRequestURI().getPath();
+                String id = path.indexOf('/', 1) > 0 ? path.substring(path.indexOf('/', 1) + 1) : null;
+                boolean post = exchange.getRequestMethod().equals("POST");
+                if (!post && !exchange.getRequestMethod().equals("GET")) {
+                    respond(exchange, 405, "Method not allowed");
+                    return;
+                }
+                Object body = handle(id, post, parameters);
+                if (body == null) {
+                    respond(exchange, 404, "Not found");
+                } else if (status == MALFORMED) {
+                    String json = objectMapper.writeValueAsString(body);
+                    respond(exchange, 200, json.substring(0, json.length() / 2));
+                } else {
+                    respond(exchange, 200, objectMapper.writeValueAsString(body));
+                }
+            } catch (InterruptedException e) {
+                respond(exchange, 503, "Shutting down");
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, e.getMessage());
+            }
+        }
+
+        /**
+         * Returns the object to respond with as JSON or null to respond with 404.
+         */
+        protected abstract Object handle(String id, boolean post, Map<String, String> parameters);
+    }
+
+    private class MeHandler extends StubHandler {
+
+        @Override
+        protected Object handle(String id, boolean post, Map<String, String> parameters) {
+            if (id != null || post) {
+                return null;
+            }
+            Map<String, Object> me = new LinkedHashMap<String, Object>();
+            me.put("id", "u1");
+            me.put("displayname", "Stub");
+            me.put("currency", "SEK");
+            me.put("balance", balance.get());
+            me.put("email", "stub@example.com");
+            return me;
+        }
+    }
+
+    private class NumbersHandler extends StubHandler {
+
+        @Override
+        protected Object handle(String id, boolean post, Map<String, String> parameters) {
+            if (id == null) {
+                if (!post) {
+                    Map<String, Object> list = new HashMap<String, Object>();
+                    list.put("data", new ArrayList<Map<String, Object>>(numbers.values()));
+                    return list;
+                }
+                String country = required(parameters, "country");
+                Map<String, Object> details = numbers.get(addNumber(country, "+46766" + (100000 + sequence.get() % 900000)));
+                if (parameters.containsKey("sms_url")) {
+                    details.put("sms_url", parameters.get("sms_url"));
+                }
+                return details;
+            }
+            Map<String, Object> details = numbers.get(id);
+            if (details == null || !post) {
+                return details;
+            }
+            synchronized (details) {
+                if (parameters.containsKey("sms_url")) {
+                    details.put("sms_url", parameters.get("sms_url"));
+                }
+                if ("no".equals(parameters.get("active"))) {
+                    details.put("active", "no");
+                }
+                return new LinkedHashMap<String, Object>(details);
+            }
+        }
+    }
+
+    private class SmsHandler extends StubHandler {
+
+        @Override
+        protected Object handle(String id, boolean post, Map<String, String> parameters) {
+            if (id != null) {
+                return null;
+            }
+            return post ? send(parameters) : page(parameters.get("start"));
+        }
+
+        private Object send(Map<String, String> parameters) {
+            String from = required(parameters, "from");
+            String message = required(parameters, "message");
+            String[] recipients = required(parameters, "to").split(",");
+            List<Map<String, Object>> responses = new ArrayList<Map<String, Object>>();
+            for (String recipient : recipients) {
+                responses.add(record(SmsResponse.DIRECTION_OUTGOING, from, recipient, message));
+                balance.addAndGet(-SMS_COST);
+            }
+            return responses.size() == 1 ? responses.get(0) : responses;
+        }
+
+        /**
+         * Returns a page of history, newest first, with the entries created before the start.
+         */
+        private Object page(String start) {
+            List<Map<String, Object>> data = new ArrayList<Map<String, Object>>();
+            String next = null;
+            synchronized (history) {
+                int i = history.size() - 1;
+                if (start != null) {
+                    // Timestamps have a fixed format so they order as strings
+                    while (i >= 0 && ((String) history.get(i).get("created")).compareTo(start) >= 0) {
+                        i--;
+                    }
+                }
+                for (; i >= 0 && data.size() < pageSize; i--) {
+                    data.add(history.get(i));
+                }
+                if (i >= 0) {
+                    next = (String) data.get(data.size() - 1).get("created");
+                }
+            }
+            Map<String, Object> page = new LinkedHashMap<String, Object>();
+            page.put("data", data);
+            if (next != null) {
+                page.put("next", next);
+            }
+            return page;
+        }
+    }
+
+    private static String required(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        return value;
+    }
+
+    private static Map<String, String> parseForm(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return parseQuery(out.toString("US-ASCII"));
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int index = pair.indexOf('=');
+            if (index > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", status == 200 ? "application/json" : "text/plain");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
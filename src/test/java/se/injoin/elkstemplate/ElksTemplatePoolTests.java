@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ElksTemplatePoolTests {
+
+    private ElksStubServer firstServer;
+    private ElksStubServer secondServer;
+    private ElksTemplate first;
+    private ElksTemplate second;
+    private ElksTemplatePool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        firstServer = new ElksStubServer();
+        firstServer.start();
+        secondServer = new ElksStubServer();
+        secondServer.start();
+        first = template(firstServer, "first");
+        second = template(secondServer, "second");
+        pool = new ElksTemplatePool();
+        pool.setChunkSize(5);
+    }
+
+    @After
+    public void tearDown() {
+        pool.destroy();
+        first.destroy();
+        second.destroy();
+        firstServer.stop();
+        secondServer.stop();
+    }
+
+    @Test
+    public void testWeightedRoundRobin() {
+        pool.addTemplate(first, 2);
+        pool.addTemplate(second);
+        SmsRequest smsRequest = request(30);
+
+        List<SmsResponse> responses = pool.sendSms(smsRequest);
+
+        assertEquals(30, responses.size());
+        for (int i = 0; i < responses.size(); i++) {
+            assertEquals(smsRequest.getRecipients().get(i), responses.get(i).getTo());
+        }
+        assertEquals(20, pool.getSentCount(first));
+        assertEquals(10, pool.getSentCount(second));
+        assertEquals(0, pool.getOutstanding(first));
+        assertEquals(firstServer.getBalance() + secondServer.getBalance(), pool.queryBalanceMinorUnits());
+    }
+
+    @Test
+    public void testDrainsThrottledTemplate() {
+        pool.addTemplate(first);
+        pool.addTemplate(second);
+        pool.setStrategy(ElksTemplatePool.Strategy.LEAST_OUTSTANDING);
+        pool.setMaxConcurrentChunks(1);
+        firstServer.failNextRequests(1, 429);
+
+        SmsSendResult result = pool.sendSmsResumable(request(20));
+
+        assertTrue(result.isComplete());
+        assertEquals(4, result.getBatches().size());
+        assertTrue(pool.isDrained(first));
+        assertFalse(pool.isDrained(second));
+        assertEquals(0, pool.getSentCount(first));
+        assertEquals(20, pool.getSentCount(second));
+    }
+
+    private static ElksTemplate template(ElksStubServer server, String username) {
+        ElksTemplate template = new ElksTemplate();
+        template.setApiUrl(server.getApiUrl());
+        template.setUsername(username);
+        template.setPassword("password");
+        return template;
+    }
+
+    private static SmsRequest request(int recipients) {
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom("Sender");
+        smsRequest.setMessage("Hello");
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < recipients; i++) {
+            list.add("+4670000" + (1000 + i));
+        }
+        smsRequest.addRecipients(list);
+        return smsRequest;
+    }
+}
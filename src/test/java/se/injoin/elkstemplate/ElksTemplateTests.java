@@ -0,0 +1,477 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import se.injoin.elkstemplate.support.SmsFormWriter;
+
+public class ElksTemplateTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ElksStubServer server;
+    private ElksTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ElksStubServer();
+        server.start();
+        template = new ElksTemplate();
+        template.setApiUrl(server.getApiUrl());
+        template.setUsername("username");
+        template.setPassword("password");
+    }
+
+    @After
+    public void tearDown() {
+        template.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void testSendSmsConcurrentBatchesKeepsRecipientOrder() {
+        template.setBatchLimit(3);
+        template.setMaxConcurrentBatches(4);
+
+        List<String> recipients = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            recipients.add("+4670000" + (1000 + i));
+        }
+
+        List<SmsResponse> responses = template.sendSms("Sender", recipients, "Hello");
+
+        assertEquals(recipients.size(), responses.size());
+        for (int i = 0; i < recipients.size(); i++) {
+            assertEquals(recipients.get(i), responses.get(i).getTo());
+        }
+    }
+
+    @Test
+    public void testSendSmsStreamingHandlesEveryResponse() {
+        template.setBatchLimit(4);
+
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom("Sender");
+        smsRequest.setMessage("Hello");
+        for (int i = 0; i < 10; i++) {
+            smsRequest.addRecipient("+4670000" + (1000 + i));
+        }
+
+        final List<SmsResponse> handled = new ArrayList<SmsResponse>();
+        SmsSendResult result = template.sendSms(smsRequest, new SmsResponseHandler() {
+            @Override
+            public void handleResponse(SmsResponse response) {
+                handled.add(response);
+            }
+        });
+
+        assertTrue(result.isComplete());
+        assertEquals(3, result.getBatches().size());
+        assertEquals(10, handled.size());
+        for (int i = 0; i < handled.size(); i++) {
+            assertEquals(smsRequest.getRecipients().get(i), handled.get(i).getTo());
+            assertEquals(new BigDecimal("0.3500"), handled.get(i).getCost());
+        }
+    }
+
+    @Test
+    public void testPhoneNumbers() {
+        PhoneNumberDetails allocated = template.allocatePhoneNumber("se", "http://example.com/sms");
+        assertTrue(allocated.isActive());
+        assertEquals("http://example.com/sms", allocated.getSmsUrl());
+        assertEquals(1, template.queryPhoneNumbers().size());
+
+        PhoneNumberDetails deallocated = template.deallocatePhoneNumber(allocated.getId());
+        assertFalse(deallocated.isActive());
+        assertFalse(template.queryPhoneNumber(allocated.getId()).isActive());
+        assertNull(template.queryPhoneNumber("n404"));
+    }
+
+    @Test
+    public void testRetriesTransientErrors() {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setInitialBackoff(10);
+        template.setRetryPolicy(retryPolicy);
+        template.sendSms("Sender", "+46700001000", "Hello");
+        server.failNextRequests(2, 503);
+        AccountDetails accountDetails = template.queryAccountDetails();
+
+        assertEquals(server.getBalance(), accountDetails.getBalanceMinorUnits());
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void testIterateSmsHistoryFollowsPages() {
+        server.setPageSize(10);
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 35; i++) {
+            ids.add(0, server.addSms(SmsResponse.DIRECTION_INCOMING, "+46700001000", "+46766100000", "Message " + i));
+        }
+
+        List<String> iterated = new ArrayList<String>();
+        for (SmsResponse response : template.iterateSmsHistory()) {
+            iterated.add(response.getId());
+        }
+
+        assertEquals(ids, iterated);
+    }
+
+    @Test
+    public void testSmsHistoryStoreSyncsDelta() throws Exception {
+        server.setPageSize(10);
+        for (int i = 0; i < 25; i++) {
+            server.addSms(SmsResponse.DIRECTION_INCOMING, "+46700001000", "+46766100000", "Message " + i);
+        }
+        File directory = temporaryFolder.newFolder();
+        SmsHistoryStore store = new SmsHistoryStore(directory, template);
+        store.open();
+        assertEquals(25, store.sync());
+        int requests = server.getRequestCount();
+
+        for (int i = 0; i < 5; i++) {
+            server.addSms(SmsResponse.DIRECTION_INCOMING, "+46700001000", "+46766100000", "Message " + (25 + i));
+        }
+        assertEquals(5, store.sync());
+        assertEquals(1, server.getRequestCount() - requests);
+        store.close();
+
+        store = new SmsHistoryStore(directory, template);
+        store.open();
+        assertEquals(30, store.size());
+        final List<String> messages = new ArrayList<String>();
+        store.query(null, null, new SmsResponseHandler() {
+            @Override
+            public void handleResponse(SmsResponse response) {
+                messages.add(response.getMessage());
+            }
+        });
+        assertEquals("Message 0", messages.get(0));
+        assertEquals("Message 29", messages.get(29));
+        assertEquals(30 * ElksStubServer.SMS_COST, store.sumCostMinorUnits(null, null));
+        store.close();
+    }
+
+    @Test
+    public void testSmsHistoryStoreKeepsWatermarkAfterCompaction() throws Exception {
+        server.setPageSize(10);
+        for (int i = 0; i < 25; i++) {
+            server.addSms(SmsResponse.DIRECTION_INCOMING, "+46700001000", "+46766100000", "Message " + i);
+        }
+        File directory = temporaryFolder.newFolder();
+        SmsHistoryStore store = new SmsHistoryStore(directory, template);
+        store.open();
+        assertEquals(25, store.sync());
+        Date watermark = store.getWatermark();
+        assertEquals(25, store.compact(new Date(watermark.getTime() + 1)));
+        assertEquals(0, store.size());
+        assertEquals(watermark, store.getWatermark());
+        assertEquals(0, store.sync());
+        store.close();
+
+        server.addSms(SmsResponse.DIRECTION_INCOMING, "+46700001000", "+46766100000", "Message 25");
+        store = new SmsHistoryStore(directory, template);
+        store.open();
+        assertEquals(watermark, store.getWatermark());
+        assertEquals(1, store.sync());
+        assertEquals(1, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testMetricsListenerRecordsRequestsAndBatches() {
+        InMemoryElksMetrics metrics = new InMemoryElksMetrics();
+        template.setMetricsListener(metrics);
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setInitialBackoff(10);
+        template.setRetryPolicy(retryPolicy);
+        template.setBatchLimit(4);
+        List<String> recipients = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            recipients.add("+4670000" + (1000 + i));
+        }
+
+        template.sendSms("Sender", recipients, "Hello");
+        server.failNextRequests(1, 500);
+        assertNull(template.queryPhoneNumber("n404"));
+
+        InMemoryElksMetrics.ResourceMetrics sms = metrics.getResourceMetrics(ElksTemplate.SMS_RESOURCE_PATH);
+        assertEquals(3, sms.getRequests());
+        assertEquals(3, sms.getStatusCount(200));
+        assertEquals(3, sms.getTotalLatency().getCount());
+        assertTrue(sms.getWaitLatency().getPercentileNanos(50) > 0);
+        assertEquals(3, metrics.getBatches());
+        assertEquals(10, metrics.getRecipientsSent());
+        assertEquals(10 * ElksStubServer.SMS_COST, metrics.getCostMinorUnits());
+
+        InMemoryElksMetrics.ResourceMetrics numbers = metrics.getResourceMetrics(ElksTemplate.NUMBERS_RESOURCE_PATH);
+        assertEquals(2, numbers.getRequests());
+        assertEquals(1, numbers.getRetries());
+        assertEquals(1, numbers.getStatusCount(500));
+        assertEquals(1, numbers.getStatusCount(404));
+    }
+
+    @Test
+    public void testAdaptiveBatchSizer() {
+        InMemoryElksMetrics metrics = new InMemoryElksMetrics();
+        template.setMetricsListener(metrics);
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+        sizer.setMinBatchSize(2);
+        sizer.setBatchSize(10);
+        sizer.setIncrement(5);
+        sizer.setTargetLatency(60000);
+        template.setAdaptiveBatchSizer(sizer);
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom("Sender");
+        smsRequest.setMessage("Hello");
+        for (int i = 0; i < 50; i++) {
+            smsRequest.addRecipient("+4670000" + (1000 + i));
+        }
+
+        SmsSendResult result = template.sendSmsResumable(smsRequest);
+        assertTrue(result.isComplete());
+        assertEquals(Arrays.asList(10, 15, 20, 5), batchSizes(result));
+        assertEquals(25, metrics.getBatchSize());
+
+        server.failNextRequests(1, 503);
+        result = template.sendSmsResumable(smsRequest);
+        assertEquals(SmsBatch.Status.UNKNOWN, result.getBatches().get(0).getStatus());
+        assertEquals(Arrays.asList(25, 12, 12, 1), batchSizes(result));
+        assertEquals(12, metrics.getBatchSize());
+
+        sizer.setMaxBodySize(new SmsFormWriter(smsRequest).getPrefixLength() + 4 * SmsFormWriter.getEncodedLength("+46700001000"));
+        result = template.resumeSms(smsRequest, result, true);
+        assertTrue(result.isComplete());
+        assertEquals(Arrays.asList(25, 12, 12, 1), batchSizes(result));
+        assertEquals(Arrays.asList(4, 4, 4, 4), batchSizes(template.sendSmsResumable(smsRequest)).subList(0, 4));
+    }
+
+    @Test
+    public void testAdaptiveBatchSizerCappedAtBatchLimit() {
+        template.setBatchLimit(4);
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+        sizer.setMinBatchSize(2);
+        sizer.setBatchSize(3);
+        sizer.setIncrement(5);
+        template.setAdaptiveBatchSizer(sizer);
+
+        SmsSendResult result = template.sendSmsResumable(request(15));
+        assertTrue(result.isComplete());
+        assertEquals(Arrays.asList(3, 4, 4, 4), batchSizes(result));
+    }
+
+    @Test
+    public void testAdaptiveBatchSizerIgnoresRateLimitWait() {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setMessagesPerSecond(20, 4);
+        template.setRateLimiter(limiter);
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+        sizer.setMinBatchSize(2);
+        sizer.setBatchSize(4);
+        sizer.setIncrement(0);
+        sizer.setTargetLatency(150);
+        template.setAdaptiveBatchSizer(sizer);
+
+        // Once the bucket is in debt each batch waits 200 ms for permits, longer than the target latency
+        SmsSendResult result = template.sendSmsResumable(request(20));
+        assertTrue(result.isComplete());
+        assertEquals(Arrays.asList(4, 4, 4, 4, 4), batchSizes(result));
+    }
+
+    @Test
+    public void testPartialFailureResumesOnlyBatchesNotSent() {
+        template.setBatchLimit(4);
+        SmsRequest smsRequest = request(10);
+
+        server.failRequestsAfter(1, 1, 500);
+        SmsSendResult result = template.sendSmsResumable(smsRequest);
+        assertFalse(result.isComplete());
+        assertEquals(Arrays.asList(SmsBatch.Status.SENT, SmsBatch.Status.UNKNOWN, SmsBatch.Status.NOT_SENT), statuses(result));
+        assertEquals(4, result.getResponses().size());
+        assertEquals("10:2=8-10", result.getResumeToken());
+        assertEquals("10:1=4-8,2=8-10", result.getResumeToken(true));
+
+        int requests = server.getRequestCount();
+        SmsSendResult resumed = template.resumeSms(smsRequest, result);
+        assertEquals(1, server.getRequestCount() - requests);
+        assertEquals(Arrays.asList(SmsBatch.Status.SENT, SmsBatch.Status.UNKNOWN, SmsBatch.Status.SENT), statuses(resumed));
+        assertEquals(6, resumed.getResponses().size());
+
+        resumed = template.resumeSms(smsRequest, resumed, true);
+        assertTrue(resumed.isComplete());
+        assertEquals(2, server.getRequestCount() - requests);
+
+        server.failRequestsAfter(1, 1, 500);
+        try {
+            template.sendSms(smsRequest);
+            throw new AssertionError("Expected SmsBatchException");
+        } catch (SmsBatchException e) {
+            assertEquals(Arrays.asList(0), e.getSucceededBatches());
+            assertEquals(Arrays.asList(1), e.getUnknownBatches());
+            assertTrue(e.getFailedBatches().isEmpty());
+        }
+    }
+
+    @Test
+    public void testRetryFailingAfterPossiblyReceivedAttemptIsUnknown() {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setInitialBackoff(10);
+        retryPolicy.setRetryNonIdempotent(true);
+        template.setRetryPolicy(retryPolicy);
+        SmsRequest smsRequest = request(3);
+
+        // The second attempt is refused, the first may still have been received
+        server.failNextRequests(1, 500);
+        server.failNextRequests(1, 400);
+        SmsSendResult result = template.sendSmsResumable(smsRequest);
+        assertEquals(Arrays.asList(SmsBatch.Status.UNKNOWN), statuses(result));
+        assertNull(result.getResumeToken());
+
+        // A request refused on the first attempt is known not to have been received
+        server.failNextRequests(1, 400);
+        result = template.sendSmsResumable(smsRequest);
+        assertEquals(Arrays.asList(SmsBatch.Status.FAILED), statuses(result));
+    }
+
+    @Test
+    public void testRetryRefusedConnectionAfterServerErrorIsUnknown() throws Exception {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setInitialBackoff(500);
+        retryPolicy.setJitter(0);
+        retryPolicy.setRetryNonIdempotent(true);
+        template.setRetryPolicy(retryPolicy);
+        server.failNextRequests(1, 500);
+        Thread stopper = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (server.getRequestCount() == 0) {
+                        Thread.sleep(10);
+                    }
+                    // Let the first attempt complete with its error, the retry follows after 500 ms
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                server.stop();
+            }
+        };
+        stopper.start();
+
+        SmsSendResult result = template.sendSmsResumable(request(3));
+        stopper.join();
+        assertEquals(Arrays.asList(SmsBatch.Status.UNKNOWN), statuses(result));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testMalformedResponseIsUnknown() {
+        template.setBatchLimit(4);
+        SmsRequest smsRequest = request(10);
+
+        server.failRequestsAfter(1, 1, ElksStubServer.MALFORMED);
+        SmsSendResult result = template.sendSmsResumable(smsRequest);
+        assertEquals(Arrays.asList(SmsBatch.Status.SENT, SmsBatch.Status.UNKNOWN, SmsBatch.Status.NOT_SENT), statuses(result));
+        assertEquals(4, result.getResponses().size());
+        assertEquals("10:2=8-10", result.getResumeToken());
+
+        // A single recipient is read as one response instead of an array
+        server.failNextRequests(1, ElksStubServer.MALFORMED);
+        result = template.sendSmsResumable(request(1));
+        assertEquals(Arrays.asList(SmsBatch.Status.UNKNOWN), statuses(result));
+    }
+
+    @Test
+    public void testResumeTokenRoundTrip() {
+        template.setBatchLimit(4);
+        SmsRequest smsRequest = request(10);
+
+        server.failRequestsAfter(1, 1, 429);
+        SmsSendResult result = template.sendSmsResumable(smsRequest);
+        assertEquals(Arrays.asList(SmsBatch.Status.SENT, SmsBatch.Status.FAILED, SmsBatch.Status.NOT_SENT), statuses(result));
+        String token = result.getResumeToken();
+        assertEquals("10:1=4-8,2=8-10", token);
+
+        SmsSendResult resumed = template.resumeSms(smsRequest, token);
+        assertTrue(resumed.isComplete());
+        assertNull(resumed.getResumeToken());
+        assertEquals(2, resumed.getBatches().size());
+        List<SmsResponse> responses = resumed.getResponses();
+        assertEquals(6, responses.size());
+        for (int i = 0; i < responses.size(); i++) {
+            assertEquals(smsRequest.getRecipients().get(4 + i), responses.get(i).getTo());
+        }
+    }
+
+    @Test
+    public void testResumeRejectsMalformedToken() {
+        SmsRequest smsRequest = request(10);
+        for (String token : Arrays.asList("10", "x:1=4-8", "9:1=4-8", "10:", "10:1=4", "10:1-4=8", "10:1=8-4", "10:1=4-11", "10:a=4-8")) {
+            try {
+                template.resumeSms(smsRequest, token);
+                throw new AssertionError("Expected IllegalArgumentException for [" + token + "]");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        assertEquals(0, server.getRequestCount());
+    }
+
+    private static SmsRequest request(int recipients) {
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom("Sender");
+        smsRequest.setMessage("Hello");
+        for (int i = 0; i < recipients; i++) {
+            smsRequest.addRecipient("+4670000" + (1000 + i));
+        }
+        return smsRequest;
+    }
+
+    private static List<SmsBatch.Status> statuses(SmsSendResult result) {
+        List<SmsBatch.Status> statuses = new ArrayList<SmsBatch.Status>();
+        for (SmsBatch batch : result.getBatches()) {
+            statuses.add(batch.getStatus());
+        }
+        return statuses;
+    }
+
+    private static List<Integer> batchSizes(SmsSendResult result) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (SmsBatch batch : result.getBatches()) {
+            sizes.add(batch.size());
+        }
+        return sizes;
+    }
+}
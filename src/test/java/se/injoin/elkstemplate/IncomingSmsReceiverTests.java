@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class IncomingSmsReceiverTests {
+
+    @Test
+    public void testKeepsOrderPerSender() throws Exception {
+        final Map<String, List<String>> messages = new HashMap<String, List<String>>();
+        IncomingSmsReceiver receiver = new IncomingSmsReceiver(new SmsResponseHandler() {
+            @Override
+            public void handleResponse(SmsResponse response) {
+                assertEquals(SmsResponse.DIRECTION_INCOMING, response.getDirection());
+                synchronized (messages) {
+                    List<String> list = messages.get(response.getFrom());
+                    if (list == null) {
+                        list = new ArrayList<String>();
+                        messages.put(response.getFrom(), list);
+                    }
+                    list.add(response.getMessage());
+                }
+            }
+        });
+        receiver.setStripes(4);
+        receiver.start();
+        for (int i = 0; i < 100; i++) {
+            for (int sender = 0; sender < 10; sender++) {
+                byte[] body = ("from=%2B4670000100" + sender + "&to=%2B46766100000&message=Message+" + i + "&created=2014-03-18T13%3A57%3A23.741000").getBytes("US-ASCII");
+                assertTrue(receiver.receive(body, 0, body.length));
+            }
+        }
+        receiver.stop();
+
+        assertEquals(10, messages.size());
+        for (List<String> list : messages.values()) {
+            assertEquals(100, list.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals("Message " + i, list.get(i));
+            }
+        }
+        assertEquals(1000, receiver.getHandledCount());
+    }
+
+    @Test
+    public void testRefusesWhenStripeIsFull() throws Exception {
+        IncomingSmsReceiver receiver = new IncomingSmsReceiver(new SmsResponseHandler() {
+            @Override
+            public void handleResponse(SmsResponse response) {
+            }
+        });
+        receiver.setStripes(1);
+        receiver.setStripeCapacity(1);
+        byte[] body = "from=%2B46700001000&message=Hello".getBytes("US-ASCII");
+        assertTrue(receiver.receive(body, 0, body.length));
+        assertFalse(receiver.receive(body, 0, body.length));
+        assertEquals(1, receiver.getRefusedCount());
+    }
+}
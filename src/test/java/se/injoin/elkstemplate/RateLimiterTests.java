@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import se.injoin.elkstemplate.support.TokenBucket;
+
+public class RateLimiterTests {
+
+    @Test
+    public void testFailFastAllowsBurst() {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setMode(RateLimiter.Mode.FAIL_FAST);
+        limiter.setMessagesPerSecond(1, 3);
+
+        limiter.acquireMessages(1);
+        limiter.acquireMessages(2);
+        // The burst is used up but the bucket is not in debt, so the next call goes through into debt
+        limiter.acquireMessages(1);
+        assertExceeded(limiter, 1);
+    }
+
+    @Test
+    public void testDebtIsRepaidByFollowingCallers() {
+        TokenBucket bucket = new TokenBucket(1, 2);
+        assertEquals(0, bucket.reserve(5, 0));
+        assertEquals(-1, bucket.reserve(1, 0));
+        assertEquals(-1, bucket.reserve(1, TimeUnit.SECONDS.toNanos(2)));
+        long wait = bucket.reserve(1, Long.MAX_VALUE);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(2500) && wait <= TimeUnit.SECONDS.toNanos(3));
+        wait = bucket.reserve(1, Long.MAX_VALUE);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(3500) && wait <= TimeUnit.SECONDS.toNanos(4));
+
+        RateLimiter limiter = new RateLimiter();
+        limiter.setMode(RateLimiter.Mode.FAIL_FAST);
+        limiter.setMessagesPerSecond(1, 2);
+        limiter.acquireMessages(10);
+        assertExceeded(limiter, 1);
+    }
+
+    @Test
+    public void testBlockingWaitsForPermits() {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setMessagesPerSecond(20, 1);
+        limiter.acquireMessages(1);
+        limiter.acquireMessages(1);
+        long start = System.nanoTime();
+        limiter.acquireMessages(1);
+        limiter.acquireMessages(1);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+
+        limiter.setMessagesPerSecond(1, 1);
+        limiter.setMaxWait(100);
+        limiter.acquireMessages(2);
+        start = System.nanoTime();
+        assertExceeded(limiter, 1);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void testRequestsAreLimitedPerResource() {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setMode(RateLimiter.Mode.FAIL_FAST);
+        limiter.setRequestsPerSecond(ElksTemplate.SMS_RESOURCE_PATH, 1, 1);
+        limiter.setRequestsPerSecond(ElksTemplate.NUMBERS_RESOURCE_PATH, 1, 2);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.acquireRequest(ElksTemplate.ME_RESOURCE_PATH);
+            limiter.acquireMessages(1000);
+        }
+        limiter.acquireRequest(ElksTemplate.SMS_RESOURCE_PATH);
+        limiter.acquireRequest(ElksTemplate.SMS_RESOURCE_PATH);
+        try {
+            limiter.acquireRequest(ElksTemplate.SMS_RESOURCE_PATH + "?start=2014-03-18T14:47:26.123000");
+            throw new AssertionError("Expected RateLimitExceededException");
+        } catch (RateLimitExceededException e) {
+            // Expected
+        }
+        limiter.acquireRequest(ElksTemplate.NUMBERS_RESOURCE_PATH);
+        limiter.acquireRequest(ElksTemplate.NUMBERS_RESOURCE_PATH + "/n1234");
+        limiter.acquireRequest(ElksTemplate.NUMBERS_RESOURCE_PATH + "/n1235");
+        try {
+            limiter.acquireRequest(ElksTemplate.NUMBERS_RESOURCE_PATH + "/n1236");
+            throw new AssertionError("Expected RateLimitExceededException");
+        } catch (RateLimitExceededException e) {
+            // Expected
+        }
+    }
+
+    private static void assertExceeded(RateLimiter limiter, int messages) {
+        try {
+            limiter.acquireMessages(messages);
+            throw new AssertionError("Expected RateLimitExceededException");
+        } catch (RateLimitExceededException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+
+public class RetryPolicyTests {
+
+    @Test
+    public void testRetryAfterDeltaSeconds() {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        assertEquals(2000, retryPolicy.getRetryDelay(serverError(HttpStatus.SERVICE_UNAVAILABLE, "2"), true, 1, 0));
+        assertEquals(3000, retryPolicy.getRetryDelay(clientError(HttpStatus.TOO_MANY_REQUESTS, " 3 "), false, 1, 0));
+        assertEquals(0, retryPolicy.getRetryDelay(serverError(HttpStatus.SERVICE_UNAVAILABLE, "-5"), true, 1, 0));
+    }
+
+    @Test
+    public void testRetryAfterHttpDate() {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        String inFiveSeconds = format.format(new Date(System.currentTimeMillis() + 5000));
+        long delay = retryPolicy.getRetryDelay(serverError(HttpStatus.SERVICE_UNAVAILABLE, inFiveSeconds), true, 1, 0);
+        assertTrue(delay > 3000 && delay <= 5000);
+
+        String past = format.format(new Date(System.currentTimeMillis() - 60000));
+        assertEquals(0, retryPolicy.getRetryDelay(serverError(HttpStatus.SERVICE_UNAVAILABLE, past), true, 1, 0));
+    }
+
+    @Test
+    public void testMalformedRetryAfterFallsBackToBackoff() {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setJitter(0);
+        assertEquals(200, retryPolicy.getRetryDelay(serverError(HttpStatus.SERVICE_UNAVAILABLE, "soon"), true, 1, 0));
+        // Retry-After is only honored for 503 and 429
+        assertEquals(200, retryPolicy.getRetryDelay(serverError(HttpStatus.INTERNAL_SERVER_ERROR, "7"), true, 1, 0));
+    }
+
+    @Test
+    public void testNonIdempotentNotRetriedAfterRequestWritten() {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        RestClientException readTimeout = new ResourceAccessException("Read timed out", new SocketTimeoutException());
+        RestClientException serverError = serverError(HttpStatus.BAD_GATEWAY, null);
+        assertEquals(-1, retryPolicy.getRetryDelay(readTimeout, false, 1, 0));
+        assertEquals(-1, retryPolicy.getRetryDelay(serverError, false, 1, 0));
+        assertTrue(retryPolicy.getRetryDelay(readTimeout, true, 1, 0) >= 0);
+        assertTrue(retryPolicy.getRetryDelay(serverError, true, 1, 0) >= 0);
+
+        // The request never reached the service
+        RestClientException refused = new ResourceAccessException("Connection refused", new ConnectException());
+        assertTrue(retryPolicy.getRetryDelay(refused, false, 1, 0) >= 0);
+
+        retryPolicy.setRetryNonIdempotent(true);
+        assertTrue(retryPolicy.getRetryDelay(readTimeout, false, 1, 0) >= 0);
+        assertTrue(retryPolicy.getRetryDelay(serverError, false, 1, 0) >= 0);
+    }
+
+    @Test
+    public void testClientErrorsNotRetried() {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        assertEquals(-1, retryPolicy.getRetryDelay(clientError(HttpStatus.BAD_REQUEST, null), true, 1, 0));
+        assertEquals(-1, retryPolicy.getRetryDelay(clientError(HttpStatus.UNAUTHORIZED, null), true, 1, 0));
+    }
+
+    @Test
+    public void testMaxAttempts() {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setMaxAttempts(3);
+        RestClientException exception = serverError(HttpStatus.SERVICE_UNAVAILABLE, null);
+        assertTrue(retryPolicy.getRetryDelay(exception, true, 2, 0) >= 0);
+        assertEquals(-1, retryPolicy.getRetryDelay(exception, true, 3, 0));
+    }
+
+    @Test
+    public void testMaxElapsedTime() {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setMaxElapsedTime(5000);
+        retryPolicy.setJitter(0);
+        RestClientException exception = serverError(HttpStatus.INTERNAL_SERVER_ERROR, null);
+        assertEquals(200, retryPolicy.getRetryDelay(exception, true, 1, 4800));
+        assertEquals(-1, retryPolicy.getRetryDelay(exception, true, 1, 4801));
+
+        // A Retry-After beyond the remaining time gives up rather than waiting
+        assertEquals(-1, retryPolicy.getRetryDelay(serverError(HttpStatus.SERVICE_UNAVAILABLE, "10"), true, 1, 0));
+        assertEquals(4000, retryPolicy.getRetryDelay(serverError(HttpStatus.SERVICE_UNAVAILABLE, "4"), true, 1, 1000));
+    }
+
+    @Test
+    public void testExponentialBackoffCappedAtMaxBackoff() {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setMaxAttempts(10);
+        retryPolicy.setJitter(0);
+        retryPolicy.setInitialBackoff(100);
+        retryPolicy.setMultiplier(3);
+        retryPolicy.setMaxBackoff(1000);
+        RestClientException exception = serverError(HttpStatus.INTERNAL_SERVER_ERROR, null);
+        assertEquals(100, retryPolicy.getRetryDelay(exception, true, 1, 0));
+        assertEquals(300, retryPolicy.getRetryDelay(exception, true, 2, 0));
+        assertEquals(900, retryPolicy.getRetryDelay(exception, true, 3, 0));
+        assertEquals(1000, retryPolicy.getRetryDelay(exception, true, 4, 0));
+    }
+
+    @Test
+    public void testJitterBounds() {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setMaxAttempts(10);
+        retryPolicy.setInitialBackoff(1000);
+        retryPolicy.setJitter(0.25);
+        RestClientException exception = serverError(HttpStatus.INTERNAL_SERVER_ERROR, null);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long delay = retryPolicy.getRetryDelay(exception, true, 2, 0);
+            assertTrue("delay " + delay, delay >= 1500 && delay <= 2000);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        // The delays are actually spread out over the range
+        assertTrue(max - min > 250);
+
+        retryPolicy.setJitter(1);
+        for (int i = 0; i < 1000; i++) {
+            long delay = retryPolicy.getRetryDelay(exception, true, 1, 0);
+            assertTrue("delay " + delay, delay >= 0 && delay <= 1000);
+        }
+    }
+
+    private static HttpServerErrorException serverError(HttpStatus status, String retryAfter) {
+        return new HttpServerErrorException(status, status.getReasonPhrase(), headers(retryAfter), null, null);
+    }
+
+    private static HttpClientErrorException clientError(HttpStatus status, String retryAfter) {
+        return new HttpClientErrorException(status, status.getReasonPhrase(), headers(retryAfter), null, null);
+    }
+
+    private static HttpHeaders headers(String retryAfter) {
+        HttpHeaders headers = new HttpHeaders();
+        if (retryAfter != null) {
+            headers.set("Retry-After", retryAfter);
+        }
+        return headers;
+    }
+}
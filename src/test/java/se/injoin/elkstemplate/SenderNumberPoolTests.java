@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SenderNumberPoolTests {
+
+    private ElksStubServer server;
+    private ElksTemplate template;
+    private SenderNumberPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ElksStubServer();
+        server.start();
+        template = new ElksTemplate();
+        template.setApiUrl(server.getApiUrl());
+        template.setUsername("username");
+        template.setPassword("password");
+        pool = new SenderNumberPool(template);
+        pool.addCountry("se", "46", 2);
+        pool.addCountry("fi", "358", 1);
+        pool.setMaxNumbers(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.destroy();
+        template.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void testOpenAdoptsAndAllocatesNumbers() {
+        server.addNumber("se", "+46766000001");
+        server.addNumber("no", "+4759000001");
+
+        pool.open();
+
+        assertEquals(2, pool.getNumbers("se").size());
+        assertEquals("+46766000001", pool.getNumbers("se").get(0));
+        assertEquals(1, pool.getNumbers("fi").size());
+        assertEquals(4, template.queryPhoneNumbers().size());
+
+        pool.open();
+        assertEquals(2, pool.getNumbers("se").size());
+        assertEquals(4, template.queryPhoneNumbers().size());
+    }
+
+    @Test
+    public void testOpenCanBeRetriedAfterFailure() {
+        // The numbers are queried and the first number allocated before the second allocation fails
+        server.failRequestsAfter(2, 1, 500);
+        try {
+            pool.open();
+            throw new AssertionError("Expected ElksException");
+        } catch (ElksException expected) {
+        }
+
+        pool.open();
+        assertEquals(2, pool.getNumbers("se").size());
+        assertEquals(1, pool.getNumbers("fi").size());
+        assertEquals(3, template.queryPhoneNumbers().size());
+    }
+
+    @Test
+    public void testRebalanceKeepsNumbersNotOwned() {
+        server.addNumber("se", "+46766000001");
+        pool.setTargetRate(5);
+        pool.open();
+        pool.rebalance();
+        for (int i = 0; i < 200; i++) {
+            pool.getSender("+4670000" + (1000 + i));
+        }
+        pool.rebalance();
+        assertEquals(4, pool.getNumbers("se").size());
+
+        // Idle windows shrink down to the minimum releasing only numbers the pool allocated
+        for (int i = 0; i < 3; i++) {
+            pool.rebalance();
+        }
+        assertEquals(2, pool.getNumbers("se").size());
+        assertTrue(pool.getNumbers("se").contains("+46766000001"));
+        for (PhoneNumberDetails details : template.queryPhoneNumbers()) {
+            if (details.getNumber().equals("+46766000001")) {
+                assertTrue(details.isActive());
+            }
+        }
+    }
+
+    @Test
+    public void testSendersAreStickyAndSpread() {
+        pool.open();
+        List<String> recipients = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            recipients.add("+4670000" + (1000 + i));
+        }
+        recipients.add("+358401234567");
+
+        Map<String, List<String>> assigned = pool.assignSenders(recipients);
+        assertEquals(3, assigned.size());
+        assertEquals(5, assigned.get(pool.getNumbers("se").get(0)).size());
+        assertEquals(5, assigned.get(pool.getNumbers("se").get(1)).size());
+        assertEquals(1, assigned.get(pool.getNumbers("fi").get(0)).size());
+
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setMessage("Hello");
+        smsRequest.addRecipients(recipients);
+        List<SmsResponse> responses = pool.sendSms(smsRequest);
+        assertEquals(recipients.size(), responses.size());
+        for (int i = 0; i < recipients.size(); i++) {
+            assertEquals(recipients.get(i), responses.get(i).getTo());
+            assertEquals(pool.getSender(recipients.get(i)), responses.get(i).getFrom());
+        }
+    }
+
+    @Test
+    public void testRebalanceGrowsAndShrinks() throws Exception {
+        pool.setTargetRate(5);
+        pool.open();
+        pool.rebalance();
+        for (int i = 0; i < 200; i++) {
+            pool.getSender("+4670000" + (1000 + i));
+        }
+        pool.rebalance();
+        List<String> grown = pool.getNumbers("se");
+        assertEquals(4, grown.size());
+        assertEquals(1, pool.getNumbers("fi").size());
+
+        Thread.sleep(10);
+        pool.rebalance();
+        List<String> shrunk = pool.getNumbers("se");
+        assertEquals(3, shrunk.size());
+        String removed = null;
+        for (String number : grown) {
+            if (!shrunk.contains(number)) {
+                removed = number;
+            }
+        }
+        assertFalse(template.queryPhoneNumbers().isEmpty());
+        for (PhoneNumberDetails details : template.queryPhoneNumbers()) {
+            if (details.getNumber().equals(removed)) {
+                assertFalse(details.isActive());
+            }
+        }
+        HashSet<String> senders = new HashSet<String>();
+        for (int i = 0; i < 200; i++) {
+            senders.add(pool.getSender("+4670000" + (1000 + i)));
+        }
+        assertFalse(senders.contains(removed));
+        assertEquals(3, senders.size());
+    }
+
+    @Test
+    public void testSendersAreNotHeldUpByRebalance() throws Exception {
+        pool.setTargetRate(5);
+        pool.open();
+        pool.rebalance();
+        for (int i = 0; i < 200; i++) {
+            pool.getSender("+4670000" + (1000 + i));
+        }
+        server.setLatency(200);
+        Thread rebalance = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pool.rebalance();
+            }
+        });
+        rebalance.start();
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        pool.getSender("+46700002000");
+        assertTrue(System.nanoTime() - start < 100000000L);
+        rebalance.join();
+        assertEquals(4, pool.getNumbers("se").size());
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SmsOutboundQueueTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ElksStubServer server;
+    private ElksTemplate template;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ElksStubServer();
+        server.start();
+        template = new ElksTemplate();
+        template.setApiUrl(server.getApiUrl());
+        template.setUsername("username");
+        template.setPassword("password");
+        directory = temporaryFolder.newFolder();
+    }
+
+    @After
+    public void tearDown() {
+        template.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void testDispatchesAndDeletesResolvedSegments() throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        SmsOutboundQueue queue = new SmsOutboundQueue(directory, template);
+        queue.setSegmentSize(1024);
+        queue.setResponseHandler(new SmsResponseHandler() {
+            @Override
+            public void handleResponse(SmsResponse response) {
+                sent.add(response.getTo());
+            }
+        });
+        queue.open();
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i + 1, queue.enqueue("Sender", "+4670000" + (1000 + i), "Hello"));
+        }
+        assertTrue(queue.getSegmentCount() > 1);
+        queue.start();
+        awaitDepth(queue, 0);
+        queue.close();
+
+        assertEquals(50, sent.size());
+        assertEquals(50, queue.getAcknowledgedCount());
+        assertTrue(server.getRequestCount() < 50);
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void testReplaysUnacknowledgedAndTruncatesTornRecord() throws Exception {
+        SmsOutboundQueue queue = new SmsOutboundQueue(directory, template);
+        queue.setFsyncPolicy(SmsOutboundQueue.FsyncPolicy.ALWAYS);
+        queue.open();
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom("Sender");
+        smsRequest.setMessage("Hello");
+        for (int i = 0; i < 10; i++) {
+            smsRequest.addRecipient("+4670000" + (1000 + i));
+        }
+        queue.enqueue(smsRequest);
+        queue.close();
+
+        File segment = directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        long length = file.length();
+        file.setLength(length - 3);
+        file.close();
+
+        queue = new SmsOutboundQueue(directory, template);
+        queue.open();
+        assertEquals(9, queue.getDepth());
+        assertEquals(length * 9 / 10, segment.length());
+        assertEquals(10, queue.enqueue("Sender", "+46700002000", "Hello"));
+        queue.start();
+        awaitDepth(queue, 0);
+        queue.close();
+
+        queue = new SmsOutboundQueue(directory, template);
+        queue.open();
+        assertEquals(0, queue.getDepth());
+        queue.close();
+    }
+
+    @Test
+    public void testRetriesFailedAndDropsRejected() throws Exception {
+        SmsOutboundQueue queue = new SmsOutboundQueue(directory, template);
+        queue.setRetryDelay(10);
+        queue.setWorkers(1);
+        queue.open();
+        server.failNextRequests(1, 503);
+        queue.enqueue("Sender", "+46700001000", "Hello");
+        queue.start();
+        awaitDepth(queue, 0);
+        assertEquals(1, queue.getRetriedCount());
+        assertEquals(1, queue.getAcknowledgedCount());
+
+        server.failNextRequests(1, 400);
+        queue.enqueue("Sender", "+46700001001", "Hello");
+        awaitDepth(queue, 0);
+        assertEquals(1, queue.getRejectedCount());
+        queue.close();
+
+        queue = new SmsOutboundQueue(directory, template);
+        queue.open();
+        assertEquals(0, queue.getDepth());
+        queue.close();
+    }
+
+    @Test
+    public void testFailingResponseHandlerDoesNotDropMessages() throws Exception {
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        SmsOutboundQueue queue = new SmsOutboundQueue(directory, template);
+        queue.setWorkers(1);
+        queue.setResponseHandler(new SmsResponseHandler() {
+            @Override
+            public void handleResponse(SmsResponse response) {
+                handled.add(response.getTo());
+                throw new IllegalStateException("Handler failed");
+            }
+        });
+        queue.open();
+        for (int i = 0; i < 10; i++) {
+            queue.enqueue("Sender", "+4670000" + (1000 + i), i % 2 == 0 ? "Hello" : "Bye");
+        }
+        queue.start();
+        awaitDepth(queue, 0);
+        queue.close();
+
+        assertEquals(10, queue.getAcknowledgedCount());
+        assertEquals(10, handled.size());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testRollsOverOnAcknowledgementsAlone() throws Exception {
+        SmsOutboundQueue queue = new SmsOutboundQueue(directory, template);
+        queue.setSegmentSize(1024);
+        queue.setMaxDispatchSize(25);
+        queue.setWorkers(1);
+        queue.open();
+        for (int i = 0; i < 100; i++) {
+            queue.enqueue("Sender", "+4670000" + (1000 + i), "Hello");
+        }
+        queue.start();
+        awaitDepth(queue, 0);
+        queue.stop();
+        assertEquals(queue.getSegmentCount(), directory.listFiles().length);
+
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue("Sender", "+4670000" + (2000 + i), "Hello");
+        }
+        queue.close();
+
+        queue = new SmsOutboundQueue(directory, template);
+        queue.open();
+        assertEquals(5, queue.getDepth());
+        queue.close();
+    }
+
+    private static void awaitDepth(SmsOutboundQueue queue, int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (queue.getDepth() != depth && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(depth, queue.getDepth());
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import se.injoin.elkstemplate.AccountDetails;
+import se.injoin.elkstemplate.SmsResponse;
+
+public class MoneyUtilsTests {
+
+    @Test
+    public void testParseMinorUnits() {
+        assertEquals(3500, parse("3500"));
+        assertEquals(0, parse("0"));
+        assertEquals(-125, parse("-125"));
+        assertEquals(999999999999999999L, parse("999999999999999999"));
+        assertEquals(1000000000000000000L, parse("1000000000000000000"));
+        assertEquals(3500, parse("3500.00"));
+        assertEquals(1000, parse("1e3"));
+        assertEquals(-35, parse("-35.0"));
+    }
+
+    @Test
+    public void testParseMinorUnitsRejectsInvalid() {
+        for (String source : Arrays.asList("", "-", "35.5", "1e-3", "abc", "10000000000000000000")) {
+            try {
+                parse(source);
+                throw new AssertionError("Expected NumberFormatException for [" + source + "]");
+            } catch (NumberFormatException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testConversions() {
+        assertEquals(new BigDecimal("0.3500"), MoneyUtils.toBigDecimal(3500));
+        assertNull(MoneyUtils.toBigDecimal(MoneyUtils.UNDEFINED));
+        assertEquals(3500, MoneyUtils.toMinorUnits(new BigDecimal("0.35")));
+        assertEquals(MoneyUtils.UNDEFINED, MoneyUtils.toMinorUnits(null));
+    }
+
+    @Test
+    public void testDeserializeMinorUnits() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        SmsResponse string = objectMapper.readValue("{\"id\":\"s1\",\"cost\":\"3500\"}", SmsResponse.class);
+        assertEquals(3500, string.getCostMinorUnits());
+        assertEquals(new BigDecimal("0.3500"), string.getCost());
+
+        SmsResponse number = objectMapper.readValue("{\"id\":\"s2\",\"cost\":1200}", SmsResponse.class);
+        assertEquals(1200, number.getCostMinorUnits());
+
+        SmsResponse decimal = objectMapper.readValue("{\"id\":\"s4\",\"cost\":3500.0}", SmsResponse.class);
+        assertEquals(3500, decimal.getCostMinorUnits());
+
+        SmsResponse missing = objectMapper.readValue("{\"id\":\"s3\"}", SmsResponse.class);
+        assertFalse(missing.hasCost());
+        assertNull(missing.getCost());
+
+        AccountDetails accountDetails = objectMapper.readValue("{\"balance\":\"12345678\"}", AccountDetails.class);
+        assertTrue(accountDetails.hasBalance());
+        assertEquals(new BigDecimal("1234.5678"), accountDetails.getBalance());
+
+        assertEquals(4700, MoneyUtils.sumCostMinorUnits(Arrays.asList(string, number, missing)));
+    }
+
+    @Test
+    public void testSerializesDecimal() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        SmsResponse smsResponse = objectMapper.readValue("{\"id\":\"s1\",\"cost\":\"3500\"}", SmsResponse.class);
+        String json = objectMapper.writeValueAsString(smsResponse);
+        assertTrue(json, json.contains("\"cost\":0.3500"));
+        assertFalse(json, json.contains("MinorUnits"));
+
+        AccountDetails accountDetails = objectMapper.readValue("{\"balance\":12345678}", AccountDetails.class);
+        json = objectMapper.writeValueAsString(accountDetails);
+        assertTrue(json, json.contains("\"balance\":1234.5678"));
+        assertFalse(json, json.contains("MinorUnits"));
+    }
+
+    private static long parse(String source) {
+        return MoneyUtils.parseMinorUnits(source.toCharArray(), 0, source.length());
+    }
+}
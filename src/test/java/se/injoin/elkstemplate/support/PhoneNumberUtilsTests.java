@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import se.injoin.elkstemplate.NormalizedRecipients;
+import se.injoin.elkstemplate.RecipientNormalizer;
+import se.injoin.elkstemplate.SmsRequest;
+
+public class PhoneNumberUtilsTests {
+
+    @Test
+    public void testParse() {
+        assertEquals(46701234567L, PhoneNumberUtils.parse("+46701234567", null));
+        assertEquals(46701234567L, PhoneNumberUtils.parse("0046701234567", null));
+        assertEquals(46701234567L, PhoneNumberUtils.parse(" +46 (0)70-123 45 67", null));
+        assertEquals(46701234567L, PhoneNumberUtils.parse("070-123 45 67", "46"));
+        assertEquals(46701234567L, PhoneNumberUtils.parse("+46 70.123.45.67", "1"));
+        assertEquals(PhoneNumberUtils.INVALID, PhoneNumberUtils.parse("0701234567", null));
+        assertEquals(PhoneNumberUtils.INVALID, PhoneNumberUtils.parse("46701234567", "46"));
+        assertEquals(PhoneNumberUtils.INVALID, PhoneNumberUtils.parse("+0701234567", null));
+        assertEquals(467012345678901L, PhoneNumberUtils.parse("+467012345678901", null));
+        assertEquals(PhoneNumberUtils.INVALID, PhoneNumberUtils.parse("+4670123456789012", null));
+        assertEquals(PhoneNumberUtils.INVALID, PhoneNumberUtils.parse("+4612", null));
+        assertEquals(PhoneNumberUtils.INVALID, PhoneNumberUtils.parse("+46 70 ABC", null));
+        assertEquals(PhoneNumberUtils.INVALID, PhoneNumberUtils.parse("", null));
+        assertEquals("+46701234567", PhoneNumberUtils.format(46701234567L));
+    }
+
+    @Test
+    public void testLongHashSet() {
+        LongHashSet set = new LongHashSet();
+        for (long i = 1; i <= 100000; i++) {
+            assertTrue(set.add(46700000000L + i));
+        }
+        for (long i = 1; i <= 100000; i++) {
+            assertFalse(set.add(46700000000L + i));
+        }
+        assertEquals(100000, set.size());
+        assertTrue(set.contains(46700000001L));
+        assertFalse(set.contains(46700000000L));
+    }
+
+    @Test
+    public void testRecipientNormalizer() {
+        RecipientNormalizer normalizer = new RecipientNormalizer();
+        normalizer.setDefaultCountryCode("46");
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.addRecipients(Arrays.asList("+46701234567", "0046701234567", "070-123 45 67", "+4512345678", "Bob", null, "+4512345678"));
+
+        NormalizedRecipients result = normalizer.normalize(smsRequest);
+
+        assertEquals(Arrays.asList("+46701234567", "+4512345678"), smsRequest.getRecipients());
+        assertEquals(Arrays.asList("Bob", null), result.getInvalidRecipients());
+        assertEquals(3, result.getDuplicates());
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.FormHttpMessageConverter;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.StringUtils;
+
+import se.injoin.elkstemplate.SmsRequest;
+
+public class SmsFormWriterTests {
+
+    @Test
+    public void testSameOutputAsFormHttpMessageConverter() throws IOException {
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setFrom("Sender");
+        smsRequest.setMessage("Hej \u00E5\u00E4\u00F6 & 100% \u20AC \uD83D\uDE00 a+b=c\n*.-_~");
+        assertSameOutput(smsRequest, Arrays.asList("+46700001000"));
+
+        smsRequest.setFlash(true);
+        smsRequest.setDeliveryReportUrl("http://example.com/report?id=1&x=y");
+        List<String> recipients = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            recipients.add("+4670" + (1000000 + i));
+        }
+        assertSameOutput(smsRequest, recipients);
+    }
+
+    @Test
+    public void testEncodedLength() throws IOException {
+        SmsFormWriter writer = new SmsFormWriter(new SmsRequest() {{
+            setFrom("Sender");
+            setMessage("Hello");
+        }});
+        List<String> recipients = Arrays.asList("+46700001000", "+46700001001");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out, recipients);
+
+        int length = writer.getPrefixLength() + SmsFormWriter.getEncodedLength(recipients.get(0)) + SmsFormWriter.getEncodedLength(recipients.get(1));
+        // The first recipient has no separator
+        assertEquals(out.size() + 3, length);
+    }
+
+    private static void assertSameOutput(SmsRequest smsRequest, List<String> recipients) throws IOException {
+        LinkedMultiValueMap<String, String> parameters = new LinkedMultiValueMap<String, String>();
+        parameters.set("from", smsRequest.getFrom());
+        parameters.set("message", smsRequest.getMessage());
+        if (smsRequest.isFlash()) {
+            parameters.set("flashsms", "yes");
+        }
+        if (smsRequest.getDeliveryReportUrl() != null) {
+            parameters.set("whendelivered", smsRequest.getDeliveryReportUrl());
+        }
+        parameters.set("to", StringUtils.collectionToCommaDelimitedString(recipients));
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new FormHttpMessageConverter().write(parameters, MediaType.APPLICATION_FORM_URLENCODED, new HttpOutputMessage() {
+            private final HttpHeaders headers = new HttpHeaders();
+
+            @Override
+            public OutputStream getBody() {
+                return expected;
+            }
+
+            @Override
+            public HttpHeaders getHeaders() {
+                return headers;
+            }
+        });
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        new SmsFormWriter(smsRequest).writeTo(actual, recipients);
+
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+}
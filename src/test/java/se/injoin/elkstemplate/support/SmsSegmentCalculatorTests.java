@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2014 Injoin AB.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.injoin.elkstemplate.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import se.injoin.elkstemplate.SmsCostEstimate;
+import se.injoin.elkstemplate.SmsCostEstimator;
+import se.injoin.elkstemplate.SmsRequest;
+
+public class SmsSegmentCalculatorTests {
+
+    @Test
+    public void testGsm7Boundaries() {
+        assertSegments(SmsSegments.Encoding.GSM7, 0, 1, "");
+        assertSegments(SmsSegments.Encoding.GSM7, 160, 1, repeat('a', 160));
+        assertSegments(SmsSegments.Encoding.GSM7, 161, 2, repeat('a', 161));
+        assertSegments(SmsSegments.Encoding.GSM7, 306, 2, repeat('a', 306));
+        assertSegments(SmsSegments.Encoding.GSM7, 307, 3, repeat('a', 307));
+        assertSegments(SmsSegments.Encoding.GSM7, 6, 1, "\u00C5\u00E4\u00F6\u00E9@\n");
+    }
+
+    @Test
+    public void testGsm7ExtensionCharacters() {
+        assertSegments(SmsSegments.Encoding.GSM7, 160, 1, repeat('a', 158) + "\u20AC");
+        assertSegments(SmsSegments.Encoding.GSM7, 161, 2, repeat('a', 159) + "[");
+        // The escape and the character are never split across segments
+        assertSegments(SmsSegments.Encoding.GSM7, 306, 3, repeat('a', 152) + "{" + repeat('a', 152));
+        assertSegments(SmsSegments.Encoding.GSM7, 306, 2, repeat('a', 151) + "{" + repeat('a', 153));
+        assertTrue(SmsSegmentCalculator.isGsm7('~'));
+        assertFalse(SmsSegmentCalculator.isGsm7('\u00E2'));
+    }
+
+    @Test
+    public void testUcs2Boundaries() {
+        assertSegments(SmsSegments.Encoding.UCS2, 70, 1, repeat('a', 69) + "\u0107");
+        assertSegments(SmsSegments.Encoding.UCS2, 71, 2, repeat('a', 70) + "\u0107");
+        assertSegments(SmsSegments.Encoding.UCS2, 134, 2, repeat('a', 133) + "\u0107");
+        assertSegments(SmsSegments.Encoding.UCS2, 135, 3, repeat('a', 134) + "\u0107");
+    }
+
+    @Test
+    public void testUcs2KeepsSurrogatePairsTogether() {
+        String emoji = "\uD83D\uDE00";
+        assertSegments(SmsSegments.Encoding.UCS2, 70, 1, repeat('a', 68) + emoji);
+        assertSegments(SmsSegments.Encoding.UCS2, 134, 2, repeat('a', 65) + emoji + repeat('a', 67));
+        assertSegments(SmsSegments.Encoding.UCS2, 134, 3, repeat('a', 66) + emoji + repeat('a', 66));
+    }
+
+    @Test
+    public void testLongMessage() {
+        assertSegments(SmsSegments.Encoding.GSM7, 1000000, 6536, repeat('a', 1000000));
+    }
+
+    @Test
+    public void testCostEstimator() {
+        SmsCostEstimator estimator = new SmsCostEstimator();
+        estimator.setBatchLimit(2);
+        Map<String, Long> prices = new HashMap<String, Long>();
+        prices.put("+46", 3500L);
+        prices.put("+4670", 3000L);
+        prices.put("+47", 5000L);
+        estimator.setPrices(prices);
+
+        SmsRequest smsRequest = new SmsRequest();
+        smsRequest.setMessage(repeat('a', 200));
+        smsRequest.addRecipient("+46701234567");
+        smsRequest.addRecipient("+46812345678");
+        smsRequest.addRecipient("+4791234567");
+        smsRequest.addRecipient("+4512345678");
+
+        SmsCostEstimate estimate = estimator.estimate(smsRequest);
+        assertEquals(2, estimate.getSegments().getSegments());
+        assertEquals(4, estimate.getRecipients());
+        assertEquals(8, estimate.getTotalSegments());
+        assertEquals(2, estimate.getRequests());
+        assertEquals(2 * (3000 + 3500 + 5000), estimate.getCostMinorUnits());
+        assertEquals(1, estimate.getUnpricedRecipients());
+
+        estimator.setDefaultPrice(4000);
+        assertEquals(2 * (3000 + 3500 + 5000 + 4000), estimator.estimate(smsRequest).getCostMinorUnits());
+    }
+
+    private static void assertSegments(SmsSegments.Encoding encoding, int length, int segments, String message) {
+        SmsSegments result = SmsSegmentCalculator.calculate(message);
+        assertEquals(encoding, result.getEncoding());
+        assertEquals(length, result.getLength());
+        assertEquals(segments, result.getSegments());
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -18,10 +18,12 @@
 package se.injoin.elkstemplate.support;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Random;
 import java.util.TimeZone;
 
 import org.junit.Test;
@@ -45,4 +47,70 @@ public class TimestampUtilsTests {
         // Format back to GMT
         assertEquals(source, TimestampUtils.format(date));
     }
+
+    @Test
+    public void testParseMatchesSimpleDateFormat() throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // Any time between 1970 and 2100
+            long millis = (long) (random.nextDouble() * 4102444800000L);
+            String source = format.format(new Date(millis)) + "000";
+            assertEquals(source, millis, TimestampUtils.parse(source).getTime());
+            assertEquals(source, TimestampUtils.format(new Date(millis)));
+        }
+    }
+
+    @Test
+    public void testParseAndFormatEdgeDates() throws ParseException {
+        assertRoundTrip("1970-01-01T00:00:00.000000", 0);
+        assertRoundTrip("1969-12-31T23:59:59.999000", -1);
+        assertRoundTrip("2000-02-29T12:00:00.000000", 951825600000L);
+        assertRoundTrip("2012-12-31T23:59:59.001000", 1356998399001L);
+        assertRoundTrip("1900-03-01T00:00:00.000000", -2203891200000L);
+    }
+
+    @Test
+    public void testParseCharsAndBytes() throws ParseException {
+        char[] chars = "\"created\": \"2012-05-08T20:38:11.623000\"".toCharArray();
+        assertEquals(1336509491623L, TimestampUtils.parse(chars, 12, 26).getTime());
+        byte[] bytes = "x2012-05-08T20:38:11.623000x".getBytes();
+        assertEquals(1336509491623L, TimestampUtils.parseMillis(bytes, 1, 26));
+    }
+
+    @Test
+    public void testParseFractionLengths() throws ParseException {
+        assertEquals(1336509491000L, TimestampUtils.parseMillis("2012-05-08T20:38:11"));
+        assertEquals(1336509491600L, TimestampUtils.parseMillis("2012-05-08T20:38:11.6"));
+        assertEquals(1336509491623L, TimestampUtils.parseMillis("2012-05-08T20:38:11.623"));
+        assertEquals(1336509491623L, TimestampUtils.parseMillis("2012-05-08T20:38:11.623999"));
+    }
+
+    @Test
+    public void testParseRejectsInvalid() {
+        assertUnparseable("");
+        assertUnparseable("2012-05-08");
+        assertUnparseable("2012-05-08 20:38:11.623000");
+        assertUnparseable("2012-13-08T20:38:11.623000");
+        assertUnparseable("2013-02-29T20:38:11.623000");
+        assertUnparseable("2012-05-08T24:38:11.623000");
+        assertUnparseable("2012-05-08T20:38:11.");
+        assertUnparseable("2012-05-08T20:38:11.62x000");
+        assertUnparseable("2012-O5-08T20:38:11.623000");
+    }
+
+    private static void assertRoundTrip(String source, long millis) throws ParseException {
+        assertEquals(millis, TimestampUtils.parseMillis(source));
+        assertEquals(source, TimestampUtils.format(new Date(millis)));
+    }
+
+    private static void assertUnparseable(String source) {
+        try {
+            TimestampUtils.parseMillis(source);
+            fail("Expected ParseException for [" + source + "]");
+        } catch (ParseException e) {
+            // Expected
+        }
+    }
 }